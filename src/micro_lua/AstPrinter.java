@@ -0,0 +1,264 @@
+package micro_lua;
+
+import java.util.List;
+
+// Imprime a AST (usado por --ast para inspecionar a saída do otimizador).
+// Expressões viram S-expressions; statements ficam um por linha, indentados
+// pelo aninhamento. Variáveis locais mostram profundidade e slot: x@1:0.
+public class AstPrinter implements Expr.Visitor<String>, Stmt.Visitor<Void> {
+    private final StringBuilder out = new StringBuilder();
+    private int indent = 0;
+
+    public static String print(List<Stmt> statements) {
+        AstPrinter printer = new AstPrinter();
+        printer.printAll(statements);
+        return printer.out.toString();
+    }
+
+    private void printAll(List<Stmt> statements) {
+        indent++;
+        for (Stmt statement : statements) {
+            statement.accept(this);
+        }
+        indent--;
+    }
+
+    private void line(String text) {
+        for (int i = 1; i < indent; i++) out.append("  ");
+        out.append(text).append('\n');
+    }
+
+    private String print(Expr expr) {
+        return expr.accept(this);
+    }
+
+    private String parenthesize(String name, Expr... exprs) {
+        StringBuilder builder = new StringBuilder("(").append(name);
+        for (Expr expr : exprs) {
+            builder.append(' ').append(print(expr));
+        }
+        return builder.append(')').toString();
+    }
+
+    private String params(Stmt.Function function) {
+        StringBuilder builder = new StringBuilder("(");
+        for (int i = 0; i < function.params.size(); i++) {
+            if (i > 0) builder.append(' ');
+            builder.append(function.params.get(i).lexeme);
+        }
+        return builder.append(')').toString();
+    }
+
+    private static String name(Token name, int depth, int slot) {
+        return depth < 0 ? name.lexeme : name.lexeme + "@" + depth + ":" + slot;
+    }
+
+    // Statements
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        line("(do");
+        printAll(stmt.statements);
+        line(")");
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        line(print(stmt.expression));
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        line("(" + (stmt.isLocal ? "local-function " : "function ")
+            + stmt.name.lexeme + " " + params(stmt));
+        printAll(stmt.body);
+        line(")");
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        line("(if " + print(stmt.condition));
+        indent++;
+        stmt.thenBranch.accept(this);
+        if (stmt.elseBranch != null) stmt.elseBranch.accept(this);
+        indent--;
+        line(")");
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        line(stmt.value == null ? "(return)" : parenthesize("return", stmt.value));
+        return null;
+    }
+
+    @Override
+    public Void visitLocalVarStmt(Stmt.LocalVar stmt) {
+        String name = stmt.name.lexeme + (stmt.slot >= 0 ? "@" + stmt.slot : "");
+        line(stmt.initializer == null ? "(local " + name + ")"
+            : parenthesize("local " + name, stmt.initializer));
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        line("(while " + print(stmt.condition));
+        indent++;
+        stmt.body.accept(this);
+        indent--;
+        line(")");
+        return null;
+    }
+
+    @Override
+    public Void visitRepeatStmt(Stmt.Repeat stmt) {
+        line("(repeat");
+        indent++;
+        stmt.body.accept(this);
+        indent--;
+        line("until " + print(stmt.condition) + ")");
+        return null;
+    }
+
+    @Override
+    public Void visitForStmt(Stmt.For stmt) {
+        String header = "(for " + stmt.name.lexeme + " " + print(stmt.start)
+            + " " + print(stmt.limit);
+        if (stmt.step != null) header += " " + print(stmt.step);
+        line(header);
+        printAll(stmt.body);
+        line(")");
+        return null;
+    }
+
+    @Override
+    public Void visitForInStmt(Stmt.ForIn stmt) {
+        StringBuilder header = new StringBuilder("(for-in");
+        for (Token name : stmt.names) header.append(" ").append(name.lexeme);
+        header.append(" in");
+        for (Expr iterator : stmt.iterators) header.append(" ").append(print(iterator));
+        line(header.toString());
+        printAll(stmt.body);
+        line(")");
+        return null;
+    }
+
+    @Override
+    public Void visitBreakStmt(Stmt.Break stmt) {
+        line("(break)");
+        return null;
+    }
+
+    // Expressões
+
+    @Override
+    public String visitAssignExpr(Expr.Assign expr) {
+        return parenthesize("= " + name(expr.name, expr.depth, expr.slot), expr.value);
+    }
+
+    @Override
+    public String visitBinaryExpr(Expr.Binary expr) {
+        return parenthesize(expr.operator.lexeme, expr.left, expr.right);
+    }
+
+    @Override
+    public String visitCallExpr(Expr.Call expr) {
+        StringBuilder builder = new StringBuilder("(call ").append(print(expr.callee));
+        for (Expr argument : expr.arguments) {
+            builder.append(' ').append(print(argument));
+        }
+        return builder.append(')').toString();
+    }
+
+    @Override
+    public String visitLiteralExpr(Expr.Literal expr) {
+        if (expr.value == null) return "nil";
+        if (expr.value instanceof String) return "\"" + expr.value + "\"";
+        if (expr.value instanceof Double) return LuaNumber.formatFloat((Double) expr.value);
+        return expr.value.toString();
+    }
+
+    @Override
+    public String visitIntLiteralExpr(Expr.IntLiteral expr) {
+        return "int:" + expr.value;
+    }
+
+    @Override
+    public String visitFloatLiteralExpr(Expr.FloatLiteral expr) {
+        return "float:" + LuaNumber.formatFloat(expr.value);
+    }
+
+    @Override
+    public String visitFunctionExpr(Expr.Function expr) {
+        // O corpo entra inline, na indentação atual
+        AstPrinter body = new AstPrinter();
+        body.indent = indent;
+        body.printAll(expr.declaration.body);
+        StringBuilder builder = new StringBuilder("(function ")
+            .append(params(expr.declaration)).append('\n').append(body.out);
+        for (int i = 1; i < indent; i++) builder.append("  ");
+        return builder.append(')').toString();
+    }
+
+    @Override
+    public String visitGroupingExpr(Expr.Grouping expr) {
+        return parenthesize("group", expr.expression);
+    }
+
+    @Override
+    public String visitLogicalExpr(Expr.Logical expr) {
+        return parenthesize(expr.operator.lexeme, expr.left, expr.right);
+    }
+
+    @Override
+    public String visitConcatExpr(Expr.Concat expr) {
+        return parenthesize(expr.operator.lexeme, expr.parts.toArray(new Expr[0]));
+    }
+
+    @Override
+    public String visitUnaryExpr(Expr.Unary expr) {
+        return parenthesize(expr.operator.lexeme, expr.right);
+    }
+
+    @Override
+    public String visitVariableExpr(Expr.Variable expr) {
+        return name(expr.name, expr.depth, expr.slot);
+    }
+
+    @Override
+    public String visitTableExpr(Expr.Table expr) {
+        StringBuilder builder = new StringBuilder("(table");
+        for (int i = 0; i < expr.keys.length; i++) {
+            builder.append(' ');
+            if (expr.keys[i] == null) {
+                builder.append(print(expr.values[i]));
+            } else {
+                builder.append('[').append(print(expr.keys[i])).append("]=").append(print(expr.values[i]));
+            }
+        }
+        return builder.append(')').toString();
+    }
+
+    @Override
+    public String visitPackedTableExpr(Expr.PackedTable expr) {
+        return visitTableExpr(expr.view());
+    }
+
+    @Override
+    public String visitTableIndexExpr(Expr.TableIndex expr) {
+        return parenthesize("index", expr.table, expr.index);
+    }
+
+    @Override
+    public String visitTableFieldExpr(Expr.TableField expr) {
+        return "(field " + print(expr.table) + " " + expr.field.lexeme + ")";
+    }
+
+    @Override
+    public String visitTableAssignExpr(Expr.TableAssign expr) {
+        return parenthesize("setindex", expr.table, expr.key, expr.value);
+    }
+}
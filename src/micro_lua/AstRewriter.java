@@ -0,0 +1,293 @@
+package micro_lua;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Base das etapas do otimizador. Percorre a AST e reconstrói apenas os nós
+// cujos filhos mudaram, copiando as anotações do Resolver (slots, frames).
+// Um statement reescrito como null é removido da lista que o contém.
+abstract class AstRewriter implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt>, Optimizer.Pass {
+
+    @Override
+    public List<Stmt> apply(List<Stmt> statements) {
+        return rewrite(statements);
+    }
+
+    protected Expr rewrite(Expr expr) {
+        return expr == null ? null : expr.accept(this);
+    }
+
+    protected Stmt rewrite(Stmt stmt) {
+        return stmt == null ? null : stmt.accept(this);
+    }
+
+    protected List<Stmt> rewrite(List<Stmt> statements) {
+        List<Stmt> result = null;
+        for (int i = 0; i < statements.size(); i++) {
+            Stmt original = statements.get(i);
+            Stmt stmt = rewrite(original);
+            if (result == null && stmt != original) {
+                result = new ArrayList<>(statements.subList(0, i));
+            }
+            if (result != null && stmt != null) result.add(stmt);
+        }
+        return result == null ? statements : result;
+    }
+
+    private List<Expr> rewriteAll(List<Expr> exprs) {
+        List<Expr> result = null;
+        for (int i = 0; i < exprs.size(); i++) {
+            Expr original = exprs.get(i);
+            Expr expr = rewrite(original);
+            if (result == null && expr != original) {
+                result = new ArrayList<>(exprs.subList(0, i));
+            }
+            if (result != null) result.add(expr);
+        }
+        return result == null ? exprs : result;
+    }
+
+    // Statements
+
+    @Override
+    public Stmt visitBlockStmt(Stmt.Block stmt) {
+        List<Stmt> statements = rewrite(stmt.statements);
+        if (statements == stmt.statements) return stmt;
+        return new Stmt.Block(statements);
+    }
+
+    @Override
+    public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+        Expr expression = rewrite(stmt.expression);
+        if (expression == stmt.expression) return stmt;
+        return new Stmt.Expression(expression);
+    }
+
+    @Override
+    public Stmt visitFunctionStmt(Stmt.Function stmt) {
+        List<Stmt> body = rewrite(stmt.body);
+        if (body == stmt.body) return stmt;
+        Stmt.Function function = new Stmt.Function(stmt.name, stmt.params, body, stmt.isLocal);
+        function.slot = stmt.slot;
+        function.frameSize = stmt.frameSize;
+        function.upvalueInFrame = stmt.upvalueInFrame;
+        function.upvalueSlots = stmt.upvalueSlots;
+        function.captured = stmt.captured;
+        function.capturedParams = stmt.capturedParams;
+        return function;
+    }
+
+    @Override
+    public Stmt visitIfStmt(Stmt.If stmt) {
+        Expr condition = rewrite(stmt.condition);
+        Stmt thenBranch = rewrite(stmt.thenBranch);
+        Stmt elseBranch = rewrite(stmt.elseBranch);
+        if (condition == stmt.condition && thenBranch == stmt.thenBranch
+                && elseBranch == stmt.elseBranch) {
+            return stmt;
+        }
+        if (thenBranch == null) thenBranch = new Stmt.Block(new ArrayList<>());
+        return new Stmt.If(condition, thenBranch, elseBranch);
+    }
+
+    @Override
+    public Stmt visitReturnStmt(Stmt.Return stmt) {
+        Expr value = rewrite(stmt.value);
+        if (value == stmt.value) return stmt;
+        return new Stmt.Return(stmt.keyword, value);
+    }
+
+    @Override
+    public Stmt visitLocalVarStmt(Stmt.LocalVar stmt) {
+        Expr initializer = rewrite(stmt.initializer);
+        if (initializer == stmt.initializer) return stmt;
+        Stmt.LocalVar local = new Stmt.LocalVar(stmt.name, initializer);
+        local.slot = stmt.slot;
+        local.captured = stmt.captured;
+        return local;
+    }
+
+    @Override
+    public Stmt visitWhileStmt(Stmt.While stmt) {
+        Expr condition = rewrite(stmt.condition);
+        Stmt body = rewrite(stmt.body);
+        if (condition == stmt.condition && body == stmt.body) return stmt;
+        return new Stmt.While(condition, body);
+    }
+
+    @Override
+    public Stmt visitRepeatStmt(Stmt.Repeat stmt) {
+        Stmt body = rewrite(stmt.body);
+        Expr condition = rewrite(stmt.condition);
+        if (condition == stmt.condition && body == stmt.body) return stmt;
+        return new Stmt.Repeat(condition, body);
+    }
+
+    @Override
+    public Stmt visitForStmt(Stmt.For stmt) {
+        Expr start = rewrite(stmt.start);
+        Expr limit = rewrite(stmt.limit);
+        Expr step = rewrite(stmt.step);
+        List<Stmt> body = rewrite(stmt.body);
+        if (start == stmt.start && limit == stmt.limit && step == stmt.step
+                && body == stmt.body) {
+            return stmt;
+        }
+        Stmt.For loop = new Stmt.For(stmt.name, start, limit, step, body);
+        loop.slot = stmt.slot;
+        loop.captured = stmt.captured;
+        return loop;
+    }
+
+    @Override
+    public Stmt visitForInStmt(Stmt.ForIn stmt) {
+        List<Expr> iterators = rewriteAll(stmt.iterators);
+        List<Stmt> body = rewrite(stmt.body);
+        if (iterators == stmt.iterators && body == stmt.body) return stmt;
+        Stmt.ForIn loop = new Stmt.ForIn(stmt.names, iterators, body);
+        loop.slot = stmt.slot;
+        loop.captured = stmt.captured;
+        loop.keyIgnored = stmt.keyIgnored;
+        return loop;
+    }
+
+    @Override
+    public Stmt visitBreakStmt(Stmt.Break stmt) {
+        return stmt;
+    }
+
+    // Expressões
+
+    @Override
+    public Expr visitAssignExpr(Expr.Assign expr) {
+        Expr value = rewrite(expr.value);
+        if (value == expr.value) return expr;
+        Expr.Assign assign = new Expr.Assign(expr.name, value);
+        assign.depth = expr.depth;
+        assign.slot = expr.slot;
+        assign.upvalue = expr.upvalue;
+        assign.cell = expr.cell;
+        return assign;
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr) {
+        Expr left = rewrite(expr.left);
+        Expr right = rewrite(expr.right);
+        if (left == expr.left && right == expr.right) return expr;
+        return new Expr.Binary(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitCallExpr(Expr.Call expr) {
+        Expr callee = rewrite(expr.callee);
+        List<Expr> arguments = rewriteAll(expr.arguments);
+        if (callee == expr.callee && arguments == expr.arguments) return expr;
+        return new Expr.Call(callee, expr.paren, arguments);
+    }
+
+    @Override
+    public Expr visitLiteralExpr(Expr.Literal expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitIntLiteralExpr(Expr.IntLiteral expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitFloatLiteralExpr(Expr.FloatLiteral expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitFunctionExpr(Expr.Function expr) {
+        Stmt declaration = rewrite(expr.declaration);
+        if (declaration == expr.declaration) return expr;
+        return new Expr.Function((Stmt.Function) declaration);
+    }
+
+    @Override
+    public Expr visitGroupingExpr(Expr.Grouping expr) {
+        Expr expression = rewrite(expr.expression);
+        if (expression == expr.expression) return expr;
+        return new Expr.Grouping(expression);
+    }
+
+    @Override
+    public Expr visitLogicalExpr(Expr.Logical expr) {
+        Expr left = rewrite(expr.left);
+        Expr right = rewrite(expr.right);
+        if (left == expr.left && right == expr.right) return expr;
+        return new Expr.Logical(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitConcatExpr(Expr.Concat expr) {
+        List<Expr> parts = rewriteAll(expr.parts);
+        if (parts == expr.parts) return expr;
+        return new Expr.Concat(parts, expr.operator);
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr) {
+        Expr right = rewrite(expr.right);
+        if (right == expr.right) return expr;
+        return new Expr.Unary(expr.operator, right);
+    }
+
+    @Override
+    public Expr visitVariableExpr(Expr.Variable expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitTableExpr(Expr.Table expr) {
+        Expr[] keys = expr.keys;
+        Expr[] values = expr.values;
+        for (int i = 0; i < keys.length; i++) {
+            Expr key = rewrite(expr.keys[i]);
+            Expr value = rewrite(expr.values[i]);
+            if (key != expr.keys[i] || value != expr.values[i]) {
+                if (keys == expr.keys) {
+                    keys = expr.keys.clone();
+                    values = expr.values.clone();
+                }
+                keys[i] = key;
+                values[i] = value;
+            }
+        }
+        if (keys == expr.keys) return expr;
+        return new Expr.Table(expr.brace, keys, values);
+    }
+
+    @Override
+    public Expr visitPackedTableExpr(Expr.PackedTable expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitTableIndexExpr(Expr.TableIndex expr) {
+        Expr table = rewrite(expr.table);
+        Expr index = rewrite(expr.index);
+        if (table == expr.table && index == expr.index) return expr;
+        return new Expr.TableIndex(table, index, expr.bracket);
+    }
+
+    @Override
+    public Expr visitTableFieldExpr(Expr.TableField expr) {
+        Expr table = rewrite(expr.table);
+        if (table == expr.table) return expr;
+        return new Expr.TableField(table, expr.field);
+    }
+
+    @Override
+    public Expr visitTableAssignExpr(Expr.TableAssign expr) {
+        Expr table = rewrite(expr.table);
+        Expr key = rewrite(expr.key);
+        Expr value = rewrite(expr.value);
+        if (table == expr.table && key == expr.key && value == expr.value) return expr;
+        return new Expr.TableAssign(table, key, expr.token, value);
+    }
+}
@@ -1,5 +0,0 @@
-package micro_lua;
-
-class Break extends RuntimeException {
-    Break() {}
-}
\ No newline at end of file
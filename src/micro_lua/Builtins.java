@@ -0,0 +1,160 @@
+package micro_lua;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Imagem congelada das globais nativas, montada uma vez por processo e
+// compartilhada por todos os estados (ver Globals). As funções não guardam
+// estado: recebem o interpretador que as chamou. Bibliotecas que são tabelas
+// (e portanto mutáveis pelo script) entram como Library e cada estado monta
+// a sua na primeira leitura.
+final class Builtins {
+    // Fábrica de uma biblioteca, montada sob demanda por Globals
+    interface Library {
+        LuaTable create();
+    }
+
+    private static final LuaCallable TABLE_INSERT = new NativeFunction.Arity2() {
+        @Override public Object call2(LuaInterpreter interpreter, Object t, Object value) {
+            if (!(t instanceof LuaTable)) {
+                throw new RuntimeError(null, "First argument must be a table");
+            }
+            LuaTable table = (LuaTable) t;
+            table.set(interpreter, (long) table.rawLength() + 1, value);
+            return null;
+        }
+    };
+
+    private static final LuaCallable TABLE_REMOVE = new NativeFunction.Arity1() {
+        @Override public Object call1(LuaInterpreter interpreter, Object t) {
+            if (!(t instanceof LuaTable)) {
+                throw new RuntimeError(null, "First argument must be a table");
+            }
+            LuaTable table = (LuaTable) t;
+            int length = table.rawLength();
+            if (length == 0) return null;
+            Object value = table.rawgetInt(length);
+            table.rawsetInt(length, null);
+            return value;
+        }
+    };
+
+    static final Map<String, Object> IMAGE;
+
+    static {
+        Map<String, Object> image = new HashMap<>();
+        image.put("print", new LuaCallable() {
+            @Override
+            public int arity() {
+                return -1;
+            }
+
+            @Override
+            public Object call(LuaInterpreter interpreter, List<Object> arguments) {
+                return call(interpreter, arguments.toArray());
+            }
+
+            @Override
+            public Object call1(LuaInterpreter interpreter, Object a) {
+                interpreter.out.println(interpreter.stringify(a));
+                return null;
+            }
+
+            @Override
+            public Object call(LuaInterpreter interpreter, Object[] arguments) {
+                StringBuilder output = new StringBuilder();
+                for (int i = 0; i < arguments.length; i++) {
+                    if (i > 0) output.append("\t");
+
+                    output.append(interpreter.stringify(arguments[i]));
+                }
+                interpreter.out.println(output.toString());
+                return null;
+            }
+        });
+
+        image.put("clock", new NativeFunction.Arity0() {
+            @Override public Object call0(LuaInterpreter interpreter) {
+                return (double)System.currentTimeMillis() / 1000.0;
+            }
+        });
+
+        image.put("type", new NativeFunction.Arity1() {
+            @Override public Object call1(LuaInterpreter interpreter, Object arg) {
+                if (arg == null) return "nil";
+                if (arg instanceof Boolean) return "boolean";
+                if (LuaNumber.isNumber(arg)) return "number";
+                if (Rope.isString(arg)) return "string";
+                if (arg instanceof LuaCallable) return "function";
+                if (arg instanceof LuaTable) return "table";
+                if (arg instanceof Coroutine) return "thread";
+                return "unknown";
+            }
+        });
+
+        image.put("table", (Library) Builtins::tableLibrary);
+        image.put("coroutine", (Library) Coroutine::library);
+
+        image.put("getmetatable", new NativeFunction.Arity1() {
+            @Override public Object call1(LuaInterpreter interpreter, Object arg) {
+                if (arg instanceof LuaTable) {
+                    return ((LuaTable) arg).getMetatable();
+                }
+                return null;
+            }
+        });
+
+        image.put("setmetatable", new NativeFunction.Arity2() {
+            @Override public Object call2(LuaInterpreter interpreter, Object t, Object meta) {
+                if (!(t instanceof LuaTable)) {
+                    throw new RuntimeError(null, "setmetatable: first argument must be a table");
+                }
+                LuaTable table = (LuaTable) t;
+                LuaTable mt = null;
+                if (meta instanceof LuaTable) {
+                    mt = (LuaTable) meta;
+                } else if (meta != null) {
+                    throw new RuntimeError(null, "setmetatable: second argument must be a table or nil");
+                }
+                table.setMetatable(mt);
+                return table;
+            }
+        });
+
+        image.put("rawget", new NativeFunction.Arity2() {
+            @Override public Object call2(LuaInterpreter interpreter, Object t, Object key) {
+                if (!(t instanceof LuaTable)) {
+                    throw new RuntimeError(null, "bad argument #1 to 'rawget' (table expected)");
+                }
+                return ((LuaTable) t).rawget(key);
+            }
+        });
+
+        image.put("rawset", new NativeFunction.Arity3() {
+            @Override public Object call3(LuaInterpreter interpreter, Object t, Object key, Object value) {
+                if (!(t instanceof LuaTable)) {
+                    throw new RuntimeError(null, "bad argument #1 to 'rawset' (table expected)");
+                }
+                ((LuaTable) t).rawset(key, value);
+                return t;
+            }
+        });
+
+        image.put("next", TableIterator.NEXT);
+        image.put("pairs", TableIterator.PAIRS);
+        image.put("ipairs", TableIterator.IPAIRS);
+
+        IMAGE = Collections.unmodifiableMap(image);
+    }
+
+    private Builtins() {}
+
+    private static LuaTable tableLibrary() {
+        LuaTable table = new LuaTable();
+        table.set("insert", TABLE_INSERT);
+        table.set("remove", TABLE_REMOVE);
+        return table;
+    }
+}
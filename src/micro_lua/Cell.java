@@ -0,0 +1,11 @@
+package micro_lua;
+
+// Variável local capturada por closures. O frame que a declara e as closures
+// compartilham a mesma célula, que sobrevive ao fim do escopo.
+final class Cell {
+    Object value;
+
+    Cell(Object value) {
+        this.value = value;
+    }
+}
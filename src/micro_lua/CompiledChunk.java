@@ -0,0 +1,59 @@
+package micro_lua;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.Collections;
+import java.util.List;
+
+import micro_lua.vm.Compiler;
+import micro_lua.vm.Prototype;
+
+// Um script já analisado, resolvido e otimizado, pronto para rodar em
+// qualquer número de estados. As anotações do Resolver (slots, upvalues,
+// tamanhos de frame) ficam nos próprios nós e não mudam depois daqui; o
+// único estado de execução pendurado na árvore são os FieldCaches, que
+// aceitam threads concorrentes. Executar o chunk num LuaState não refaz
+// nenhuma etapa do front-end.
+//
+// Os campos finais garantem que outra thread que receba o chunk veja a
+// árvore já anotada, sem sincronização extra.
+public final class CompiledChunk {
+    private final List<Stmt> statements;
+    private final int frameSize;
+    // Bytecode do mesmo programa, compilado no primeiro pedido
+    private volatile Prototype prototype;
+
+    CompiledChunk(List<Stmt> statements, int frameSize) {
+        this.statements = Collections.unmodifiableList(statements);
+        this.frameSize = frameSize;
+    }
+
+    public List<Stmt> statements() {
+        return statements;
+    }
+
+    int frameSize() {
+        return frameSize;
+    }
+
+    // Tudo o que o Compiler rejeita o Resolver já rejeitou, então um erro
+    // aqui é um bug do compilador, não do script
+    public Prototype prototype() {
+        Prototype main = prototype;
+        if (main == null) {
+            synchronized (this) {
+                main = prototype;
+                if (main == null) {
+                    ByteArrayOutputStream messages = new ByteArrayOutputStream();
+                    ErrorReporter errors = new ErrorReporter(new PrintStream(messages));
+                    main = new Compiler(errors).compile(statements);
+                    if (errors.hadError()) {
+                        throw new IllegalStateException("Compiler rejected a resolved chunk: " + messages.toString().trim());
+                    }
+                    prototype = main;
+                }
+            }
+        }
+        return main;
+    }
+}
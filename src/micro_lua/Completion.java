@@ -0,0 +1,11 @@
+package micro_lua;
+
+// Como um statement terminou. A execução normal devolve null; break e return
+// sobem pelos blocos como valores comuns, sem exceções. O valor de um return
+// fica no interpretador até ser consumido pela chamada da função; num
+// TAIL_CALL, o que fica pendente é a próxima função a executar.
+enum Completion {
+    BREAK,
+    RETURN,
+    TAIL_CALL
+}
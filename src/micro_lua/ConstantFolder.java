@@ -0,0 +1,142 @@
+package micro_lua;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Avalia em tempo de compilação as operações cujos operandos são literais:
+// aritmética (pela mesma semântica de LuaNumber), o prefixo constante de uma
+// cadeia .., comparações, not, menos unário e and/or com o lado esquerdo
+// constante. Operações que gerariam erro (n % 0, tipos inválidos) ficam para
+// o tempo de execução.
+class ConstantFolder extends AstRewriter {
+    // Marca uma operação que não pode ser dobrada
+    private static final Object UNKNOWN = new Object();
+
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr) {
+        Expr.Binary binary = (Expr.Binary) super.visitBinaryExpr(expr);
+        if (!isConstant(binary.left) || !isConstant(binary.right)) return binary;
+
+        Object result = fold(binary.operator, valueOf(binary.left), valueOf(binary.right));
+        return result == UNKNOWN ? binary : new Expr.Literal(result);
+    }
+
+    // Junta o prefixo constante da cadeia. Depois do primeiro operando não
+    // constante a ordem importa (__concat), então o resto fica como está
+    @Override
+    public Expr visitConcatExpr(Expr.Concat expr) {
+        Expr.Concat concat = (Expr.Concat) super.visitConcatExpr(expr);
+        List<Expr> parts = concat.parts;
+        int prefix = 0;
+        while (prefix < parts.size() && isConstant(parts.get(prefix))
+                && isText(valueOf(parts.get(prefix)))) {
+            prefix++;
+        }
+        if (prefix < 2) return concat;
+
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < prefix; i++) {
+            text.append(toText(valueOf(parts.get(i))));
+        }
+        Expr literal = new Expr.Literal(text.toString());
+        if (prefix == parts.size()) return literal;
+
+        List<Expr> rest = new ArrayList<>();
+        rest.add(literal);
+        rest.addAll(parts.subList(prefix, parts.size()));
+        return new Expr.Concat(rest, concat.operator);
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr) {
+        Expr.Unary unary = (Expr.Unary) super.visitUnaryExpr(expr);
+        if (!isConstant(unary.right)) return unary;
+
+        Object right = valueOf(unary.right);
+        switch (unary.operator.type) {
+            case NOT:
+                return new Expr.Literal(!LuaInterpreter.isTruthy(right));
+            case MINUS:
+                if (right instanceof Long) return new Expr.Literal(-(Long) right);
+                if (right instanceof Double) return new Expr.Literal(-(Double) right);
+                return unary;
+            default:
+                return unary;
+        }
+    }
+
+    @Override
+    public Expr visitLogicalExpr(Expr.Logical expr) {
+        Expr.Logical logical = (Expr.Logical) super.visitLogicalExpr(expr);
+        if (!isConstant(logical.left)) return logical;
+
+        boolean truthy = LuaInterpreter.isTruthy(valueOf(logical.left));
+        if (logical.operator.type == TokenType.OR) {
+            return truthy ? logical.left : logical.right;
+        }
+        return truthy ? logical.right : logical.left;
+    }
+
+    @Override
+    public Expr visitGroupingExpr(Expr.Grouping expr) {
+        Expr.Grouping grouping = (Expr.Grouping) super.visitGroupingExpr(expr);
+        return isConstant(grouping.expression) ? grouping.expression : grouping;
+    }
+
+    static boolean isConstant(Expr expr) {
+        return expr instanceof Expr.Literal
+            || expr instanceof Expr.IntLiteral
+            || expr instanceof Expr.FloatLiteral;
+    }
+
+    static Object valueOf(Expr expr) {
+        if (expr instanceof Expr.IntLiteral) return ((Expr.IntLiteral) expr).value;
+        if (expr instanceof Expr.FloatLiteral) return ((Expr.FloatLiteral) expr).value;
+        return ((Expr.Literal) expr).value;
+    }
+
+    private static Object fold(Token operator, Object left, Object right) {
+        switch (operator.type) {
+            case BANG_EQUAL:
+            case TILDE_EQUAL: return !LuaInterpreter.isEqual(left, right);
+            case EQUAL_EQUAL: return LuaInterpreter.isEqual(left, right);
+            case PLUS:
+                if (left instanceof String && right instanceof String) {
+                    return (String) left + (String) right;
+                }
+                break;
+            default:
+                break;
+        }
+
+        if (!LuaNumber.isNumber(left) || !LuaNumber.isNumber(right)) return UNKNOWN;
+        switch (operator.type) {
+            case GREATER: return LuaNumber.lessThan(right, left);
+            case GREATER_EQUAL: return LuaNumber.lessEqual(right, left);
+            case LESS: return LuaNumber.lessThan(left, right);
+            case LESS_EQUAL: return LuaNumber.lessEqual(left, right);
+            case PERCENT:
+                if (left instanceof Long && right instanceof Long && (Long) right == 0) {
+                    return UNKNOWN;
+                }
+                return LuaNumber.arith(operator, left, right);
+            case PLUS:
+            case MINUS:
+            case STAR:
+            case SLASH:
+            case CARET:
+                return LuaNumber.arith(operator, left, right);
+            default:
+                return UNKNOWN;
+        }
+    }
+
+    private static boolean isText(Object value) {
+        return value instanceof String || LuaNumber.isNumber(value);
+    }
+
+    private static String toText(Object value) {
+        if (value instanceof Double) return LuaNumber.formatFloat((Double) value);
+        return value.toString();
+    }
+}
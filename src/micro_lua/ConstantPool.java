@@ -0,0 +1,32 @@
+package micro_lua;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// Constantes das tabelas de dados (Expr.PackedTable) de um script, cada valor
+// uma vez só; os nós guardam índices. Só o Parser acrescenta, e trim() ao fim
+// da análise solta o índice de busca antes de o script ser compartilhado
+public final class ConstantPool {
+    private Object[] values = new Object[16];
+    private int size = 0;
+    private Map<Object, Integer> index = new HashMap<>();
+
+    int add(Object value) {
+        Integer existing = index.get(value);
+        if (existing != null) return existing;
+        if (size == values.length) values = Arrays.copyOf(values, size * 2);
+        values[size] = value;
+        index.put(value, size);
+        return size++;
+    }
+
+    void trim() {
+        values = Arrays.copyOf(values, size);
+        index = null;
+    }
+
+    public Object get(int i) {
+        return values[i];
+    }
+}
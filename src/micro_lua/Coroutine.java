@@ -0,0 +1,189 @@
+package micro_lua;
+
+import micro_lua.vm.LuaClosure;
+
+// Corrotinas (biblioteca coroutine). As de funções da VM são suspensas sem
+// recursão Java: seus frames ficam na pilha de chamadas explícita de uma VM
+// própria, e resume/yield só trocam de laço de despacho. As demais (funções
+// do interpretador de árvore e nativas) rodam numa thread própria, virtual
+// quando o JDK tem, que passa o controle ao chamador de resume e o recebe de
+// volta (ThreadCoroutine).
+//
+// As funções devolvem um único valor, então resume devolve o valor passado
+// a yield (ou o retornado pelo corpo) e um erro dentro da corrotina a mata e
+// continua no chamador de resume, como em coroutine.wrap. Retomar uma
+// corrotina morta ou em execução dá false em resume e erro em wrap.
+public abstract class Coroutine {
+    // Linha de execução de uma corrotina, como o interpretador em que ela
+    // roda a enxerga: yield suspende a que estiver em LuaInterpreter.fiber
+    public interface Fiber {
+        Object yield(LuaInterpreter interpreter, Object value);
+    }
+
+    protected static final int SUSPENDED = 0;
+    protected static final int RUNNING = 1;
+    protected static final int DEAD = 2;
+
+    // Só o lado de quem chama resume escreve aqui
+    protected int status = SUSPENDED;
+
+    public static final LuaCallable YIELD = new NativeFunction.Variadic() {
+        @Override public Object call0(LuaInterpreter interpreter) {
+            return yieldCurrent(interpreter, null);
+        }
+
+        @Override public Object call1(LuaInterpreter interpreter, Object value) {
+            return yieldCurrent(interpreter, value);
+        }
+
+        @Override public Object call(LuaInterpreter interpreter, Object[] arguments) {
+            if (arguments.length > 1) {
+                throw new RuntimeError(null, "Expected at most 1 argument to 'yield' but got " + arguments.length + ".");
+            }
+            return yieldCurrent(interpreter, arguments.length == 0 ? null : arguments[0]);
+        }
+    };
+
+    private static final LuaCallable CREATE = new NativeFunction.Arity1() {
+        @Override public Object call1(LuaInterpreter interpreter, Object body) {
+            return create(interpreter, body);
+        }
+    };
+
+    // Como no Lua, retomar uma corrotina morta ou que não está suspensa não
+    // é um erro: resume devolve false (a mensagem não vem junto, porque as
+    // funções devolvem um valor só; coroutine.status diz o motivo)
+    private static final LuaCallable RESUME = new NativeFunction.Variadic() {
+        @Override public Object call1(LuaInterpreter interpreter, Object co) {
+            Coroutine coroutine = coroutine(co, "resume");
+            return coroutine.status != SUSPENDED ? Boolean.FALSE : coroutine.resume(interpreter, 0, null);
+        }
+
+        @Override public Object call2(LuaInterpreter interpreter, Object co, Object value) {
+            Coroutine coroutine = coroutine(co, "resume");
+            return coroutine.status != SUSPENDED ? Boolean.FALSE : coroutine.resume(interpreter, 1, value);
+        }
+
+        @Override public Object call(LuaInterpreter interpreter, Object[] arguments) {
+            if (arguments.length == 1) return call1(interpreter, arguments[0]);
+            if (arguments.length == 2) return call2(interpreter, arguments[0], arguments[1]);
+            throw new RuntimeError(null, "Expected 1 or 2 arguments to 'resume' but got " + arguments.length + ".");
+        }
+    };
+
+    private static final LuaCallable STATUS = new NativeFunction.Arity1() {
+        @Override public Object call1(LuaInterpreter interpreter, Object co) {
+            return coroutine(co, "status").status(interpreter);
+        }
+    };
+
+    private static final LuaCallable WRAP = new NativeFunction.Arity1() {
+        @Override public Object call1(LuaInterpreter interpreter, Object body) {
+            Coroutine co = create(interpreter, body);
+            return new NativeFunction.Variadic() {
+                @Override public Object call0(LuaInterpreter interpreter) {
+                    return co.resume(interpreter, 0, null);
+                }
+
+                @Override public Object call1(LuaInterpreter interpreter, Object value) {
+                    return co.resume(interpreter, 1, value);
+                }
+
+                @Override public Object call(LuaInterpreter interpreter, Object[] arguments) {
+                    if (arguments.length > 1) {
+                        throw new RuntimeError(null, "Expected at most 1 argument but got " + arguments.length + ".");
+                    }
+                    return co.resume(interpreter, arguments.length, arguments.length == 0 ? null : arguments[0]);
+                }
+
+                @Override public String toString() {
+                    return "<fn wrap>";
+                }
+            };
+        }
+    };
+
+    static LuaTable library() {
+        LuaTable table = new LuaTable();
+        table.set("create", CREATE);
+        table.set("resume", RESUME);
+        table.set("yield", YIELD);
+        table.set("status", STATUS);
+        table.set("wrap", WRAP);
+        return table;
+    }
+
+    static Coroutine create(LuaInterpreter interpreter, Object body) {
+        if (body instanceof LuaClosure) {
+            return ((LuaClosure) body).newCoroutine();
+        }
+        if (!(body instanceof LuaCallable)) {
+            throw new RuntimeError(null, "bad argument #1 to 'create' (function expected)");
+        }
+        return new ThreadCoroutine(interpreter, (LuaCallable) body);
+    }
+
+    private static Coroutine coroutine(Object value, String name) {
+        if (!(value instanceof Coroutine)) {
+            throw new RuntimeError(null, "bad argument #1 to '" + name + "' (coroutine expected)");
+        }
+        return (Coroutine) value;
+    }
+
+    // O Fiber é buscado num método à parte para que o frame Java que espera
+    // dentro de yield não guarde a corrotina (ver ThreadCoroutine)
+    static Object yieldCurrent(LuaInterpreter interpreter, Object value) {
+        return fiber(interpreter).yield(interpreter, value);
+    }
+
+    private static Fiber fiber(LuaInterpreter interpreter) {
+        Fiber fiber = interpreter.fiber;
+        if (fiber == null) throw new RuntimeError(null, "attempt to yield from outside a coroutine");
+        return fiber;
+    }
+
+    // Roda a corrotina até o próximo yield ou o fim do corpo. argc é 0 ou 1:
+    // na primeira vez o valor é o argumento do corpo, depois o resultado do yield
+    public final Object resume(LuaInterpreter interpreter, int argc, Object value) {
+        if (status == DEAD) throw new RuntimeError(null, "cannot resume dead coroutine");
+        if (status == RUNNING) throw new RuntimeError(null, "cannot resume non-suspended coroutine");
+        status = RUNNING;
+        try {
+            Object result = transfer(interpreter, argc, value);
+            if (status == RUNNING) status = SUSPENDED;
+            return result;
+        } catch (RuntimeError error) {
+            status = DEAD;
+            throw error;
+        }
+    }
+
+    // Passa o controle à corrotina e devolve o que ela entregar; marca
+    // status = DEAD se o corpo terminou
+    protected abstract Object transfer(LuaInterpreter interpreter, int argc, Object value);
+
+    // Linha de execução que fica em LuaInterpreter.fiber enquanto a corrotina roda
+    protected abstract Fiber fiber();
+
+    // Para corrotinas que rodam no próprio interpretador de quem as retoma:
+    // instala a linha de execução e devolve a anterior, a restaurar depois
+    protected static Fiber switchFiber(LuaInterpreter interpreter, Fiber fiber) {
+        Fiber previous = interpreter.fiber;
+        interpreter.fiber = fiber;
+        return previous;
+    }
+
+    public String status(LuaInterpreter interpreter) {
+        switch (status) {
+            case SUSPENDED: return "suspended";
+            case DEAD: return "dead";
+            // "normal": rodando, mas esperando uma corrotina que ela retomou
+            default: return interpreter.fiber == fiber() ? "running" : "normal";
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "<thread>";
+    }
+}
@@ -0,0 +1,46 @@
+package micro_lua;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Remove código que nunca executa: ramos de if com condição constante,
+// while com condição falsa e statements depois de return/break no mesmo bloco.
+// Roda depois do ConstantFolder, que transforma condições como 1 < 2 em literais.
+class DeadCodeEliminator extends AstRewriter {
+
+    @Override
+    protected List<Stmt> rewrite(List<Stmt> statements) {
+        for (int i = 0; i < statements.size() - 1; i++) {
+            Stmt stmt = statements.get(i);
+            if (stmt instanceof Stmt.Return || stmt instanceof Stmt.Break) {
+                statements = new ArrayList<>(statements.subList(0, i + 1));
+                break;
+            }
+        }
+        return super.rewrite(statements);
+    }
+
+    @Override
+    public Stmt visitIfStmt(Stmt.If stmt) {
+        Stmt.If rewritten = (Stmt.If) super.visitIfStmt(stmt);
+        if (!ConstantFolder.isConstant(rewritten.condition)) return rewritten;
+
+        // O ramo que sobra entra no lugar do if como está: as suas locais já
+        // têm slots no frame da função, dados pelo Resolver, e o bloco (ou o if
+        // do elseif) continua delimitando o escopo delas no compilador da VM
+        if (LuaInterpreter.isTruthy(ConstantFolder.valueOf(rewritten.condition))) {
+            return rewritten.thenBranch;
+        }
+        return rewritten.elseBranch;
+    }
+
+    @Override
+    public Stmt visitWhileStmt(Stmt.While stmt) {
+        Stmt.While rewritten = (Stmt.While) super.visitWhileStmt(stmt);
+        if (ConstantFolder.isConstant(rewritten.condition)
+                && !LuaInterpreter.isTruthy(ConstantFolder.valueOf(rewritten.condition))) {
+            return null;
+        }
+        return rewritten;
+    }
+}
@@ -0,0 +1,61 @@
+package micro_lua;
+
+import java.io.PrintStream;
+
+// Destino dos erros de um estado: os de compilação (Scanner, Parser,
+// Resolver, Compiler) e os de execução. Cada LuaState tem o seu, então
+// scripts em estados diferentes não veem os erros uns dos outros.
+public class ErrorReporter {
+    private final PrintStream err;
+    private boolean hadError = false;
+    private boolean hadRuntimeError = false;
+
+    public ErrorReporter(PrintStream err) {
+        this.err = err;
+    }
+
+    public boolean hadError() {
+        return hadError;
+    }
+
+    public boolean hadRuntimeError() {
+        return hadRuntimeError;
+    }
+
+    public void reset() {
+        hadError = false;
+        hadRuntimeError = false;
+    }
+
+    public void error(int line, String message) {
+        report(line, "", message);
+    }
+
+    public void error(Token token, String message) {
+        if (token.type == TokenType.EOF) {
+            report(token.line, " at end", message);
+        } else {
+            report(token.line, " at '" + token.text() + "'", message);
+        }
+    }
+
+    // Erro fora de uma linha do fonte (arquivo, chunk inválido...)
+    public void error(String message) {
+        err.println("Error: " + message);
+        hadError = true;
+    }
+
+    public void runtimeError(RuntimeError error) {
+        if (error.token != null) {
+            err.println(error.getMessage() + "\n[line " + error.token.line + "]");
+        } else {
+            err.println(error.getMessage());
+        }
+        hadRuntimeError = true;
+    }
+
+    private void report(int line, String where, String message) {
+        err.println("[line " + line + "] Error" + where + ": " + message);
+        hadError = true;
+    }
+}
@@ -13,8 +13,14 @@ public abstract class Expr {
         R visitUnaryExpr(Unary expr);
         R visitVariableExpr(Variable expr);
         R visitTableExpr(Table expr);
+        R visitPackedTableExpr(PackedTable expr);
         R visitTableIndexExpr(TableIndex expr);
         R visitTableFieldExpr(TableField expr);
+        R visitTableAssignExpr(TableAssign expr);
+        R visitFunctionExpr(Function expr);
+        R visitIntLiteralExpr(IntLiteral expr);
+        R visitFloatLiteralExpr(FloatLiteral expr);
+        R visitConcatExpr(Concat expr);
     }
 
     public abstract <R> R accept(Visitor<R> visitor);
@@ -22,6 +28,13 @@ public abstract class Expr {
     public static class Assign extends Expr {
         public final Token name;
         public final Expr value;
+        // Preenchidos pelo Resolver; depth == -1 indica variável global.
+        // Variáveis de funções envolventes são lidas pelo upvalue de índice
+        // upvalue; cell indica uma local capturada, guardada numa Cell.
+        public int depth = -1;
+        public int slot;
+        int upvalue = -1;
+        boolean cell;
 
         public Assign(Token name, Expr value) {
             this.name = name;
@@ -34,6 +47,23 @@ public abstract class Expr {
         }
     }
 
+    // Cadeia a .. b .. c: o parser junta os operandos num só nó, avaliados da
+    // esquerda para a direita e concatenados num único buffer
+    public static class Concat extends Expr {
+        public final List<Expr> parts;
+        public final Token operator;
+
+        public Concat(List<Expr> parts, Token operator) {
+            this.parts = parts;
+            this.operator = operator;
+        }
+
+        @Override
+        public <R> R accept(Visitor<R> visitor) {
+            return visitor.visitConcatExpr(this);
+        }
+    }
+
     public static class Binary extends Expr {
         public final Expr left;
         public final Token operator;
@@ -81,6 +111,48 @@ public abstract class Expr {
         }
     }
 
+    // Literais numéricos já tipados (criados pelo LiteralSpecializer): o valor
+    // fica num primitivo e é entregue ao interpretador sem boxing
+    public static class IntLiteral extends Expr {
+        public final long value;
+
+        public IntLiteral(long value) {
+            this.value = value;
+        }
+
+        @Override
+        public <R> R accept(Visitor<R> visitor) {
+            return visitor.visitIntLiteralExpr(this);
+        }
+    }
+
+    public static class FloatLiteral extends Expr {
+        public final double value;
+
+        public FloatLiteral(double value) {
+            this.value = value;
+        }
+
+        @Override
+        public <R> R accept(Visitor<R> visitor) {
+            return visitor.visitFloatLiteralExpr(this);
+        }
+    }
+
+    // Função anônima: function (params) ... end
+    public static class Function extends Expr {
+        public final Stmt.Function declaration;
+
+        public Function(Stmt.Function declaration) {
+            this.declaration = declaration;
+        }
+
+        @Override
+        public <R> R accept(Visitor<R> visitor) {
+            return visitor.visitFunctionExpr(this);
+        }
+    }
+
     public static class Grouping extends Expr {
         public final Expr expression;
 
@@ -128,6 +200,13 @@ public abstract class Expr {
 
     public static class Variable extends Expr {
         public final Token name;
+        // Preenchidos pelo Resolver; depth == -1 indica variável global.
+        // Variáveis de funções envolventes são lidas pelo upvalue de índice
+        // upvalue; cell indica uma local capturada, guardada numa Cell.
+        public int depth = -1;
+        public int slot;
+        int upvalue = -1;
+        boolean cell;
 
         public Variable(Token name) {
             this.name = name;
@@ -139,13 +218,26 @@ public abstract class Expr {
         }
     }
 
+    // Os campos ficam em dois arrays paralelos do tamanho exato, sem um
+    // objeto por campo; keys[i] == null marca um campo sem chave
     public static class Table extends Expr {
         public final Token brace;
-        public final List<Field> fields;
+        public final Expr[] keys;
+        public final Expr[] values;
+        // Quantidade de campos sem chave e com chave, usadas para pré-dimensionar a tabela
+        public final int arrayCount;
+        public final int keyedCount;
 
-        public Table(Token brace, List<Field> fields) {
+        public Table(Token brace, Expr[] keys, Expr[] values) {
             this.brace = brace;
-            this.fields = fields;
+            this.keys = keys;
+            this.values = values;
+            int count = 0;
+            for (Expr key : keys) {
+                if (key == null) count++;
+            }
+            this.arrayCount = count;
+            this.keyedCount = keys.length - count;
         }
 
         @Override
@@ -154,13 +246,35 @@ public abstract class Expr {
         }
     }
 
-    public static class Field {
-        public final Expr key;
-        public final Expr value;
+    // Construtor de tabela só com constantes, comum nos scripts de dados, sem
+    // um nó por campo: ele e as tabelas aninhadas ficam em pré-ordem num
+    // único int[] (TablePacker), os valores num ConstantPool e as linhas das
+    // chaves das aninhadas em lines, como deltas. view() remonta o Table
+    // equivalente para quem precisa dos nós
+    public static class PackedTable extends Expr {
+        public final Token brace;
+        final int[] code;
+        final ConstantPool pool;
+        final byte[] lines;
+        public final int arrayCount;
+        public final int keyedCount;
 
-        public Field(Expr key, Expr value) {
-            this.key = key;
-            this.value = value;
+        PackedTable(Token brace, int[] code, ConstantPool pool, byte[] lines) {
+            this.brace = brace;
+            this.code = code;
+            this.pool = pool;
+            this.lines = lines;
+            this.arrayCount = code[0];
+            this.keyedCount = code[1];
+        }
+
+        public Table view() {
+            return TablePacker.view(this);
+        }
+
+        @Override
+        public <R> R accept(Visitor<R> visitor) {
+            return visitor.visitPackedTableExpr(this);
         }
     }
 
@@ -184,10 +298,13 @@ public abstract class Expr {
     public static class TableField extends Expr {
         public final Expr table;
         public final Token field;
+        // Cache inline deste acesso, compartilhado com o bytecode compilado dele
+        public final FieldCache cache;
 
         public TableField(Expr table, Token field) {
             this.table = table;
             this.field = field;
+            this.cache = new FieldCache(field.lexeme);
         }
 
         @Override
@@ -195,5 +312,25 @@ public abstract class Expr {
             return visitor.visitTableFieldExpr(this);
         }
     }
+
+    // t[k] = v e t.k = v (neste caso key é um literal string)
+    public static class TableAssign extends Expr {
+        public final Expr table;
+        public final Expr key;
+        public final Token token;
+        public final Expr value;
+
+        public TableAssign(Expr table, Expr key, Token token, Expr value) {
+            this.table = table;
+            this.key = key;
+            this.token = token;
+            this.value = value;
+        }
+
+        @Override
+        public <R> R accept(Visitor<R> visitor) {
+            return visitor.visitTableAssignExpr(this);
+        }
+    }
     
 }
\ No newline at end of file
@@ -0,0 +1,102 @@
+package micro_lua;
+
+import java.util.Arrays;
+
+// Cache inline de um acesso t.nome. Guarda até MAX_ENTRIES shapes de
+// receptor já vistos e onde o campo foi encontrado: na própria tabela ou
+// seguindo uma cadeia de __index que são tabelas. Cada salto da cadeia é
+// validado por identidade (shape, metatabela, shape da metatabela e valor
+// do __index), então nenhuma busca por string acontece no acerto.
+public final class FieldCache {
+    private static final int MAX_ENTRIES = 4;
+    private static final int MAX_DEPTH = 4;
+
+    private static final Entry[] NO_ENTRIES = new Entry[0];
+
+    public final String key;
+    // O mesmo nó ou Prototype pode rodar em vários estados ao mesmo tempo:
+    // o array nunca é alterado depois de publicado, só trocado por uma cópia
+    // maior. Duas threads acrescentando juntas perdem uma entrada, nada mais
+    private volatile Entry[] entries = NO_ENTRIES;
+
+    public FieldCache(String key) {
+        this.key = key;
+    }
+
+    public Object get(LuaInterpreter interpreter, LuaTable table) {
+        Entry[] current = entries;
+        for (int i = 0; i < current.length; i++) {
+            Object value = current[i].lookup(table);
+            if (value != null) return value;
+        }
+
+        Object value = table.get(interpreter, key);
+        if (value != null && current.length < MAX_ENTRIES) {
+            Entry entry = build(table, 0);
+            if (entry != null) {
+                Entry[] grown = Arrays.copyOf(current, current.length + 1);
+                grown[current.length] = entry;
+                entries = grown;
+            }
+        }
+        return value;
+    }
+
+    private Entry build(LuaTable table, int depth) {
+        Shape shape = table.shape;
+        if (shape == null || depth > MAX_DEPTH) return null;
+
+        int slot = shape.indexOf(key);
+        if (slot >= 0) {
+            return table.slots[slot] != null ? new Entry(shape, slot, null, null, -1, null, null) : null;
+        }
+
+        LuaTable metatable = table.metatable;
+        if (metatable == null || metatable.shape == null) return null;
+        int indexSlot = metatable.shape.indexOf("__index");
+        if (indexSlot < 0 || !(metatable.slots[indexSlot] instanceof LuaTable)) return null;
+        LuaTable prototype = (LuaTable) metatable.slots[indexSlot];
+        Entry next = build(prototype, depth + 1);
+        if (next == null) return null;
+        return new Entry(shape, -1, metatable, metatable.shape, indexSlot, prototype, next);
+    }
+
+    private static final class Entry {
+        final Shape shape;
+        // slot >= 0: o campo está na própria tabela
+        final int slot;
+        // Caso contrário, o campo vem do __index (uma tabela) da metatabela
+        final LuaTable metatable;
+        final Shape metaShape;
+        final int indexSlot;
+        final LuaTable prototype;
+        final Entry next;
+
+        Entry(Shape shape, int slot, LuaTable metatable, Shape metaShape,
+              int indexSlot, LuaTable prototype, Entry next) {
+            this.shape = shape;
+            this.slot = slot;
+            this.metatable = metatable;
+            this.metaShape = metaShape;
+            this.indexSlot = indexSlot;
+            this.prototype = prototype;
+            this.next = next;
+        }
+
+        // Devolve null se alguma guarda falhar ou o valor for nil
+        Object lookup(LuaTable table) {
+            Entry entry = this;
+            while (true) {
+                if (table.shape != entry.shape) return null;
+                if (entry.slot >= 0) return table.slots[entry.slot];
+                LuaTable metatable = table.metatable;
+                if (metatable != entry.metatable || metatable.shape != entry.metaShape
+                        || metatable.slots[entry.indexSlot] != entry.prototype) {
+                    return null;
+                }
+                table = entry.prototype;
+                entry = entry.next;
+            }
+        }
+    }
+}
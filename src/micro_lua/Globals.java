@@ -0,0 +1,56 @@
+package micro_lua;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Globais de um estado. Começam lendo direto a imagem congelada de Builtins,
+// compartilhada por todos os estados, e só copiam a imagem para um HashMap
+// próprio na primeira escrita: criar um estado não aloca nada além deste
+// objeto. Uma Library da imagem é montada quando lida e passa a ser uma
+// global comum do estado.
+final class Globals extends AbstractMap<String, Object> {
+    private Map<String, Object> map = Builtins.IMAGE;
+    private boolean shared = true;
+
+    @Override
+    public Object get(Object name) {
+        Object value = map.get(name);
+        if (value instanceof Builtins.Library) {
+            value = ((Builtins.Library) value).create();
+            put((String) name, value);
+        }
+        return value;
+    }
+
+    @Override
+    public boolean containsKey(Object name) {
+        return map.containsKey(name);
+    }
+
+    @Override
+    public Object put(String name, Object value) {
+        if (shared) {
+            map = new HashMap<>(map);
+            shared = false;
+        }
+        return map.put(name, value);
+    }
+
+    // Só para listar as globais (:env no REPL): monta as bibliotecas pendentes
+    @Override
+    public Set<Entry<String, Object>> entrySet() {
+        List<String> libraries = new ArrayList<>();
+        for (Entry<String, Object> entry : map.entrySet()) {
+            if (entry.getValue() instanceof Builtins.Library) libraries.add(entry.getKey());
+        }
+        for (String name : libraries) {
+            get(name);
+        }
+        return Collections.unmodifiableMap(map).entrySet();
+    }
+}
@@ -0,0 +1,25 @@
+package micro_lua;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// Troca os literais numéricos genéricos pelos nós tipados IntLiteral e
+// FloatLiteral, que o interpretador entrega sem boxing nem testes de tipo.
+// Deve ser a última etapa, para pegar também os resultados das dobras.
+// Como os literais do Parser, os nós tipados de mesmo valor são compartilhados.
+class LiteralSpecializer extends AstRewriter {
+    private final Map<Object, Expr> specialized = new HashMap<>();
+
+    @Override
+    public Expr visitLiteralExpr(Expr.Literal expr) {
+        if (!LuaNumber.isNumber(expr.value)) return expr;
+        Expr typed = specialized.get(expr.value);
+        if (typed == null) {
+            typed = expr.value instanceof Long
+                ? new Expr.IntLiteral((Long) expr.value)
+                : new Expr.FloatLiteral((Double) expr.value);
+            specialized.put(expr.value, typed);
+        }
+        return typed;
+    }
+}
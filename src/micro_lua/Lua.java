@@ -3,40 +3,126 @@ package micro_lua;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.nio.charset.Charset;
-import java.nio.file.Files;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.List;
+import java.nio.file.StandardOpenOption;
 
+import micro_lua.vm.Chunk;
+import micro_lua.vm.Prototype;
+import micro_lua.vm.VM;
+
+// Linha de comando. Só as opções são estáticas; o estado de cada execução
+// (globais, erros, saída) fica num LuaState
 public class Lua {
-    private static final LuaInterpreter interpreter = new LuaInterpreter();
-    
-    static boolean hadError = false;
-    static boolean hadRuntimeError = false;
+    // --vm: executa pelo compilador de bytecode em vez do interpretador de árvore
+    private static boolean useVm = false;
+    // --bytecode: apenas lista o bytecode gerado
+    private static boolean dumpBytecode = false;
+    // --ast: apenas imprime a AST depois do otimizador
+    private static boolean dumpAst = false;
+    // --max-stack=N: registradores disponíveis à VM; limita a profundidade de recursão
+    private static int maxStack = VM.DEFAULT_MAX_STACK;
+    // --cache=DIR: chunks compilados, por hash do fonte; os scripts rodam na VM
+    private static Path cacheDir = null;
+    // --compile: só grava o .mluac do script (no cache, se houver, ou ao lado dele)
+    private static boolean compileOnly = false;
+    // --serve: modo servidor, com pedidos pela entrada padrão (ver Server)
+    private static boolean serve = false;
+    // --workers=N: pedidos executados ao mesmo tempo no modo servidor
+    private static int workers = Runtime.getRuntime().availableProcessors();
+    // --timeout=MS: tempo máximo de cada pedido no modo servidor
+    private static long timeoutMillis = 5000;
 
     public static void main(String[] args) throws IOException {
-        if (args.length > 1) {
-            System.out.println("Usage: mlua [script]");
+        String script = null;
+        for (String arg : args) {
+            if (arg.equals("--vm")) {
+                useVm = true;
+            } else if (arg.equals("--bytecode")) {
+                dumpBytecode = true;
+            } else if (arg.equals("--ast")) {
+                dumpAst = true;
+            } else if (arg.matches("--max-stack=[0-9]{1,9}")) {
+                maxStack = Integer.parseInt(arg.substring("--max-stack=".length()));
+            } else if (arg.startsWith("--cache=") && arg.length() > "--cache=".length()) {
+                cacheDir = Paths.get(arg.substring("--cache=".length()));
+            } else if (arg.equals("--compile")) {
+                compileOnly = true;
+            } else if (arg.equals("--serve")) {
+                serve = true;
+            } else if (arg.matches("--workers=[1-9][0-9]{0,5}")) {
+                workers = Integer.parseInt(arg.substring("--workers=".length()));
+            } else if (arg.matches("--timeout=[1-9][0-9]{0,9}")) {
+                timeoutMillis = Long.parseLong(arg.substring("--timeout=".length()));
+            } else if (arg.startsWith("--") || script != null) {
+                System.out.println("Usage: mlua [--vm] [--bytecode] [--ast] [--max-stack=N] [--cache=DIR] [--compile] [--serve [--workers=N] [--timeout=MS]] [script]");
+                System.exit(64);
+            } else {
+                script = arg;
+            }
+        }
+
+        if (compileOnly && script == null) {
+            System.out.println("Usage: mlua --compile [--cache=DIR] script");
             System.exit(64);
-        } else if (args.length == 1) {
-            runFile(args[0]);
+        }
+
+        if (serve) {
+            if (script != null) {
+                System.out.println("Usage: mlua --serve [--vm] [--workers=N] [--timeout=MS]");
+                System.exit(64);
+            }
+            serve();
+        } else if (script != null) {
+            runFile(script);
         } else {
             runPrompt();
         }
     }
     
     private static void runFile(String path) throws IOException {
-        byte[] bytes = Files.readAllBytes(Paths.get(path));
-        run(new String(bytes, Charset.defaultCharset()));
+        // O arquivo é mapeado em vez de lido: o Scanner percorre os bytes
+        // direto da page cache, sem cópia nem decodificação do texto inteiro
+        MappedByteBuffer source;
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            source = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        LuaState state = newState();
+        if (Chunk.isChunk(source)) {
+            runChunk(state, Paths.get(path));
+        } else if (compileOnly) {
+            compileFile(state, path, source);
+        } else if (cacheDir != null && !dumpAst) {
+            runCached(state, source);
+        } else {
+            run(state, source);
+        }
         
-        if (hadError) System.exit(65);       
-        if (hadRuntimeError) System.exit(70);  
+        if (state.errors().hadError()) System.exit(65);       
+        if (state.errors().hadRuntimeError()) System.exit(70);  
+    }
+
+    private static LuaState newState() {
+        return new LuaState(System.out, System.err, maxStack);
     }
     
+    private static void serve() throws IOException {
+        Server server = new Server(System.out, workers, timeoutMillis, useVm, maxStack);
+        try {
+            server.serve(System.in);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
     private static void runPrompt() throws IOException {
         BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
         StringBuilder buffer = new StringBuilder();
-        LuaInterpreter interpreterInstance = interpreter;
+        LuaState state = newState();
 
         System.out.println("MicroLua REPL (digite ':exit' para sair, ':reset' para resetar, ':env' para variáveis, ':help' para ajuda)");
         
@@ -50,13 +136,13 @@ public class Lua {
 
             if (line.equals(":exit")) break;
             if (line.equals(":reset")) {
-                interpreterInstance = new LuaInterpreter();
+                state = newState();
                 buffer.setLength(0);
                 System.out.println("Ambiente resetado.");
                 continue;
             }
             if (line.equals(":env")) {
-                System.out.println("Variáveis globais: " + interpreterInstance.globals);
+                System.out.println("Variáveis globais: " + state.globals());
                 continue;
             }
             if (line.equals(":help")) {
@@ -74,28 +160,7 @@ public class Lua {
             if (isStatementComplete(buffer.toString())) {
                 try {
                     String source = buffer.toString();
-                    hadError = false;
-                    hadRuntimeError = false;
-                    
-                    Scanner scanner = new Scanner(source);
-                    List<Token> tokens = scanner.scanTokens();
-                    Parser parser = new Parser(tokens);
-                    List<Stmt> statements = parser.parse();
-
-                    if (hadError) {
-                        buffer.setLength(0);
-                        continue;
-                    }
-
-                    Resolver resolver = new Resolver(interpreterInstance);
-                    resolver.resolve(statements);
-
-                    if (hadError) {
-                        buffer.setLength(0);
-                        continue;
-                    }
-
-                    interpreterInstance.interpret(statements);
+                    run(state, ByteBuffer.wrap(source.getBytes(StandardCharsets.UTF_8)));
                     buffer.setLength(0);
                 } catch (Exception e) {
                     System.err.println("Erro inesperado: " + e.getMessage());
@@ -175,44 +240,75 @@ public class Lua {
         System.out.println("  :clear  - Limpa o buffer de entrada atual");
         System.out.println("  :help   - Mostra esta ajuda");
     }
-    private static void run(String source) {
-        Scanner scanner = new Scanner(source);
-        List<Token> tokens = scanner.scanTokens();
-        
-        if (hadError) return;
-        
-        Parser parser = new Parser(tokens);
-        List<Stmt> statements = parser.parse();
-        
-        if (hadError) return;
-        
-        Resolver resolver = new Resolver(interpreter);
-        resolver.resolve(statements);
-        
-        if (hadError) return;
-        
-        interpreter.interpret(statements);
+    private static void run(LuaState state, ByteBuffer source) {
+        if (dumpAst) {
+            CompiledChunk chunk = state.load(source);
+            if (chunk != null) System.out.print(AstPrinter.print(chunk.statements()));
+        } else if (useVm || dumpBytecode) {
+            Prototype main = state.compile(source);
+            if (main != null) runPrototype(state, main);
+        } else {
+            state.run(source);
+        }
     }
-    
-    public static void error(int line, String message) {
-        report(line, "", message);
+
+    private static void compileFile(LuaState state, String path, ByteBuffer source) throws IOException {
+        Prototype main = state.compile(source);
+        if (main == null) return;
+
+        byte[] hash = Chunk.hash(source);
+        Path output = cacheDir != null
+            ? cacheDir.resolve(Chunk.hex(hash) + ".mluac")
+            : Paths.get(path.endsWith(".mlua") ? path + "c" : path + ".mluac");
+        Chunk.store(output, main, hash);
     }
-    
-    public static void error(Token token, String message) {
-        if (token.type == TokenType.EOF) {
-            report(token.line, " at end", message);
-        } else {
-            report(token.line, " at '" + token.lexeme + "'", message);
+
+    // Um .mluac passado direto: não há fonte para validar, o chunk é o
+    // programa; magic, versão e bytecode são conferidos por Chunk.load
+    private static void runChunk(LuaState state, Path path) {
+        Prototype main;
+        try {
+            main = Chunk.load(path, null);
+        } catch (IOException e) {
+            state.errors().error("could not load compiled chunk '" + path + "': " + e.getMessage());
+            return;
         }
+        if (main == null) {
+            state.errors().error("compiled chunk '" + path + "' was produced by an incompatible version.");
+            return;
+        }
+        runPrototype(state, main);
     }
-    
-    public static void runtimeError(RuntimeError error) {
-        System.err.println(error.getMessage() + "\n[line " + error.token.line + "]");
-        hadRuntimeError = true;
+
+    // O chunk de cada fonte fica em DIR/<sha-256 do fonte>.mluac. Num acerto o
+    // script começa direto na VM, sem Scanner, Parser, Resolver nem Compiler;
+    // chunks de outra versão, truncados ou corrompidos são recompilados por cima
+    private static void runCached(LuaState state, ByteBuffer source) {
+        byte[] hash = Chunk.hash(source);
+        Path path = cacheDir.resolve(Chunk.hex(hash) + ".mluac");
+        Prototype main;
+        try {
+            main = Chunk.load(path, hash);
+        } catch (IOException e) {
+            main = null;
+        }
+        if (main == null) {
+            main = state.compile(source);
+            if (main == null) return;
+            try {
+                Chunk.store(path, main, hash);
+            } catch (IOException e) {
+                System.err.println("Warning: could not write chunk cache '" + path + "': " + e.getMessage());
+            }
+        }
+        runPrototype(state, main);
     }
-    
-    private static void report(int line, String where, String message) {
-        System.err.println("[line " + line + "] Error" + where + ": " + message);
-        hadError = true;
+
+    private static void runPrototype(LuaState state, Prototype main) {
+        if (dumpBytecode) {
+            System.out.print(main.disassemble());
+            return;
+        }
+        state.execute(main);
     }
-}
\ No newline at end of file
+}
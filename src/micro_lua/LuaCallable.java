@@ -1,8 +1,32 @@
 package micro_lua;
 
+import java.util.Arrays;
 import java.util.List;
 
-interface LuaCallable {
+public interface LuaCallable {
     int arity();
     Object call(LuaInterpreter interpreter, List<Object> arguments);
-}
\ No newline at end of file
+
+    // Entradas sem alocação para chamadas com poucos argumentos. As versões
+    // padrão fazem a ponte até call(List), então quem implementa só call(List)
+    // continua funcionando; funções quentes sobrescrevem a entrada da sua aridade.
+    default Object call0(LuaInterpreter interpreter) {
+        return call(interpreter, new Object[0]);
+    }
+
+    default Object call1(LuaInterpreter interpreter, Object a) {
+        return call(interpreter, new Object[] {a});
+    }
+
+    default Object call2(LuaInterpreter interpreter, Object a, Object b) {
+        return call(interpreter, new Object[] {a, b});
+    }
+
+    default Object call3(LuaInterpreter interpreter, Object a, Object b, Object c) {
+        return call(interpreter, new Object[] {a, b, c});
+    }
+
+    default Object call(LuaInterpreter interpreter, Object[] arguments) {
+        return call(interpreter, Arrays.asList(arguments));
+    }
+}
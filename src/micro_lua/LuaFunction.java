@@ -3,38 +3,83 @@ package micro_lua;
 import java.util.List;
 
 public class LuaFunction implements LuaCallable {
-    private final Stmt.Function declaration;
-    private final Environment closure;
+    static final Cell[] NO_UPVALUES = new Cell[0];
+
+    final Stmt.Function declaration;
+    // Só as células das variáveis livres, não a cadeia de frames inteira
+    final Cell[] upvalues;
+    // Número de parâmetros, lido pelo interpretador sem chamada de interface
+    final int arity;
     
-    public LuaFunction(Stmt.Function declaration, Environment closure) {
+    public LuaFunction(Stmt.Function declaration, Cell[] upvalues) {
         this.declaration = declaration;
-        this.closure = closure;
+        this.upvalues = upvalues;
+        this.arity = declaration.params.size();
     }
 
     @Override
     public int arity() {
-        return declaration.params.size();
+        return arity;
     }
 
+    // Como no Lua, argumentos a mais são descartados e os que faltam ficam nil.
+    // O frame é reservado na pilha do interpretador, acima do chamador.
     @Override
     public Object call(LuaInterpreter interpreter, List<Object> arguments) {
-        Environment environment = new Environment(closure);
-        
-        for (int i = 0; i < declaration.params.size(); i++) {
-            Token paramName = declaration.params.get(i);
-            environment.define(paramName.lexeme, arguments.get(i));
+        int frame = interpreter.enter(declaration.frameSize);
+        Object[] stack = interpreter.stack;
+        int count = Math.min(arity, arguments.size());
+        for (int i = 0; i < count; i++) {
+            stack[frame + i] = arguments.get(i);
         }
+        return run(interpreter, frame);
+    }
 
-        try {
-            interpreter.executeBlock(declaration.body, environment);
-        } catch (Return returnValue) {
-            return returnValue.value;
-        }
-        return null;
+    @Override
+    public Object call(LuaInterpreter interpreter, Object[] arguments) {
+        int frame = interpreter.enter(declaration.frameSize);
+        int count = Math.min(arity, arguments.length);
+        System.arraycopy(arguments, 0, interpreter.stack, frame, count);
+        return run(interpreter, frame);
+    }
+
+    @Override
+    public Object call0(LuaInterpreter interpreter) {
+        return run(interpreter, interpreter.enter(declaration.frameSize));
+    }
+
+    @Override
+    public Object call1(LuaInterpreter interpreter, Object a) {
+        int frame = interpreter.enter(declaration.frameSize);
+        if (arity > 0) interpreter.stack[frame] = a;
+        return run(interpreter, frame);
+    }
+
+    @Override
+    public Object call2(LuaInterpreter interpreter, Object a, Object b) {
+        int frame = interpreter.enter(declaration.frameSize);
+        Object[] stack = interpreter.stack;
+        if (arity > 0) stack[frame] = a;
+        if (arity > 1) stack[frame + 1] = b;
+        return run(interpreter, frame);
+    }
+
+    @Override
+    public Object call3(LuaInterpreter interpreter, Object a, Object b, Object c) {
+        int frame = interpreter.enter(declaration.frameSize);
+        Object[] stack = interpreter.stack;
+        if (arity > 0) stack[frame] = a;
+        if (arity > 1) stack[frame + 1] = b;
+        if (arity > 2) stack[frame + 2] = c;
+        return run(interpreter, frame);
+    }
+
+    private Object run(LuaInterpreter interpreter, int frame) {
+        return interpreter.invoke(this, frame);
     }
 
     @Override
     public String toString() {
         return "<fn " + (declaration.name != null ? declaration.name.lexeme : "anonymous") + ">";
     }
-}
\ No newline at end of file
+}
@@ -1,240 +1,271 @@
 package micro_lua;
 
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.io.PrintStream;
 import java.util.List;
 import java.util.Map;
 import java.util.Arrays;
 
-public class LuaInterpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
-
-    final Environment globals = new Environment();
-    private Environment environment = globals;
-    private final Map<Expr, Integer> locals = new HashMap<>();
+public class LuaInterpreter implements Expr.Visitor<Object>, Stmt.Visitor<Completion> {
+    private static final int INITIAL_STACK = 256;
+    private static final Object[] EMPTY_STACK = new Object[0];
+    private static final long[] EMPTY_RAW = new long[0];
+
+    final Map<String, Object> globals;
+    private final ErrorReporter errors;
+    // Interpretador do estado; o de uma corrotina aponta para o que a criou
+    private final LuaInterpreter main;
+    // Corrotina em execução neste interpretador (null fora de corrotinas);
+    // coroutine.yield suspende esta
+    Coroutine.Fiber fiber;
+    // Saída de print
+    final PrintStream out;
+    // Pilha de valores: cada chamada ocupa frameSize slots a partir de base,
+    // devolvidos no retorno. Locais capturadas ficam em Cells (no heap);
+    // as demais nunca saem da pilha. raw guarda os números sem boxing.
+    Object[] stack = EMPTY_STACK;
+    long[] raw = EMPTY_RAW;
+    private int base = 0;
+    private int top = 0;
+    // Upvalues da função em execução (células das variáveis capturadas)
+    private Cell[] upvalues = LuaFunction.NO_UPVALUES;
+    // Valor do último return, lido pela chamada ao receber Completion.RETURN
+    private Object returnValue = null;
+    // Chamada de cauda pendente: visitReturnStmt guarda a função e os
+    // argumentos e devolve Completion.TAIL_CALL; invoke troca o frame e
+    // segue no mesmo laço, sem aprofundar a pilha Java
+    private LuaFunction tailFunction;
+    private Object tailA, tailB, tailC;
+    private Object[] tailArguments;
+    // Registradores do canal sem boxing: válidos quando a última expressão
+    // avaliada devolveu Unboxed.INT ou Unboxed.FLOAT
+    private long rawLong;
+    private double rawDouble;
+    // Pedido de outra thread (um timeout do servidor, por exemplo) para
+    // encerrar o script; lido a cada iteração de laço e a cada chamada
+    private volatile boolean interrupted = false;
 
     public LuaInterpreter() {
+        this(new ErrorReporter(System.err), System.out);
+    }
 
-    	globals.define("print", new LuaCallable() {
-    	    @Override 
-    	    public int arity() { 
-    	        return -1; 
-    	    }
-    	    
-    	    @Override 
-    	    public Object call(LuaInterpreter interpreter, List<Object> arguments) {
-    	        StringBuilder output = new StringBuilder();
-    	        for (int i = 0; i < arguments.size(); i++) {
-    	            if (i > 0) output.append("\t");
-    	            
-    	            Object arg = arguments.get(i);
-    	            if (arg == null) {
-    	                output.append("nil");
-    	            } else if (arg instanceof String) {
-    	                output.append((String)arg); 
-    	            } else if (arg instanceof Double) {
-    	                double num = (Double)arg;
-    	                if (num == (int)num) {
-    	                    output.append((int)num);
-    	                } else {
-    	                    output.append(num); 
-    	                }
-    	            } else {
-    	                output.append(interpreter.stringify(arg)); // Outros tipos
-    	            }
-    	        }
-    	        System.out.println(output.toString());
-    	        return null;
-    	    }
-    	});
-
-        globals.define("clock", new LuaCallable() {
-            @Override public int arity() { return 0; }
-            @Override public Object call(LuaInterpreter interpreter, List<Object> arguments) {
-                return (double)System.currentTimeMillis() / 1000.0;
-            }
-        });
-
-        globals.define("type", new LuaCallable() {
-            @Override public int arity() { return 1; }
-            @Override public Object call(LuaInterpreter interpreter, List<Object> arguments) {
-                Object arg = arguments.get(0);
-                if (arg == null) return "nil";
-                if (arg instanceof Boolean) return "boolean";
-                if (arg instanceof Double) return "number";
-                if (arg instanceof String) return "string";
-                if (arg instanceof LuaCallable) return "function";
-                if (arg instanceof LuaTable) return "table";
-                return "unknown";
-            }
-        });
-
-        globals.define("table", new LuaTable() {{
-            set("insert", new LuaCallable() {
-                @Override public int arity() { return 2; }
-                @Override public Object call(LuaInterpreter interpreter, List<Object> arguments) {
-                    if (!(arguments.get(0) instanceof LuaTable)) {
-                        throw new RuntimeError(null, "First argument must be a table");
-                    }
-                    LuaTable table = (LuaTable) arguments.get(0);
-                    table.set(table.arrayPart.size() + 1, arguments.get(1));
-                    return null;
-                }
-            });
-
-            set("remove", new LuaCallable() {
-                @Override public int arity() { return 1; }
-                @Override public Object call(LuaInterpreter interpreter, List<Object> arguments) {
-                    if (!(arguments.get(0) instanceof LuaTable)) {
-                        throw new RuntimeError(null, "First argument must be a table");
-                    }
-                    LuaTable table = (LuaTable) arguments.get(0);
-                    if (table.arrayPart.isEmpty()) return null;
-                    return table.arrayPart.remove(table.arrayPart.size() - 1);
-                }
-            });
-        }});
-
-        globals.define("getmetatable", new LuaCallable() {
-            @Override public int arity() { return 1; }
-            @Override public Object call(LuaInterpreter interpreter, List<Object> arguments) {
-                Object arg = arguments.get(0);
-                if (arg instanceof LuaTable) {
-                    return ((LuaTable) arg).getMetatable();
-                }
-                return null;
-            }
-        });
+    // Nada é montado aqui: as nativas vêm da imagem compartilhada de
+    // Builtins e a pilha só é alocada na primeira chamada
+    public LuaInterpreter(ErrorReporter errors, PrintStream out) {
+        this.globals = new Globals();
+        this.errors = errors;
+        this.out = out;
+        this.main = this;
+    }
 
-        globals.define("setmetatable", new LuaCallable() {
-            @Override public int arity() { return 2; }
-            @Override public Object call(LuaInterpreter interpreter, List<Object> arguments) {
-                if (!(arguments.get(0) instanceof LuaTable)) {
-                    throw new RuntimeError(null, "setmetatable: first argument must be a table");
-                }
-                LuaTable table = (LuaTable) arguments.get(0);
-                LuaTable mt = null;
-                if (arguments.get(1) instanceof LuaTable) {
-                    mt = (LuaTable) arguments.get(1);
-                } else if (arguments.get(1) != null) {
-                    throw new RuntimeError(null, "setmetatable: second argument must be a table or nil");
-                }
-                table.setMetatable(mt);
-                return table;
-            }
-        });
+    // Interpretador de uma corrotina que roda na própria thread: tem pilha
+    // de valores própria e compartilha globais, saída, erros e interrupção
+    LuaInterpreter(LuaInterpreter parent) {
+        this.globals = parent.globals;
+        this.errors = parent.errors;
+        this.out = parent.out;
+        this.main = parent.main;
+    }
 
-        globals.define("rawget", new LuaCallable() {
-            @Override public int arity() { return 2; }
-            @Override public Object call(LuaInterpreter interpreter, List<Object> arguments) {
-                if (!(arguments.get(0) instanceof LuaTable)) {
-                    throw new RuntimeError(null, "bad argument #1 to 'rawget' (table expected)");
-                }
-                return ((LuaTable) arguments.get(0)).get(arguments.get(1));
-            }
-        });
+    public ErrorReporter errors() {
+        return errors;
+    }
 
-        globals.define("rawset", new LuaCallable() {
-            @Override public int arity() { return 3; }
-            @Override public Object call(LuaInterpreter interpreter, List<Object> arguments) {
-                if (!(arguments.get(0) instanceof LuaTable)) {
-                    throw new RuntimeError(null, "bad argument #1 to 'rawset' (table expected)");
-                }
-                ((LuaTable) arguments.get(0)).set(arguments.get(1), arguments.get(2));
-                return arguments.get(0);
-            }
-        });
+    public void interrupt() {
+        main.interrupted = true;
+    }
 
-        globals.define("pairs", new LuaCallable() {
-            @Override public int arity() { return 1; }
-            @Override public Object call(LuaInterpreter interpreter, List<Object> arguments) {
-                if (!(arguments.get(0) instanceof LuaTable)) {
-                    throw new RuntimeError(null, "bad argument #1 to 'pairs' (table expected)");
-                }
-                LuaTable table = (LuaTable) arguments.get(0);
-                return new LuaFunction(new Stmt.Function(
-                    new Token(TokenType.IDENTIFIER, "pairs_iterator", null, 0),
-                    new ArrayList<>(),
-                    Arrays.asList(new Stmt.Return(
-                        new Token(TokenType.RETURN, "return", null, 0),
-                        new Expr.Literal(table)
-                    ))
-                ), globals);
-            }
-        });
+    void clearInterrupt() {
+        main.interrupted = false;
+    }
+
+    // Laços e chamadas passam por aqui, então até um script que nunca
+    // termina para logo depois de interrupt()
+    public void checkInterrupt() {
+        if (main.interrupted) throw new RuntimeError(null, "interrupted.");
     }
 
-    void interpret(List<Stmt> statements) {
+    public Map<String, Object> getGlobals() {
+        return globals;
+    }
+
+    void interpret(List<Stmt> statements, int frameSize) {
         try {
-            for (Stmt statement : statements) {
-                execute(statement);
-            }
+            executeFunction(statements, enter(frameSize), LuaFunction.NO_UPVALUES);
         } catch (RuntimeError error) {
-            Lua.runtimeError(error);
-        } catch (Break e) {
-            Lua.runtimeError(new RuntimeError(null, "Break outside loop"));
+            errors.runtimeError(error);
+        } catch (StackOverflowError error) {
+            // Aqui cada chamada Lua usa a pilha Java; --vm não tem esse limite
+            errors.runtimeError(new RuntimeError(null, "stack overflow."));
         }
     }
 
     private Object evaluate(Expr expr) {
+        return box(expr.accept(this));
+    }
+
+    // Avalia sem boxing: o resultado pode ser um marcador Unboxed, que deve
+    // ser consumido antes de avaliar outra expressão
+    private Object evaluateRaw(Expr expr) {
         return expr.accept(this);
     }
 
-    private void execute(Stmt stmt) {
-        stmt.accept(this);
+    private Object box(Object value) {
+        if (value == Unboxed.INT) return rawLong;
+        if (value == Unboxed.FLOAT) return rawDouble;
+        return value;
+    }
+
+    private void store(int slot, Object value) {
+        int index = base + slot;
+        if (value == Unboxed.INT) {
+            raw[index] = rawLong;
+        } else if (value == Unboxed.FLOAT) {
+            raw[index] = Double.doubleToRawLongBits(rawDouble);
+        }
+        stack[index] = value;
+    }
+
+    private Object load(int slot) {
+        int index = base + slot;
+        Object value = stack[index];
+        if (value == Unboxed.INT) {
+            rawLong = raw[index];
+        } else if (value == Unboxed.FLOAT) {
+            rawDouble = Double.longBitsToDouble(raw[index]);
+        }
+        return value;
+    }
+
+    // Reserva o frame de uma chamada no topo da pilha e devolve sua base;
+    // os argumentos são escritos em stack[frame + i] antes de executeFunction
+    int enter(int frameSize) {
+        int frame = top;
+        if (frame + frameSize > stack.length) {
+            int size = Math.max(Math.max(stack.length * 2, INITIAL_STACK), frame + frameSize);
+            stack = Arrays.copyOf(stack, size);
+            raw = Arrays.copyOf(raw, size);
+        }
+        top = frame + frameSize;
+        return frame;
+    }
+
+    private Completion execute(Stmt stmt) {
+        return stmt.accept(this);
     }
 
-    void executeBlock(List<Stmt> statements, Environment environment) {
-        Environment previous = this.environment;
+    private Completion executeBlock(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            Completion completion = execute(statement);
+            if (completion != null) return completion;
+        }
+        return null;
+    }
+
+    // Executa o corpo sobre o frame reservado por enter e o libera no fim,
+    // limpando os slots para não reter valores
+    Completion executeFunction(List<Stmt> body, int frame, Cell[] cells) {
+        int previousBase = base;
+        Cell[] previousUpvalues = upvalues;
         try {
-            this.environment = environment;
-            for (Stmt statement : statements) {
-                execute(statement);
-            }
+            base = frame;
+            upvalues = cells;
+            return executeBlock(body);
         } finally {
-            this.environment = previous;
+            Arrays.fill(stack, frame, top, null);
+            top = frame;
+            base = previousBase;
+            upvalues = previousUpvalues;
         }
     }
 
-    void resolve(Expr expr, int depth) {
-        locals.put(expr, depth);
+    // Cria a closure copiando só as células das variáveis livres da função
+    private LuaFunction closure(Stmt.Function declaration) {
+        int count = declaration.upvalueSlots.length;
+        if (count == 0) return new LuaFunction(declaration, LuaFunction.NO_UPVALUES);
+
+        Cell[] cells = new Cell[count];
+        for (int i = 0; i < count; i++) {
+            int slot = declaration.upvalueSlots[i];
+            cells[i] = declaration.upvalueInFrame[i] ? (Cell) stack[base + slot] : upvalues[slot];
+        }
+        return new LuaFunction(declaration, cells);
     }
 
-    private Object lookUpVariable(Token name, Expr expr) {
-        Integer distance = locals.get(expr);
-        if (distance != null) {
-            return environment.getAt(distance, name.lexeme);
-        } else {
-            return globals.get(name);
+    Object takeReturnValue() {
+        Object value = returnValue;
+        returnValue = null;
+        return value;
+    }
+
+    // Executa uma função Lua cujo frame (com os argumentos) já foi reservado
+    Object invoke(LuaFunction function, int frame) {
+        while (true) {
+            checkInterrupt();
+            boolean[] captured = function.declaration.capturedParams;
+            if (captured != null) {
+                for (int i = 0; i < captured.length; i++) {
+                    if (captured[i]) stack[frame + i] = new Cell(stack[frame + i]);
+                }
+            }
+            Completion completion = executeFunction(function.declaration.body, frame, function.upvalues);
+            if (completion == Completion.RETURN) return takeReturnValue();
+            if (completion != Completion.TAIL_CALL) return null;
+
+            // O frame anterior já foi liberado: o novo ocupa o mesmo lugar
+            function = tailFunction;
+            frame = enter(function.declaration.frameSize);
+            switch (function.arity) {
+                case 0: break;
+                case 1: stack[frame] = tailA; break;
+                case 2: stack[frame] = tailA; stack[frame + 1] = tailB; break;
+                case 3: stack[frame] = tailA; stack[frame + 1] = tailB; stack[frame + 2] = tailC; break;
+                default: System.arraycopy(tailArguments, 0, stack, frame, function.arity); break;
+            }
+            tailFunction = null;
+            tailA = tailB = tailC = null;
+            tailArguments = null;
+        }
+    }
+
+    private Object lookUpVariable(Expr.Variable expr) {
+        if (expr.upvalue >= 0) {
+            return upvalues[expr.upvalue].value;
+        }
+        if (expr.cell) {
+            return ((Cell) stack[base + expr.slot]).value;
         }
+        if (expr.depth >= 0) {
+            return load(expr.slot);
+        }
+        Object value = globals.get(expr.name.lexeme);
+        if (value == null && !globals.containsKey(expr.name.lexeme)) {
+            throw new RuntimeError(expr.name, "Undefined variable '" + expr.name.lexeme + "'.");
+        }
+        return value;
     }
 
-    private Object getMetamethod(Object obj, String metamethod) {
+    private Object getMetamethod(Object obj, Metamethod event) {
         if (obj instanceof LuaTable) {
-            LuaTable table = (LuaTable) obj;
-            LuaTable mt = table.getMetatable();
+            LuaTable mt = ((LuaTable) obj).metatable;
             if (mt != null) {
-                return mt.get(this,metamethod);
+                return mt.metamethod(event);
             }
         }
         return null;
     }
 
     private String tableToString(LuaTable table) {
-        Object tostring = getMetamethod(table, "__tostring");
+        Object tostring = getMetamethod(table, Metamethod.TOSTRING);
         if (tostring instanceof LuaCallable) {
-            return stringify(((LuaCallable) tostring).call(this, Arrays.asList(table)));
+            return stringify(((LuaCallable) tostring).call1(this, table));
         }
         return table.toString();
     }
 
-    private String stringify(Object object) {
+    public String stringify(Object object) {
         if (object == null) return "nil";
         if (object instanceof Double) {
-            String text = object.toString();
-            if (text.endsWith(".0")) {
-                text = text.substring(0, text.length() - 2);
-            }
-            return text;
+            return LuaNumber.formatFloat((Double) object);
         }
         if (object instanceof LuaTable) {
             return tableToString((LuaTable) object);
@@ -242,282 +273,605 @@ public class LuaInterpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void>
         if (object instanceof String) {
             return (String) object;
         }
+        if (object instanceof Rope) {
+            return object.toString();
+        }
         return object.toString();
     }
 
-    private boolean isTruthy(Object object) {
+    public static boolean isTruthy(Object object) {
         if (object == null) return false;
         if (object instanceof Boolean) return (boolean)object;
         return true;
     }
 
-    private boolean isEqual(Object a, Object b) {
+    public static boolean isEqual(Object a, Object b) {
         if (a == null && b == null) return true;
         if (a == null) return false;
-        return a.equals(b);
+        if (LuaNumber.isNumber(a) && LuaNumber.isNumber(b)) return LuaNumber.equal(a, b);
+        return Rope.flatten(a).equals(Rope.flatten(b));
     }
 
     private void checkNumberOperand(Token operator, Object operand) {
-        if (operand instanceof Double) return;
+        if (LuaNumber.isNumber(operand)) return;
         throw new RuntimeError(operator, "Operand must be a number.");
     }
 
-    private void checkNumberOperands(Token operator, Object left, Object right) {
-        if (left instanceof Double && right instanceof Double) return;
-        throw new RuntimeError(operator, "Operands must be numbers.");
-    }
-
     @Override
-    public Void visitBlockStmt(Stmt.Block stmt) {
-        executeBlock(stmt.statements, new Environment(environment));
-        return null;
+    public Completion visitBlockStmt(Stmt.Block stmt) {
+        // As locais do bloco já têm slots no frame da função
+        return executeBlock(stmt.statements);
     }
 
     @Override
-    public Void visitExpressionStmt(Stmt.Expression stmt) {
-        evaluate(stmt.expression);
+    public Completion visitExpressionStmt(Stmt.Expression stmt) {
+        evaluateRaw(stmt.expression);
         return null;
     }
 
     @Override
-    public Void visitFunctionStmt(Stmt.Function stmt) {
-        LuaFunction function = new LuaFunction(stmt, environment);
-        environment.define(stmt.name.lexeme, function);
+    public Completion visitFunctionStmt(Stmt.Function stmt) {
+        if (stmt.slot < 0) {
+            globals.put(stmt.name.lexeme, closure(stmt));
+        } else if (stmt.captured) {
+            // A célula existe antes da closure, para a função enxergar a si mesma
+            Cell cell = new Cell(null);
+            stack[base + stmt.slot] = cell;
+            cell.value = closure(stmt);
+        } else {
+            stack[base + stmt.slot] = closure(stmt);
+        }
         return null;
     }
 
     @Override
-    public Void visitIfStmt(Stmt.If stmt) {
-        if (isTruthy(evaluate(stmt.condition))) {
-            execute(stmt.thenBranch);
+    public Completion visitIfStmt(Stmt.If stmt) {
+        if (isTruthy(evaluateRaw(stmt.condition))) {
+            return execute(stmt.thenBranch);
         } else if (stmt.elseBranch != null) {
-            execute(stmt.elseBranch);
+            return execute(stmt.elseBranch);
         }
         return null;
     }
 
     @Override
-    public Void visitReturnStmt(Stmt.Return stmt) {
-        Object value = null;
-        if (stmt.value != null) value = evaluate(stmt.value);
-        throw new Return(value);
+    public Completion visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.tailCall) return tailCall((Expr.Call) stmt.value);
+        returnValue = stmt.value != null ? evaluate(stmt.value) : null;
+        return Completion.RETURN;
+    }
+
+    // Avalia a chamada de um return f(...). Se o alvo é uma função Lua, só
+    // deixa a chamada pendente para invoke; nativas são chamadas aqui mesmo.
+    // Os argumentos são avaliados antes de preencher os campos tail*, que
+    // podem ser usados por chamadas de cauda dentro dos próprios argumentos
+    private Completion tailCall(Expr.Call expr) {
+        Object callee = evaluate(expr.callee);
+        List<Expr> arguments = expr.arguments;
+        int argc = arguments.size();
+        Object a = null, b = null, c = null;
+        Object[] values = null;
+        if (argc > 3) {
+            values = new Object[argc];
+            for (int i = 0; i < argc; i++) {
+                values[i] = evaluate(arguments.get(i));
+            }
+        } else {
+            if (argc > 0) a = evaluate(arguments.get(0));
+            if (argc > 1) b = evaluate(arguments.get(1));
+            if (argc > 2) c = evaluate(arguments.get(2));
+        }
+
+        LuaCallable function = callable(expr.paren, callee, argc);
+        if (function instanceof LuaFunction) {
+            tailFunction = (LuaFunction) function;
+            tailA = a;
+            tailB = b;
+            tailC = c;
+            tailArguments = values;
+            return Completion.TAIL_CALL;
+        }
+        switch (argc) {
+            case 0: returnValue = function.call0(this); break;
+            case 1: returnValue = function.call1(this, a); break;
+            case 2: returnValue = function.call2(this, a, b); break;
+            case 3: returnValue = function.call3(this, a, b, c); break;
+            default: returnValue = function.call(this, values); break;
+        }
+        return Completion.RETURN;
     }
 
     @Override
-    public Void visitLocalVarStmt(Stmt.LocalVar stmt) {
+    public Completion visitLocalVarStmt(Stmt.LocalVar stmt) {
         Object value = null;
         if (stmt.initializer != null) {
-            value = evaluate(stmt.initializer);
+            value = evaluateRaw(stmt.initializer);
+        }
+        if (stmt.slot < 0) {
+            globals.put(stmt.name.lexeme, box(value));
+        } else if (stmt.captured) {
+            stack[base + stmt.slot] = new Cell(box(value));
+        } else {
+            store(stmt.slot, value);
         }
-        environment.define(stmt.name.lexeme, value);
         return null;
     }
 
     @Override
-    public Void visitWhileStmt(Stmt.While stmt) {
-        while (isTruthy(evaluate(stmt.condition)) && !Lua.hadRuntimeError) {
-            try {
-                execute(stmt.body);
-            } catch (Break e) {
-                break;
-            }
+    public Completion visitWhileStmt(Stmt.While stmt) {
+        while (isTruthy(evaluateRaw(stmt.condition))) {
+            checkInterrupt();
+            Completion completion = execute(stmt.body);
+            if (completion == Completion.BREAK) break;
+            if (completion != null) return completion;
         }
         return null;
     }
 
     @Override
-    public Void visitRepeatStmt(Stmt.Repeat stmt) {
+    public Completion visitRepeatStmt(Stmt.Repeat stmt) {
         do {
-            try {
-                execute(stmt.body);
-            } catch (Break e) {
-                break;
-            }
-        } while (!isTruthy(evaluate(stmt.condition)) && !Lua.hadRuntimeError);
+            checkInterrupt();
+            Completion completion = execute(stmt.body);
+            if (completion == Completion.BREAK) break;
+            if (completion != null) return completion;
+        } while (!isTruthy(evaluateRaw(stmt.condition)));
         return null;
     }
 
     @Override
-    public Void visitForStmt(Stmt.For stmt) {
-        beginScope();
-        execute(new Stmt.LocalVar(stmt.name, stmt.initializer));
-        
-        while (isTruthy(evaluate(stmt.condition)) && !Lua.hadRuntimeError) {
-            try {
-                execute(stmt.body);
-                if (stmt.increment != null) {
-                    evaluate(stmt.increment);
+    public Completion visitForStmt(Stmt.For stmt) {
+        // Início, limite e passo são avaliados uma única vez
+        Object start = evaluate(stmt.start);
+        Object limit = evaluate(stmt.limit);
+        Object step = stmt.step != null ? evaluate(stmt.step) : (Object) 1L;
+        LuaNumber.checkForOperand(stmt.name, start, "initial value");
+        LuaNumber.checkForOperand(stmt.name, limit, "limit");
+        LuaNumber.checkForOperand(stmt.name, step, "step");
+
+        if (start instanceof Long && step instanceof Long) {
+            long i = (Long) start;
+            long s = (Long) step;
+            if (s == 0) throw new RuntimeError(stmt.name, "'for' step is zero.");
+            if (LuaNumber.forSkips(i, limit, s)) return null;
+
+            // O contador fica num primitivo e é copiado para o slot da
+            // variável de controle a cada iteração; só uma variável capturada
+            // ganha uma Cell nova por iteração
+            long last = LuaNumber.forLimit(limit, s);
+            int slot = base + stmt.slot;
+            while (true) {
+                checkInterrupt();
+                if (stmt.captured) {
+                    stack[slot] = new Cell(i);
+                } else {
+                    raw[slot] = i;
+                    stack[slot] = Unboxed.INT;
                 }
-            } catch (Break e) {
-                break;
+                Completion completion = executeBlock(stmt.body);
+                if (completion == Completion.BREAK) break;
+                if (completion != null) return completion;
+                if (!LuaNumber.forContinues(i, last, s)) break;
+                i += s;
             }
+            return null;
+        }
+
+        double x = LuaNumber.toDouble(start);
+        double last = LuaNumber.toDouble(limit);
+        double s = LuaNumber.toDouble(step);
+        if (s == 0) throw new RuntimeError(stmt.name, "'for' step is zero.");
+        int slot = base + stmt.slot;
+        for (; s > 0 ? x <= last : x >= last; x += s) {
+            checkInterrupt();
+            if (stmt.captured) {
+                stack[slot] = new Cell(x);
+            } else {
+                raw[slot] = Double.doubleToRawLongBits(x);
+                stack[slot] = Unboxed.FLOAT;
+            }
+            Completion completion = executeBlock(stmt.body);
+            if (completion == Completion.BREAK) break;
+            if (completion != null) return completion;
         }
-        
-        endScope();
         return null;
     }
-    
-    private void beginScope() {
-        environment = new Environment(environment);
+
+    @Override
+    public Completion visitForInStmt(Stmt.ForIn stmt) {
+        // Iterador, estado e controle são avaliados uma única vez; expressões
+        // a mais são avaliadas e descartadas, como no Lua
+        List<Expr> iterators = stmt.iterators;
+        Object f = evaluate(iterators.get(0));
+        Object s = iterators.size() > 1 ? evaluate(iterators.get(1)) : null;
+        Object control = iterators.size() > 2 ? evaluate(iterators.get(2)) : null;
+        for (int i = 3; i < iterators.size(); i++) evaluate(iterators.get(i));
+
+        f = TableIterator.forLoop(f, s, control);
+        if (f instanceof TableIterator) return iterateTable(stmt, (TableIterator) f);
+
+        // As funções devolvem um valor: ele vai para a variável, que é uma
+        // só (o Resolver recusa mais, salvo se pairs/ipairs/next foram
+        // redefinidos), e para o controle
+        Token name = stmt.names.get(0);
+        if (stmt.names.size() > 1) throw new RuntimeError(stmt.names.get(1), TableIterator.MULTIPLE_VARIABLES);
+        int given = Math.min(iterators.size() - 1, 2);
+        int slot = base + stmt.slot;
+        boolean captured = stmt.captured != null;
+        while (true) {
+            checkInterrupt();
+            control = callIterator(name, f, given, s, control);
+            if (control == null) return null;
+            stack[slot] = captured ? new Cell(control) : control;
+            Completion completion = executeBlock(stmt.body);
+            if (completion == Completion.BREAK) return null;
+            if (completion != null) return completion;
+        }
     }
-    
-    private void endScope() {
-        environment = environment.enclosing;
+
+    // for genérico com pairs, ipairs ou next: anda o cursor da tabela sem
+    // chamar função; chave inteira fica sem boxing no slot, como o contador
+    // do for numérico
+    private Completion iterateTable(Stmt.ForIn stmt, TableIterator iterator) {
+        int slot = base + stmt.slot;
+        int count = stmt.names.size();
+        boolean[] captured = stmt.captured;
+        while (iterator.advance(this)) {
+            checkInterrupt();
+            if (captured != null && captured[0]) {
+                stack[slot] = new Cell(iterator.key());
+            } else if (iterator.hasIntKey()) {
+                raw[slot] = iterator.intKey();
+                stack[slot] = Unboxed.INT;
+            } else {
+                stack[slot] = iterator.key();
+            }
+            for (int i = 1; i < count; i++) {
+                Object value = i == 1 ? iterator.value() : null;
+                stack[slot + i] = captured != null && captured[i] ? new Cell(value) : value;
+            }
+            Completion completion = executeBlock(stmt.body);
+            if (completion == Completion.BREAK) break;
+            if (completion != null) return completion;
+        }
+        return null;
+    }
+
+    // Um passo do for genérico com um iterador qualquer: f(s, ctl), com
+    // tantos argumentos quanto a aridade de f pede, completados com nil
+    // (uma variádica recebe os que a lista do for deu, até dois)
+    public Object callIterator(Token name, Object f, int given, Object s, Object control) {
+        int arity = f instanceof LuaCallable ? ((LuaCallable) f).arity() : 0;
+        int argc = arity < 0 ? given : arity;
+        LuaCallable function = callable(name, f, argc);
+        switch (argc) {
+            case 0: return function.call0(this);
+            case 1: return function.call1(this, s);
+            case 2: return function.call2(this, s, control);
+            case 3: return function.call3(this, s, control, null);
+            default: {
+                Object[] arguments = new Object[argc];
+                arguments[0] = s;
+                arguments[1] = control;
+                return function.call(this, arguments);
+            }
+        }
     }
 
     @Override
-    public Void visitBreakStmt(Stmt.Break stmt) {
-        throw new Break();
+    public Completion visitBreakStmt(Stmt.Break stmt) {
+        return Completion.BREAK;
     }
 
     @Override
     public Object visitAssignExpr(Expr.Assign expr) {
-        Object value = evaluate(expr.value);
-        Integer distance = locals.get(expr);
-        if (distance != null) {
-            environment.assignAt(distance, expr.name, value);
+        Object value = evaluateRaw(expr.value);
+        if (expr.upvalue >= 0) {
+            value = box(value);
+            upvalues[expr.upvalue].value = value;
+        } else if (expr.cell) {
+            value = box(value);
+            ((Cell) stack[base + expr.slot]).value = value;
+        } else if (expr.depth >= 0) {
+            store(expr.slot, value);
         } else {
-            globals.assign(expr.name, value);
+            value = box(value);
+            globals.put(expr.name.lexeme, value);
         }
         return value;
     }
 
     @Override
     public Object visitBinaryExpr(Expr.Binary expr) {
-        Object left = evaluate(expr.left);
-        Object right = evaluate(expr.right);
+        // Os operandos numéricos são lidos como primitivos; o resultado volta
+        // pelo canal sem boxing, então laços numéricos não alocam
+        Object left = evaluateRaw(expr.left);
+        long leftLong = rawLong;
+        double leftDouble = rawDouble;
+        if (left instanceof Long) {
+            leftLong = (Long) left;
+            left = Unboxed.INT;
+        } else if (left instanceof Double) {
+            leftDouble = (Double) left;
+            left = Unboxed.FLOAT;
+        }
+
+        Object right = evaluateRaw(expr.right);
+        long rightLong = rawLong;
+        double rightDouble = rawDouble;
+        if (right instanceof Long) {
+            rightLong = (Long) right;
+            right = Unboxed.INT;
+        } else if (right instanceof Double) {
+            rightDouble = (Double) right;
+            right = Unboxed.FLOAT;
+        }
+
+        if (left == Unboxed.INT && right == Unboxed.INT) {
+            switch (expr.operator.type) {
+                case PLUS: rawLong = leftLong + rightLong; return Unboxed.INT;
+                case MINUS: rawLong = leftLong - rightLong; return Unboxed.INT;
+                case STAR: rawLong = leftLong * rightLong; return Unboxed.INT;
+                case PERCENT:
+                    rawLong = LuaNumber.mod(expr.operator, leftLong, rightLong);
+                    return Unboxed.INT;
+                case SLASH:
+                case CARET:
+                    rawDouble = LuaNumber.arith(expr.operator.type, (double) leftLong, (double) rightLong);
+                    return Unboxed.FLOAT;
+                case LESS: return leftLong < rightLong;
+                case LESS_EQUAL: return leftLong <= rightLong;
+                case GREATER: return leftLong > rightLong;
+                case GREATER_EQUAL: return leftLong >= rightLong;
+                case EQUAL_EQUAL: return leftLong == rightLong;
+                case BANG_EQUAL:
+                case TILDE_EQUAL: return leftLong != rightLong;
+                default: break;
+            }
+        } else if (left == Unboxed.FLOAT && right == Unboxed.FLOAT) {
+            switch (expr.operator.type) {
+                case PLUS:
+                case MINUS:
+                case STAR:
+                case SLASH:
+                case PERCENT:
+                case CARET:
+                    rawDouble = LuaNumber.arith(expr.operator.type, leftDouble, rightDouble);
+                    return Unboxed.FLOAT;
+                case LESS: return leftDouble < rightDouble;
+                case LESS_EQUAL: return leftDouble <= rightDouble;
+                case GREATER: return leftDouble > rightDouble;
+                case GREATER_EQUAL: return leftDouble >= rightDouble;
+                case EQUAL_EQUAL: return leftDouble == rightDouble;
+                case BANG_EQUAL:
+                case TILDE_EQUAL: return leftDouble != rightDouble;
+                default: break;
+            }
+        }
+
+        // Tipos mistos, strings, tabelas com metamétodos: caminho genérico
+        Object leftValue = left == Unboxed.INT ? (Object) leftLong
+            : left == Unboxed.FLOAT ? (Object) leftDouble : left;
+        Object rightValue = right == Unboxed.INT ? (Object) rightLong
+            : right == Unboxed.FLOAT ? (Object) rightDouble : right;
+        return binaryOp(expr.operator, leftValue, rightValue);
+    }
 
-        switch (expr.operator.type) {
-            case BANG_EQUAL: return !isEqual(left, right);
+    // Semântica dos operadores binários, compartilhada com a VM (micro_lua.vm)
+    public Object binaryOp(Token operator, Object left, Object right) {
+        switch (operator.type) {
+            case BANG_EQUAL:
+            case TILDE_EQUAL: return !isEqual(left, right);
             case EQUAL_EQUAL: return isEqual(left, right);
-            case GREATER:
-                Object gt = callMetamethod(left, right, "__gt");
-                if (gt != null) return gt;
-                checkNumberOperands(expr.operator, left, right);
-                return (double)left > (double)right;
-            case GREATER_EQUAL:
-                Object ge = callMetamethod(left, right, "__ge");
-                if (ge != null) return ge;
-                checkNumberOperands(expr.operator, left, right);
-                return (double)left >= (double)right;
-            case LESS:
-                Object lt = callMetamethod(left, right, "__lt");
-                if (lt != null) return lt;
-                checkNumberOperands(expr.operator, left, right);
-                return (double)left < (double)right;
-            case LESS_EQUAL:
-                Object le = callMetamethod(left, right, "__le");
-                if (le != null) return le;
-                checkNumberOperands(expr.operator, left, right);
-                return (double)left <= (double)right;
-            case MINUS:
-                Object sub = callMetamethod(left, right, "__sub");
-                if (sub != null) return sub;
-                checkNumberOperands(expr.operator, left, right);
-                return (double)left - (double)right;
-            case PLUS:
-                Object add = callMetamethod(left, right, "__add");
-                if (add != null) return add;
-                if (left instanceof Double && right instanceof Double) {
-                    return (double)left + (double)right;
-                }
-                if (left instanceof String && right instanceof String) {
-                    return (String)left + (String)right;
-                }
-                throw new RuntimeError(expr.operator, "Operands must be two numbers or two strings.");
-            case SLASH:
-                Object div = callMetamethod(left, right, "__div");
-                if (div != null) return div;
-                checkNumberOperands(expr.operator, left, right);
-                return (double)left / (double)right;
-            case STAR:
-                Object mul = callMetamethod(left, right, "__mul");
-                if (mul != null) return mul;
-                checkNumberOperands(expr.operator, left, right);
-                return (double)left * (double)right;
-            case PERCENT:
-                Object mod = callMetamethod(left, right, "__mod");
-                if (mod != null) return mod;
-                checkNumberOperands(expr.operator, left, right);
-                return (double)left % (double)right;
-            case CARET:
-                Object pow = callMetamethod(left, right, "__pow");
-                if (pow != null) return pow;
-                checkNumberOperands(expr.operator, left, right);
-                return Math.pow((double)left, (double)right);
-            case DOT_DOT:
-                Object concat = callMetamethod(left, right, "__concat");
-                if (concat != null) return concat;
-                return stringify(left) + stringify(right);
+            case DOT_DOT: return concat(operator, left, right);
+            default:
+                break;
+        }
+
+        // Números não têm metatabela: o caso comum não consulta metamétodos
+        if (LuaNumber.isNumber(left) && LuaNumber.isNumber(right)) {
+            switch (operator.type) {
+                case GREATER: return LuaNumber.lessThan(right, left);
+                case GREATER_EQUAL: return LuaNumber.lessEqual(right, left);
+                case LESS: return LuaNumber.lessThan(left, right);
+                case LESS_EQUAL: return LuaNumber.lessEqual(left, right);
+                default: return LuaNumber.arith(operator, left, right);
+            }
+        }
+
+        Object result = callMetamethod(left, right, metamethodFor(operator));
+        if (result != null) return result;
+        if (operator.type == TokenType.PLUS) {
+            if (Rope.isString(left) && Rope.isString(right)) {
+                return Rope.concat(left, right);
+            }
+            throw new RuntimeError(operator, "Operands must be two numbers or two strings.");
+        }
+        throw new RuntimeError(operator, "Operands must be numbers.");
+    }
+
+    // Strings e números são juntados sem consultar metamétodos; o resultado
+    // pode ser uma Rope, que cresce sem copiar o lado esquerdo
+    public Object concat(Token operator, Object left, Object right) {
+        if (Rope.isConcatenable(left) && Rope.isConcatenable(right)) {
+            return Rope.concat(left, right);
+        }
+        Object result = callMetamethod(left, right, Metamethod.CONCAT);
+        if (result != null) return result;
+        return Rope.concat(stringify(left), stringify(right));
+    }
+
+    // Junta values[start..end) da esquerda para a direita, como uma cadeia
+    // a .. b .. c; sem metamétodos no caminho, tudo vai para um só buffer
+    public Object concat(Token operator, Object[] values, int start, int end) {
+        boolean plain = true;
+        for (int i = start; i < end && plain; i++) {
+            plain = Rope.isConcatenable(values[i]);
+        }
+        if (plain) return Rope.concat(values, start, end);
+
+        Object result = values[start];
+        for (int i = start + 1; i < end; i++) {
+            result = concat(operator, result, values[i]);
+        }
+        return result;
+    }
+
+    @Override
+    public Object visitConcatExpr(Expr.Concat expr) {
+        List<Expr> parts = expr.parts;
+        if (parts.size() == 2) {
+            Object left = evaluate(parts.get(0));
+            return concat(expr.operator, left, evaluate(parts.get(1)));
+        }
+        // Todos os operandos são avaliados antes de concatenar, como na VM
+        Object[] values = new Object[parts.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = evaluate(parts.get(i));
+        }
+        return concat(expr.operator, values, 0, values.length);
+    }
+
+    private static Metamethod metamethodFor(Token operator) {
+        switch (operator.type) {
+            case GREATER: return Metamethod.GT;
+            case GREATER_EQUAL: return Metamethod.GE;
+            case LESS: return Metamethod.LT;
+            case LESS_EQUAL: return Metamethod.LE;
+            case MINUS: return Metamethod.SUB;
+            case PLUS: return Metamethod.ADD;
+            case SLASH: return Metamethod.DIV;
+            case STAR: return Metamethod.MUL;
+            case PERCENT: return Metamethod.MOD;
+            case CARET: return Metamethod.POW;
             default:
-                throw new RuntimeError(expr.operator, "Unknown binary operator.");
+                throw new RuntimeError(operator, "Unknown binary operator.");
         }
     }
 
     @Override
     public Object visitCallExpr(Expr.Call expr) {
+        // Até três argumentos vão direto para as entradas de aridade fixa,
+        // sem lista nem array por chamada
         Object callee = evaluate(expr.callee);
-        List<Object> arguments = new ArrayList<>();
-        for (Expr argument : expr.arguments) {
-            arguments.add(evaluate(argument));
+        List<Expr> arguments = expr.arguments;
+        switch (arguments.size()) {
+            case 0:
+                return callable(expr.paren, callee, 0).call0(this);
+            case 1: {
+                Object a = evaluate(arguments.get(0));
+                return callable(expr.paren, callee, 1).call1(this, a);
+            }
+            case 2: {
+                Object a = evaluate(arguments.get(0));
+                Object b = evaluate(arguments.get(1));
+                return callable(expr.paren, callee, 2).call2(this, a, b);
+            }
+            case 3: {
+                Object a = evaluate(arguments.get(0));
+                Object b = evaluate(arguments.get(1));
+                Object c = evaluate(arguments.get(2));
+                return callable(expr.paren, callee, 3).call3(this, a, b, c);
+            }
+            default: {
+                Object[] values = new Object[arguments.size()];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = evaluate(arguments.get(i));
+                }
+                return callable(expr.paren, callee, values.length).call(this, values);
+            }
         }
+    }
 
+    public Object callFunction(Token paren, Object callee, List<Object> arguments) {
+        return callable(paren, callee, arguments.size()).call(this, arguments);
+    }
+
+    // Valida o alvo de uma chamada com argc argumentos. Funções Lua são
+    // checadas pelo campo arity, sem passar pela interface
+    public LuaCallable callable(Token paren, Object callee, int argc) {
+        if (callee instanceof LuaFunction && ((LuaFunction) callee).arity == argc) {
+            return (LuaFunction) callee;
+        }
         if (!(callee instanceof LuaCallable)) {
-            throw new RuntimeError(expr.paren, "Can only call functions.");
+            throw new RuntimeError(paren, "Can only call functions.");
         }
 
         LuaCallable function = (LuaCallable)callee;
         int arity = function.arity();
         
-        if (arity >= 0 && arguments.size() != arity) {
-            throw new RuntimeError(expr.paren, 
-                "Expected " + arity + " arguments but got " + arguments.size() + ".");
+        if (arity >= 0 && argc != arity) {
+            throw new RuntimeError(paren, 
+                "Expected " + arity + " arguments but got " + argc + ".");
         }
-
-        return function.call(this, arguments);
+        return function;
     }
 
     @Override
     public Object visitLiteralExpr(Expr.Literal expr) {
-        if (expr.value instanceof String && ((String)expr.value).equals("{}")) {
-            return new LuaTable();
-        }
-        if (expr.value instanceof Stmt.Function) {
-            Stmt.Function func = (Stmt.Function)expr.value;
-            return new LuaFunction(func, environment);
-        }
         return expr.value;
     }
 
+    @Override
+    public Object visitIntLiteralExpr(Expr.IntLiteral expr) {
+        rawLong = expr.value;
+        return Unboxed.INT;
+    }
+
+    @Override
+    public Object visitFloatLiteralExpr(Expr.FloatLiteral expr) {
+        rawDouble = expr.value;
+        return Unboxed.FLOAT;
+    }
+
+    @Override
+    public Object visitFunctionExpr(Expr.Function expr) {
+        return closure(expr.declaration);
+    }
+
     @Override
     public Object visitGroupingExpr(Expr.Grouping expr) {
-        return evaluate(expr.expression);
+        return evaluateRaw(expr.expression);
     }
 
     @Override
     public Object visitLogicalExpr(Expr.Logical expr) {
-        Object left = evaluate(expr.left);
+        Object left = evaluateRaw(expr.left);
         if (expr.operator.type == TokenType.OR) {
             if (isTruthy(left)) return left;
         } else {
             if (!isTruthy(left)) return left;
         }
-        return evaluate(expr.right);
+        return evaluateRaw(expr.right);
     }
 
     @Override
     public Object visitUnaryExpr(Expr.Unary expr) {
-        Object right = evaluate(expr.right);
-        
-        switch (expr.operator.type) {
+        Object right = evaluateRaw(expr.right);
+        if (expr.operator.type == TokenType.MINUS) {
+            if (right == Unboxed.INT) {
+                rawLong = -rawLong;
+                return Unboxed.INT;
+            }
+            if (right == Unboxed.FLOAT) {
+                rawDouble = -rawDouble;
+                return Unboxed.FLOAT;
+            }
+        }
+        return unaryOp(expr.operator, box(right));
+    }
+
+    public Object unaryOp(Token operator, Object right) {
+        switch (operator.type) {
             case NOT: return !isTruthy(right);
             case MINUS:
-                Object unm = getMetamethod(right, "__unm");
+                Object unm = getMetamethod(right, Metamethod.UNM);
                 if (unm instanceof LuaCallable) {
-                    return ((LuaCallable) unm).call(this, Arrays.asList(right));
+                    return ((LuaCallable) unm).call1(this, right);
                 }
-                checkNumberOperand(expr.operator, right);
-                return -(double)right;
+                checkNumberOperand(operator, right);
+                if (right instanceof Long) return -(Long) right;
+                return -(Double) right;
             default:
                 return null;
         }
@@ -525,7 +879,7 @@ public class LuaInterpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void>
 
     @Override
     public Object visitVariableExpr(Expr.Variable expr) {
-        return lookUpVariable(expr.name, expr);
+        return lookUpVariable(expr);
     }
 
     @Override
@@ -547,38 +901,64 @@ public class LuaInterpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void>
         Object table = evaluate(expr.table);
         
         if (table instanceof LuaTable) {
-            // Passar o interpretador atual para o get
-            return ((LuaTable) table).get(this, expr.field.lexeme);
+            return expr.cache.get(this, (LuaTable) table);
         }
         
         throw new RuntimeError(expr.field, "Attempt to index a non-table value");
     }
+
+    @Override
+    public Object visitTableAssignExpr(Expr.TableAssign expr) {
+        Object table = evaluate(expr.table);
+        Object key = evaluate(expr.key);
+        Object value = evaluate(expr.value);
+
+        if (!(table instanceof LuaTable)) {
+            throw new RuntimeError(expr.token,
+                "Attempt to index a non-table value (" + stringify(table) + ")");
+        }
+        if (key == null) {
+            throw new RuntimeError(expr.token, "Table index is nil.");
+        }
+        if (key instanceof Double && Double.isNaN((Double) key)) {
+            throw new RuntimeError(expr.token, "Table index is NaN.");
+        }
+        ((LuaTable) table).set(this, key, value);
+        return value;
+    }
     @Override
     public Object visitTableExpr(Expr.Table expr) {
-        LuaTable table = new LuaTable();
-        
-        for (Expr.Field field : expr.fields) {
+        LuaTable table = new LuaTable(expr.arrayCount, expr.keyedCount);
+        long position = 0;
+
+        for (int i = 0; i < expr.keys.length; i++) {
             Object key = null;
-            if (field.key != null) {
-                key = evaluate(field.key);
+            if (expr.keys[i] != null) {
+                key = evaluate(expr.keys[i]);
             } else {
-                // Chave implícita (array)
-                key = (double) (table.arrayPart.size() + 1);
+                // Chave implícita: posição entre os campos sem chave
+                key = ++position;
             }
             
-            Object value = evaluate(field.value);
-            table.set(key, value);
+            Object value = evaluate(expr.values[i]);
+            table.rawset(key, value);
         }
         
         return table;
     }
-    private Object callMetamethod(Object a, Object b, String metamethod) {
-        Object mm = getMetamethod(a, metamethod);
+
+    @Override
+    public Object visitPackedTableExpr(Expr.PackedTable expr) {
+        return TablePacker.build(expr);
+    }
+
+    private Object callMetamethod(Object a, Object b, Metamethod event) {
+        Object mm = getMetamethod(a, event);
         if (mm == null) {
-            mm = getMetamethod(b, metamethod);
+            mm = getMetamethod(b, event);
         }
         if (mm instanceof LuaCallable) {
-            return ((LuaCallable) mm).call(this, Arrays.asList(a, b));
+            return ((LuaCallable) mm).call2(this, a, b);
         }
         return null;
     }
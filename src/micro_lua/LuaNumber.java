@@ -0,0 +1,189 @@
+package micro_lua;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+
+// Semântica numérica do Lua 5.3: inteiros (Long) e floats (Double).
+// +, -, * e % entre inteiros dão inteiros; / e ^ sempre dão float;
+// comparações entre inteiro e float são exatas.
+public final class LuaNumber {
+    private static final MathContext FLOAT_DIGITS = new MathContext(14);
+    // 2^63 como double: limite dos floats representáveis como long
+    private static final double TWO_POW_63 = 9.223372036854775808E18;
+
+    private LuaNumber() {}
+
+    public static boolean isNumber(Object value) {
+        return value instanceof Long || value instanceof Double;
+    }
+
+    public static double toDouble(Object value) {
+        return value instanceof Long ? (double) (Long) value : (Double) value;
+    }
+
+    public static Object arith(Token operator, Object a, Object b) {
+        if (a instanceof Long && b instanceof Long) {
+            return arith(operator, (long) (Long) a, (long) (Long) b);
+        }
+        return arith(operator.type, toDouble(a), toDouble(b));
+    }
+
+    static Object arith(Token operator, long x, long y) {
+        switch (operator.type) {
+            case PLUS: return x + y;
+            case MINUS: return x - y;
+            case STAR: return x * y;
+            case PERCENT: return mod(operator, x, y);
+            default: return arith(operator.type, (double) x, (double) y);
+        }
+    }
+
+    static double arith(TokenType operator, double x, double y) {
+        switch (operator) {
+            case PLUS: return x + y;
+            case MINUS: return x - y;
+            case STAR: return x * y;
+            case SLASH: return x / y;
+            case PERCENT: return mod(x, y);
+            case CARET: return Math.pow(x, y);
+            default: throw new IllegalArgumentException("Not an arithmetic operator: " + operator);
+        }
+    }
+
+    static long mod(Token operator, long x, long y) {
+        if (y == 0) {
+            throw new RuntimeError(operator, "Attempt to perform 'n%%0'.");
+        }
+        return Math.floorMod(x, y);
+    }
+
+    static double mod(double x, double y) {
+        double m = x % y;
+        if (m != 0 && (m > 0) != (y > 0)) m += y;
+        return m;
+    }
+
+    public static boolean equal(Object a, Object b) {
+        if (a instanceof Long && b instanceof Long) return ((Long) a).longValue() == (Long) b;
+        if (a instanceof Long) return equal((long) (Long) a, (double) (Double) b);
+        if (b instanceof Long) return equal((long) (Long) b, (double) (Double) a);
+        return (double) (Double) a == (double) (Double) b;
+    }
+
+    static boolean equal(long i, double f) {
+        return f == Math.rint(f) && f >= -TWO_POW_63 && f < TWO_POW_63 && (long) f == i;
+    }
+
+    public static boolean lessThan(Object a, Object b) {
+        if (a instanceof Long && b instanceof Long) return (Long) a < (Long) b;
+        if (a instanceof Long) return lessThan((long) (Long) a, (double) (Double) b);
+        if (b instanceof Long) return lessThan((double) (Double) a, (long) (Long) b);
+        return (Double) a < (Double) b;
+    }
+
+    public static boolean lessEqual(Object a, Object b) {
+        if (a instanceof Long && b instanceof Long) return (Long) a <= (Long) b;
+        if (a instanceof Long) return lessEqual((long) (Long) a, (double) (Double) b);
+        if (b instanceof Long) return lessEqual((double) (Double) a, (long) (Long) b);
+        return (Double) a <= (Double) b;
+    }
+
+    // i < f  <=>  i < ceil(f), desde que ceil(f) caiba num long
+    static boolean lessThan(long i, double f) {
+        if (Double.isNaN(f)) return false;
+        if (f >= TWO_POW_63) return true;
+        if (f <= -TWO_POW_63) return false;
+        return i < (long) Math.ceil(f);
+    }
+
+    static boolean lessEqual(long i, double f) {
+        if (Double.isNaN(f)) return false;
+        if (f >= TWO_POW_63) return true;
+        if (f < -TWO_POW_63) return false;
+        return i <= (long) Math.floor(f);
+    }
+
+    static boolean lessThan(double f, long i) {
+        if (Double.isNaN(f)) return false;
+        if (f >= TWO_POW_63) return false;
+        if (f < -TWO_POW_63) return true;
+        return (long) Math.floor(f) < i;
+    }
+
+    static boolean lessEqual(double f, long i) {
+        if (Double.isNaN(f)) return false;
+        if (f >= TWO_POW_63) return false;
+        if (f <= -TWO_POW_63) return true;
+        return (long) Math.ceil(f) <= i;
+    }
+
+    // for numérico (como o forprep do Lua 5.4). Com início e passo inteiros o
+    // laço é inteiro: o limite float é arredondado para dentro e saturado.
+    public static void checkForOperand(Token name, Object value, String what) {
+        if (!isNumber(value)) {
+            throw new RuntimeError(name, "'for' " + what + " must be a number.");
+        }
+    }
+
+    public static boolean forSkips(long start, Object limit, long step) {
+        if (limit instanceof Double) {
+            double d = (Double) limit;
+            if (Double.isNaN(d)) return true;
+            if (d >= TWO_POW_63) return step < 0;
+            if (d < -TWO_POW_63) return step > 0;
+        }
+        long last = forLimit(limit, step);
+        return step > 0 ? start > last : start < last;
+    }
+
+    public static long forLimit(Object limit, long step) {
+        if (limit instanceof Long) return (Long) limit;
+        double d = step > 0 ? Math.floor((Double) limit) : Math.ceil((Double) limit);
+        if (d >= TWO_POW_63) return Long.MAX_VALUE;
+        if (d < -TWO_POW_63) return Long.MIN_VALUE;
+        return (long) d;
+    }
+
+    // Se ainda cabe mais um passo entre i e o limite. A distância é comparada
+    // sem sinal, então i + step nunca transborda, mesmo perto dos extremos
+    public static boolean forContinues(long i, long last, long step) {
+        if (step > 0) return Long.compareUnsigned(last - i, step) >= 0;
+        return Long.compareUnsigned(i - last, -step) >= 0;
+    }
+
+    // Floats com valor inteiro viram chaves inteiras, como no Lua
+    public static Object normalizeKey(Object key) {
+        if (key instanceof Double) {
+            double d = (Double) key;
+            if (d == Math.rint(d) && d >= -TWO_POW_63 && d < TWO_POW_63) {
+                return (long) d;
+            }
+        }
+        return key;
+    }
+
+    // Equivalente ao "%.14g" do Lua, com ".0" quando o float parece inteiro
+    public static String formatFloat(double d) {
+        if (Double.isNaN(d)) return Double.doubleToRawLongBits(d) < 0 ? "-nan" : "nan";
+        if (Double.isInfinite(d)) return d > 0 ? "inf" : "-inf";
+        if (d == Math.rint(d) && Math.abs(d) < 1e14) {
+            if (d == 0 && 1 / d < 0) return "-0.0";
+            return Long.toString((long) d) + ".0";
+        }
+
+        BigDecimal rounded = new BigDecimal(d).round(FLOAT_DIGITS).stripTrailingZeros();
+        String digits = rounded.unscaledValue().abs().toString();
+        int exponent = digits.length() - 1 - rounded.scale();
+        String sign = d < 0 ? "-" : "";
+        if (exponent < -4 || exponent >= FLOAT_DIGITS.getPrecision()) {
+            StringBuilder sb = new StringBuilder(sign).append(digits.charAt(0));
+            if (digits.length() > 1) sb.append('.').append(digits, 1, digits.length());
+            sb.append('e').append(exponent < 0 ? '-' : '+');
+            int abs = Math.abs(exponent);
+            if (abs < 10) sb.append('0');
+            return sb.append(abs).toString();
+        }
+        String text = rounded.toPlainString();
+        return text.indexOf('.') >= 0 ? text : text + ".0";
+    }
+}
@@ -0,0 +1,126 @@
+package micro_lua;
+
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+
+import micro_lua.vm.Compiler;
+import micro_lua.vm.Prototype;
+import micro_lua.vm.VM;
+
+// Um estado Lua independente, para embutir o interpretador: tem as próprias
+// globais, pilha, saída e erros. Nada aqui é estático, então estados
+// diferentes podem rodar ao mesmo tempo em threads diferentes; um mesmo
+// estado, como no Lua, é de uma thread por vez.
+//
+// Um CompiledChunk (ou um Prototype) não guarda nada do estado que o
+// compilou: compilado uma vez, pode ser executado por vários estados em
+// paralelo, sem repetir Scanner, Parser, Resolver nem otimizador.
+public class LuaState {
+    private final ErrorReporter errors;
+    private final LuaInterpreter interpreter;
+    private final int maxStack;
+
+    public LuaState() {
+        this(System.out, System.err);
+    }
+
+    public LuaState(PrintStream out, PrintStream err) {
+        this(out, err, VM.DEFAULT_MAX_STACK);
+    }
+
+    // maxStack: registradores disponíveis à VM; limita a profundidade de recursão
+    public LuaState(PrintStream out, PrintStream err, int maxStack) {
+        this.errors = new ErrorReporter(err);
+        this.interpreter = new LuaInterpreter(errors, out);
+        this.maxStack = maxStack;
+    }
+
+    public ErrorReporter errors() {
+        return errors;
+    }
+
+    public Map<String, Object> globals() {
+        return interpreter.getGlobals();
+    }
+
+    // Pode ser chamado de outra thread: o script em execução termina com um
+    // erro de execução ("interrupted.") no próximo laço ou chamada
+    public void interrupt() {
+        interpreter.interrupt();
+    }
+
+    // Compila e executa no interpretador de árvore; false se houve erro
+    public boolean run(String source) {
+        CompiledChunk chunk = load(source);
+        return chunk != null && execute(chunk);
+    }
+
+    public boolean run(ByteBuffer source) {
+        CompiledChunk chunk = load(source);
+        return chunk != null && execute(chunk);
+    }
+
+    // Front-end completo até a AST otimizada; null se houve erro
+    public CompiledChunk load(String source) {
+        return load(new Scanner(source, errors));
+    }
+
+    public CompiledChunk load(ByteBuffer source) {
+        return load(new Scanner(source, errors));
+    }
+
+    private CompiledChunk load(Scanner scanner) {
+        errors.reset();
+        List<Stmt> statements = new Parser(scanner, errors).parse();
+        if (errors.hadError()) return null;
+
+        int frameSize = resolve(statements);
+        if (errors.hadError()) return null;
+
+        // Só a AST otimizada sobrevive: a original fica para o coletor
+        return new CompiledChunk(Optimizer.standard().optimize(statements), frameSize);
+    }
+
+    // Roda um chunk no interpretador de árvore; false se houve erro de execução
+    public boolean execute(CompiledChunk chunk) {
+        errors.reset();
+        interpreter.clearInterrupt();
+        interpreter.interpret(chunk.statements(), chunk.frameSize());
+        return !errors.hadRuntimeError();
+    }
+
+    // Front-end completo até o bytecode; null se houve erro
+    public Prototype compile(String source) {
+        return compile(new Scanner(source, errors));
+    }
+
+    public Prototype compile(ByteBuffer source) {
+        return compile(new Scanner(source, errors));
+    }
+
+    private Prototype compile(Scanner scanner) {
+        CompiledChunk chunk = load(scanner);
+        if (chunk == null) return null;
+
+        Prototype main = new Compiler(errors).compile(chunk.statements());
+        return errors.hadError() ? null : main;
+    }
+
+    // Roda um Prototype na VM; false se houve erro de execução
+    public boolean execute(Prototype main) {
+        errors.reset();
+        interpreter.clearInterrupt();
+        new VM(interpreter, maxStack).interpret(main);
+        return !errors.hadRuntimeError();
+    }
+
+    // Tamanho do frame de nível superior. O Resolver guarda referências aos
+    // nós que analisou, então não deve sobreviver a esta chamada
+    private int resolve(List<Stmt> statements) {
+        Resolver resolver = new Resolver(errors);
+        resolver.resolve(statements);
+        return resolver.frameSize();
+    }
+}
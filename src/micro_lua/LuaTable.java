@@ -1,79 +1,394 @@
 package micro_lua;
 
-import java.util.HashMap;
-import java.util.Map;
-import java.util.List;
-import java.util.ArrayList;
 import java.util.Arrays;
 
+// Tabela híbrida no estilo do Lua: chaves inteiras 1..n ficam numa parte
+// array e o resto numa parte hash de endereçamento aberto (sondagem linear).
+// Chaves numéricas da parte hash ficam sem boxing em numKeys. Quando a parte
+// hash enche, o rehash conta as chaves inteiras e escolhe o maior tamanho de
+// array que fique mais da metade ocupado (computesizes do Lua 5.3).
+// Chaves string ficam em slots descritos por um Shape compartilhado, o que
+// permite caches inline por shape nos acessos t.nome (FieldCache).
 public class LuaTable {
-    public final Map<Object, Object> elements = new HashMap<>();
-    public final List<Object> arrayPart = new ArrayList<>();
-    private LuaTable metatable = null;
-    
+    private static final Object[] EMPTY = {};
+    // Marcadores em hashKeys para chaves guardadas em numKeys
+    private static final Object INT_KEY = new Object();
+    private static final Object FLOAT_KEY = new Object();
+    private static final int MAX_ARRAY_BITS = 30;
+    private static final int MIN_HASH = 4;
+    // Tabelas com mais chaves string que isso viram dicionário (shape == null)
+    private static final int MAX_SHAPE_FIELDS = 32;
+
+    private Object[] array = EMPTY;
+    // Quantidade de valores não-nil na parte array
+    private int arrayCount = 0;
+
+    // Entradas com chave e valor nil estão mortas: continuam na sondagem até
+    // o próximo rehash, então percorrer a tabela apagando campos é seguro
+    private Object[] hashKeys = EMPTY;
+    private long[] numKeys;
+    private Object[] hashValues = EMPTY;
+    private int hashCount = 0;   // entradas vivas
+    private int hashUsed = 0;    // entradas vivas + mortas
+
+    // Chaves string: o shape dá o slot de cada chave; em modo dicionário
+    // (shape == null) elas vão para a parte hash
+    Shape shape = Shape.ROOT;
+    Object[] slots = EMPTY;
+
+    LuaTable metatable = null;
+    // Eventos que esta tabela, usada como metatabela, não define; zerado a
+    // cada gravação de chave string
+    private int absentMetamethods = 0;
+
+    public LuaTable() {}
+
+    // Pré-dimensiona a parte array e os slots (usado pelos construtores de
+    // tabela, em que os campos com chave costumam ser nomes)
+    public LuaTable(int arraySize, int fieldCount) {
+        if (arraySize > 0) array = new Object[arraySize];
+        if (fieldCount > 0) slots = new Object[Math.min(fieldCount, MAX_SHAPE_FIELDS)];
+    }
+
     public Object get(Object key) {
         return get(null, key);
     }
+
     public Object get(LuaInterpreter interpreter, Object key) {
-        // Verificar parte array primeiro
-        if (key instanceof Double) {
-            int index = ((Double) key).intValue();
-            if (index >= 1 && index <= arrayPart.size()) {
-                return arrayPart.get(index - 1);
-            }
-        }
-        
-        // Verificar elementos diretos
-        if (elements.containsKey(key)) {
-            return elements.get(key);
+        Object value = rawget(key);
+        if (value != null || metatable == null) return value;
+
+        Object handler = metatable.metamethod(Metamethod.INDEX);
+        if (handler instanceof LuaCallable) {
+            return ((LuaCallable) handler).call2(interpreter, this, key);
+        } else if (handler instanceof LuaTable) {
+            return ((LuaTable) handler).get(interpreter, key);
         }
-        
-        // Verificar metatable
+        return null;
+    }
+
+    public void set(Object key, Object value) {
+        set(null, key, value);
+    }
+
+    public void set(LuaInterpreter interpreter, Object key, Object value) {
+        // __newindex só vale para chaves ausentes
         if (metatable != null) {
-            Object handler = metatable.get(interpreter, "__index");  // Passar interpretador aqui
-            if (handler != null) {
+            Object handler = metatable.metamethod(Metamethod.NEWINDEX);
+            if (handler != null && rawget(key) == null) {
                 if (handler instanceof LuaCallable) {
-                    // Passar interpretador na chamada
-                    return ((LuaCallable) handler).call(interpreter, Arrays.asList(this, key));
+                    ((LuaCallable) handler).call3(interpreter, this, key, value);
+                    return;
                 } else if (handler instanceof LuaTable) {
-                    return ((LuaTable) handler).get(interpreter, key);  // Passar interpretador
+                    ((LuaTable) handler).set(interpreter, key, value);
+                    return;
                 }
             }
         }
-        
-        return null;
+        rawset(key, value);
     }
 
-    public void set(Object key, Object value) {
-        // Verificar se é uma operação rawset
-        boolean isRawSet = false;
-        
-        // Parte array
-        if (key instanceof Double && !isRawSet) {
-            int index = ((Double) key).intValue();
-            if (index == arrayPart.size() + 1) {
-                arrayPart.add(value);
-                return;
-            } else if (index >= 1 && index <= arrayPart.size()) {
-                arrayPart.set(index - 1, value);
+    public Object rawget(Object key) {
+        if (key instanceof Rope) key = key.toString();
+        if (key instanceof String && shape != null) {
+            int slot = shape.indexOf((String) key);
+            return slot < 0 ? null : slots[slot];
+        }
+        if (key instanceof Long) return rawgetInt((Long) key);
+        if (key instanceof Double) {
+            double d = (Double) key;
+            long i = (long) d;
+            if (i == d && d < 0x1p63) return rawgetInt(i);
+            int index = findNumber(FLOAT_KEY, Double.doubleToRawLongBits(d));
+            return index < 0 ? null : hashValues[index];
+        }
+        if (key == null) return null;
+        int index = findObject(key);
+        return index < 0 ? null : hashValues[index];
+    }
+
+    public Object rawgetInt(long key) {
+        if (key - 1 < array.length && key >= 1) {
+            return array[(int) (key - 1)];
+        }
+        int index = findNumber(INT_KEY, key);
+        return index < 0 ? null : hashValues[index];
+    }
+
+    public void rawset(Object key, Object value) {
+        if (key instanceof Rope) key = key.toString();
+        if (key instanceof String) {
+            absentMetamethods = 0;
+            if (shape != null) {
+                setField((String) key, value);
                 return;
             }
         }
-        
-        // Verificar __newindex
-        if (metatable != null && metatable.get("__newindex") != null && !isRawSet) {
-            Object handler = metatable.get("__newindex");
-            if (handler instanceof LuaCallable) {
-                ((LuaCallable) handler).call(null, Arrays.asList(this, key, value));
+        if (key instanceof Long) {
+            rawsetInt((Long) key, value);
+            return;
+        }
+        if (key instanceof Double) {
+            double d = (Double) key;
+            long i = (long) d;
+            if (i == d && d < 0x1p63) {
+                rawsetInt(i, value);
                 return;
-            } else if (handler instanceof LuaTable) {
-                ((LuaTable) handler).set(key, value);
+            }
+            if (Double.isNaN(d)) throw new RuntimeError(null, "Table index is NaN.");
+            setHash(FLOAT_KEY, Double.doubleToRawLongBits(d), value);
+            return;
+        }
+        if (key == null) throw new RuntimeError(null, "Table index is nil.");
+        setHash(key, 0, value);
+    }
+
+    public void rawsetInt(long key, Object value) {
+        if (key - 1 < array.length && key >= 1) {
+            int index = (int) (key - 1);
+            Object old = array[index];
+            if (old == null && value != null) arrayCount++;
+            else if (old != null && value == null) arrayCount--;
+            array[index] = value;
+            return;
+        }
+        // Acrescentar logo após o fim da parte array a faz crescer direto
+        if (key == array.length + 1 && value != null && key <= 1 << MAX_ARRAY_BITS) {
+            resizeArray(Math.max(4, array.length * 2));
+            array[(int) (key - 1)] = value;
+            arrayCount++;
+            return;
+        }
+        setHash(INT_KEY, key, value);
+    }
+
+    private void setField(String key, Object value) {
+        int slot = shape.indexOf(key);
+        if (slot >= 0) {
+            slots[slot] = value;
+            return;
+        }
+        if (value == null) return;
+
+        if (shape.size() == MAX_SHAPE_FIELDS) {
+            toDictionary();
+            setHash(key, 0, value);
+            return;
+        }
+        shape = shape.withKey(key);
+        slot = shape.size() - 1;
+        if (slot == slots.length) {
+            slots = Arrays.copyOf(slots, Math.min(Math.max(4, slots.length * 2), MAX_SHAPE_FIELDS));
+        }
+        slots[slot] = value;
+    }
+
+    private void toDictionary() {
+        String[] keys = shape.keys;
+        Object[] values = slots;
+        shape = null;
+        slots = EMPTY;
+        for (int i = 0; i < keys.length; i++) {
+            if (values[i] != null) setHash(keys[i], 0, values[i]);
+        }
+    }
+
+    private void setHash(Object key, long numKey, Object value) {
+        int index = key == INT_KEY || key == FLOAT_KEY ? findNumber(key, numKey) : findObject(key);
+        if (index >= 0) {
+            Object old = hashValues[index];
+            if (old == null && value != null) hashCount++;
+            else if (old != null && value == null) hashCount--;
+            hashValues[index] = value;
+            return;
+        }
+        if (value == null) return;
+
+        if ((hashUsed + 1) * 4 > hashKeys.length * 3) {
+            rehash(key, numKey);
+            // Depois do rehash a chave pode ter ido para a parte array
+            if (key == INT_KEY && numKey - 1 < array.length && numKey >= 1) {
+                rawsetInt(numKey, value);
                 return;
             }
         }
-        
-        // Operação normal
-        elements.put(key, value);
+        insertNew(key, numKey, value);
+    }
+
+    // Chaves string entram como vieram: as de literais já são canônicas e
+    // acham por identidade; as montadas em tempo de execução acham por equals
+    private void insertNew(Object key, long numKey, Object value) {
+        int mask = hashKeys.length - 1;
+        int index = (key == INT_KEY || key == FLOAT_KEY ? hashNumber(numKey) : hashObject(key)) & mask;
+        while (hashKeys[index] != null) {
+            index = (index + 1) & mask;
+        }
+        hashKeys[index] = key;
+        if (key == INT_KEY || key == FLOAT_KEY) numKeys[index] = numKey;
+        hashValues[index] = value;
+        hashCount++;
+        hashUsed++;
+    }
+
+    private int findNumber(Object kind, long numKey) {
+        if (hashUsed == 0) return -1;
+        int mask = hashKeys.length - 1;
+        int index = hashNumber(numKey) & mask;
+        Object k;
+        while ((k = hashKeys[index]) != null) {
+            if (k == kind && numKeys[index] == numKey) return index;
+            index = (index + 1) & mask;
+        }
+        return -1;
+    }
+
+    private int findObject(Object key) {
+        if (hashUsed == 0) return -1;
+        int mask = hashKeys.length - 1;
+        int index = hashObject(key) & mask;
+        Object k;
+        while ((k = hashKeys[index]) != null) {
+            if (k == key || (k != INT_KEY && k != FLOAT_KEY && k.equals(key))) return index;
+            index = (index + 1) & mask;
+        }
+        return -1;
+    }
+
+    private static int hashNumber(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private static int hashObject(Object key) {
+        int h = key.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static int hashCapacityFor(int entries) {
+        int capacity = MIN_HASH;
+        while (capacity * 3 < entries * 4) capacity <<= 1;
+        return capacity;
+    }
+
+    private void allocHash(int capacity) {
+        hashKeys = new Object[capacity];
+        numKeys = new long[capacity];
+        hashValues = new Object[capacity];
+        hashCount = 0;
+        hashUsed = 0;
+    }
+
+    // nums[i] conta as chaves inteiras k com 2^(i-1) < k <= 2^i
+    private static void countInt(long key, int[] nums) {
+        if (key >= 1 && key <= 1L << MAX_ARRAY_BITS) {
+            nums[64 - Long.numberOfLeadingZeros(key - 1)]++;
+        }
+    }
+
+    // Reorganiza as duas partes para a chave nova caber, descartando as
+    // entradas mortas; pode tanto crescer quanto encolher cada parte
+    private void rehash(Object newKey, long newNumKey) {
+        int[] nums = new int[MAX_ARRAY_BITS + 1];
+        int intKeys = 0;
+        for (int i = 0; i < array.length; i++) {
+            if (array[i] != null) {
+                countInt(i + 1, nums);
+                intKeys++;
+            }
+        }
+        int total = arrayCount + hashCount + 1;
+        for (int i = 0; i < hashKeys.length; i++) {
+            if (hashKeys[i] == INT_KEY && hashValues[i] != null) {
+                long k = numKeys[i];
+                if (k >= 1 && k <= 1L << MAX_ARRAY_BITS) {
+                    countInt(k, nums);
+                    intKeys++;
+                }
+            }
+        }
+        if (newKey == INT_KEY && newNumKey >= 1 && newNumKey <= 1L << MAX_ARRAY_BITS) {
+            countInt(newNumKey, nums);
+            intKeys++;
+        }
+
+        // Maior n potência de 2 com mais de n/2 chaves em 1..n
+        int inArray = 0;
+        int arraySize = 0;
+        int accumulated = 0;
+        long twoToI = 1;
+        for (int i = 0; i < nums.length && intKeys > twoToI / 2; i++, twoToI <<= 1) {
+            accumulated += nums[i];
+            if (accumulated > twoToI / 2) {
+                arraySize = (int) twoToI;
+                inArray = accumulated;
+            }
+        }
+        resize(arraySize, total - inArray);
+    }
+
+    private void resize(int arraySize, int hashEntries) {
+        Object[] oldKeys = hashKeys;
+        long[] oldNumKeys = numKeys;
+        Object[] oldValues = hashValues;
+        Object[] oldArray = array;
+
+        array = arraySize == oldArray.length ? oldArray : Arrays.copyOf(oldArray, arraySize);
+        if (hashEntries > 0) {
+            allocHash(hashCapacityFor(hashEntries));
+        } else {
+            hashKeys = EMPTY;
+            numKeys = null;
+            hashValues = EMPTY;
+            hashCount = 0;
+            hashUsed = 0;
+        }
+        arrayCount = 0;
+        for (Object value : array) {
+            if (value != null) arrayCount++;
+        }
+
+        // Valores que saíram da parte array vão para a hash; as chaves são
+        // todas distintas e hashEntries já reserva espaço para elas
+        for (int i = arraySize; i < oldArray.length; i++) {
+            if (oldArray[i] != null) insertNew(INT_KEY, i + 1, oldArray[i]);
+        }
+        for (int i = 0; i < oldKeys.length; i++) {
+            Object key = oldKeys[i];
+            Object value = oldValues[i];
+            if (key == null || value == null) continue;
+            long numKey = key == INT_KEY || key == FLOAT_KEY ? oldNumKeys[i] : 0;
+            if (key == INT_KEY && numKey >= 1 && numKey <= arraySize) {
+                array[(int) (numKey - 1)] = value;
+                arrayCount++;
+            } else {
+                insertNew(key, numKey, value);
+            }
+        }
+    }
+
+    // Cresce a parte array trazendo da hash as chaves inteiras que passam a caber nela
+    private void resizeArray(int size) {
+        int oldSize = array.length;
+        array = Arrays.copyOf(array, size);
+        if (hashCount == 0) return;
+        for (int i = 0; i < hashKeys.length; i++) {
+            if (hashKeys[i] == INT_KEY && hashValues[i] != null) {
+                long k = numKeys[i];
+                if (k > oldSize && k <= size) {
+                    array[(int) (k - 1)] = hashValues[i];
+                    arrayCount++;
+                    hashValues[i] = null;
+                    hashCount--;
+                }
+            }
+        }
+    }
+
+    Object metamethod(Metamethod event) {
+        if ((absentMetamethods & event.bit) != 0) return null;
+        Object handler = rawget(event.key);
+        if (handler == null) absentMetamethods |= event.bit;
+        return handler;
     }
 
     public void setMetatable(LuaTable mt) {
@@ -85,53 +400,204 @@ public class LuaTable {
     }
 
     public int length() {
-        if (metatable != null && metatable.get("__len") instanceof LuaCallable) {
-            Object result = ((LuaCallable) metatable.get("__len")).call(null, Arrays.asList(this));
-            if (result instanceof Double) {
-                return ((Double) result).intValue();
+        Object len = metatable != null ? metatable.metamethod(Metamethod.LEN) : null;
+        if (len instanceof LuaCallable) {
+            Object result = ((LuaCallable) len).call1(null, this);
+            if (LuaNumber.isNumber(result)) {
+                return (int) LuaNumber.toDouble(result);
             }
         }
-        return arrayPart.size();
+        return rawLength();
+    }
+
+    // Uma "borda" do Lua: n tal que t[n] ~= nil e t[n + 1] == nil
+    public int rawLength() {
+        int n = arrayCount;
+        if (n < array.length && (n == 0 || array[n - 1] != null) && array[n] == null) {
+            return n;
+        }
+        int j = array.length;
+        if (j > 0 && array[j - 1] == null) {
+            int i = 0;
+            while (j - i > 1) {
+                int m = (i + j) >>> 1;
+                if (array[m - 1] == null) j = m; else i = m;
+            }
+            return i;
+        }
+        if (hashCount == 0) return j;
+
+        // A sequência continua na parte hash: busca ilimitada
+        long i = j;
+        long k = j + 1;
+        while (rawgetInt(k) != null) {
+            i = k;
+            if (k > Integer.MAX_VALUE / 2) {
+                long m = 1;
+                while (rawgetInt(m) != null) m++;
+                return (int) (m - 1);
+            }
+            k *= 2;
+        }
+        while (k - i > 1) {
+            long m = (i + k) >>> 1;
+            if (rawgetInt(m) == null) k = m; else i = m;
+        }
+        return (int) i;
+    }
+
+    // Percurso (next, pairs, for-in) por posição, sem alocar: as posições
+    // cobrem a parte array, depois os slots do shape e depois a parte hash.
+    // Apagar ou alterar campos durante o percurso é seguro; com chaves novas
+    // a tabela pode se reorganizar e, como no Lua, a ordem fica indefinida.
+
+    // Primeira posição ocupada a partir de position, ou -1 no fim
+    public int nextPosition(int position) {
+        Object[] array = this.array;
+        for (; position < array.length; position++) {
+            if (array[position] != null) return position;
+        }
+        int fields = shape != null ? shape.size() : 0;
+        int offset = position - array.length;
+        for (; offset < fields; offset++) {
+            if (slots[offset] != null) return array.length + offset;
+        }
+        Object[] values = hashValues;
+        for (int index = offset - fields; index < values.length; index++) {
+            if (values[index] != null) return array.length + fields + index;
+        }
+        return -1;
+    }
+
+    // Se a chave da posição é inteira; nesse caso intKeyAt a lê sem boxing
+    public boolean isIntKeyAt(int position) {
+        if (position < array.length) return true;
+        int index = position - array.length - (shape != null ? shape.size() : 0);
+        return index >= 0 && hashKeys[index] == INT_KEY;
+    }
+
+    public long intKeyAt(int position) {
+        if (position < array.length) return position + 1;
+        return numKeys[position - array.length - (shape != null ? shape.size() : 0)];
+    }
+
+    public Object keyAt(int position) {
+        if (position < array.length) return (long) position + 1;
+        int offset = position - array.length;
+        int fields = shape != null ? shape.size() : 0;
+        if (offset < fields) return shape.keys[offset];
+        int index = offset - fields;
+        Object key = hashKeys[index];
+        if (key == INT_KEY) return numKeys[index];
+        if (key == FLOAT_KEY) return Double.longBitsToDouble(numKeys[index]);
+        return key;
+    }
+
+    public Object valueAt(int position) {
+        if (position < array.length) return array[position];
+        int offset = position - array.length;
+        int fields = shape != null ? shape.size() : 0;
+        return offset < fields ? slots[offset] : hashValues[offset - fields];
+    }
+
+    // Posição de onde next(t, key) continua: a seguinte à da chave, ou 0
+    // para key nil. Como no Lua, a chave precisa estar na tabela
+    public int positionAfter(Object key) {
+        if (key == null) return 0;
+        if (key instanceof Rope) key = key.toString();
+        if (key instanceof Double) {
+            double d = (Double) key;
+            long i = (long) d;
+            if (i == d && d < 0x1p63) key = i;
+        }
+        int fields = shape != null ? shape.size() : 0;
+        int index;
+        if (key instanceof String && shape != null) {
+            int slot = shape.indexOf((String) key);
+            if (slot >= 0) return array.length + slot + 1;
+            index = -1;
+        } else if (key instanceof Long) {
+            long k = (Long) key;
+            if (k - 1 < array.length && k >= 1) return (int) k;
+            index = findNumber(INT_KEY, k);
+        } else if (key instanceof Double) {
+            index = findNumber(FLOAT_KEY, Double.doubleToRawLongBits((Double) key));
+        } else {
+            index = findObject(key);
+        }
+        if (index < 0) throw new RuntimeError(null, "invalid key to 'next'");
+        return array.length + fields + index + 1;
     }
 
     @Override
     public String toString() {
-        if (metatable != null && metatable.get("__tostring") instanceof LuaCallable) {
-            LuaCallable tostring = (LuaCallable) metatable.get("__tostring");
-            return (String) tostring.call(null, Arrays.asList(this));
+        Object tostring = metatable != null ? metatable.metamethod(Metamethod.TOSTRING) : null;
+        if (tostring instanceof LuaCallable) {
+            return (String) ((LuaCallable) tostring).call1(null, this);
         }
-        
+
         StringBuilder sb = new StringBuilder();
         sb.append("{");
-        
-        // Parte array
-        for (int i = 0; i < arrayPart.size(); i++) {
-            if (i > 0) sb.append(", ");
-            sb.append(stringify(arrayPart.get(i)));
+
+        // Sequência inicial da parte array
+        int sequence = 0;
+        while (sequence < array.length && array[sequence] != null) {
+            if (sequence > 0) sb.append(", ");
+            sb.append(stringify(array[sequence]));
+            sequence++;
+        }
+        boolean first = sequence == 0;
+        for (int i = sequence; i < array.length; i++) {
+            if (array[i] == null) continue;
+            if (!first) sb.append(", ");
+            first = false;
+            sb.append("[").append(i + 1).append("] = ").append(stringify(array[i]));
+        }
+
+        // Campos do shape, na ordem em que foram criados
+        if (shape != null) {
+            for (int i = 0; i < shape.size(); i++) {
+                if (slots[i] == null) continue;
+                if (!first) sb.append(", ");
+                first = false;
+                appendKey(sb, shape.keys[i]);
+                sb.append(stringify(slots[i]));
+            }
         }
-        
+
         // Parte hash
-        boolean first = arrayPart.isEmpty();
-        for (Map.Entry<Object, Object> entry : elements.entrySet()) {
+        for (int i = 0; i < hashKeys.length; i++) {
+            Object key = hashKeys[i];
+            if (key == null || hashValues[i] == null) continue;
             if (!first) sb.append(", ");
             first = false;
-            
-            if (entry.getKey() instanceof String && 
-                ((String) entry.getKey()).matches("[a-zA-Z_][a-zA-Z0-9_]*")) {
-                sb.append(entry.getKey()).append(" = ");
-            } else {
-                sb.append("[").append(stringify(entry.getKey())).append("] = ");
+
+            if (key == INT_KEY) {
+                key = numKeys[i];
+            } else if (key == FLOAT_KEY) {
+                key = Double.longBitsToDouble(numKeys[i]);
             }
-            sb.append(stringify(entry.getValue()));
+            appendKey(sb, key);
+            sb.append(stringify(hashValues[i]));
         }
-        
+
         sb.append("}");
         return sb.toString();
     }
-    
+
+    private void appendKey(StringBuilder sb, Object key) {
+        if (key instanceof String &&
+            ((String) key).matches("[a-zA-Z_][a-zA-Z0-9_]*")) {
+            sb.append(key).append(" = ");
+        } else {
+            sb.append("[").append(stringify(key)).append("] = ");
+        }
+    }
+
     private String stringify(Object obj) {
         if (obj == null) return "nil";
-        if (obj instanceof String) return "\"" + obj + "\"";
+        if (Rope.isString(obj)) return "\"" + obj + "\"";
+        if (obj instanceof Double) return LuaNumber.formatFloat((Double) obj);
         return obj.toString();
     }
-}
\ No newline at end of file
+}
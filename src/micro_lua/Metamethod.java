@@ -0,0 +1,31 @@
+package micro_lua;
+
+// Eventos de metatabela. Cada metatabela guarda um bit por evento que já
+// sabe não definir (como o campo flags das tabelas do Lua), então o caso
+// sem metamétodo custa um teste de bit.
+enum Metamethod {
+    INDEX("__index"),
+    NEWINDEX("__newindex"),
+    ADD("__add"),
+    SUB("__sub"),
+    MUL("__mul"),
+    DIV("__div"),
+    MOD("__mod"),
+    POW("__pow"),
+    UNM("__unm"),
+    CONCAT("__concat"),
+    LEN("__len"),
+    LT("__lt"),
+    LE("__le"),
+    GT("__gt"),
+    GE("__ge"),
+    TOSTRING("__tostring");
+
+    final String key;
+    final int bit;
+
+    Metamethod(String key) {
+        this.key = key;
+        this.bit = 1 << ordinal();
+    }
+}
@@ -0,0 +1,76 @@
+package micro_lua;
+
+import java.util.List;
+
+// Bases das funções nativas de aridade fixa. A lógica fica na entrada callN
+// da aridade; call(List) e call(Object[]) só desempacotam os argumentos.
+abstract class NativeFunction implements LuaCallable {
+
+    abstract static class Arity0 extends NativeFunction {
+        @Override public int arity() { return 0; }
+
+        @Override public abstract Object call0(LuaInterpreter interpreter);
+
+        @Override public Object call(LuaInterpreter interpreter, List<Object> arguments) {
+            return call0(interpreter);
+        }
+
+        @Override public Object call(LuaInterpreter interpreter, Object[] arguments) {
+            return call0(interpreter);
+        }
+    }
+
+    abstract static class Arity1 extends NativeFunction {
+        @Override public int arity() { return 1; }
+
+        @Override public abstract Object call1(LuaInterpreter interpreter, Object a);
+
+        @Override public Object call(LuaInterpreter interpreter, List<Object> arguments) {
+            return call1(interpreter, arguments.get(0));
+        }
+
+        @Override public Object call(LuaInterpreter interpreter, Object[] arguments) {
+            return call1(interpreter, arguments[0]);
+        }
+    }
+
+    abstract static class Arity2 extends NativeFunction {
+        @Override public int arity() { return 2; }
+
+        @Override public abstract Object call2(LuaInterpreter interpreter, Object a, Object b);
+
+        @Override public Object call(LuaInterpreter interpreter, List<Object> arguments) {
+            return call2(interpreter, arguments.get(0), arguments.get(1));
+        }
+
+        @Override public Object call(LuaInterpreter interpreter, Object[] arguments) {
+            return call2(interpreter, arguments[0], arguments[1]);
+        }
+    }
+
+    abstract static class Arity3 extends NativeFunction {
+        @Override public int arity() { return 3; }
+
+        @Override public abstract Object call3(LuaInterpreter interpreter, Object a, Object b, Object c);
+
+        @Override public Object call(LuaInterpreter interpreter, List<Object> arguments) {
+            return call3(interpreter, arguments.get(0), arguments.get(1), arguments.get(2));
+        }
+
+        @Override public Object call(LuaInterpreter interpreter, Object[] arguments) {
+            return call3(interpreter, arguments[0], arguments[1], arguments[2]);
+        }
+    }
+
+    // Aceita qualquer número de argumentos; a lógica fica em call(Object[])
+    // e as entradas de aridade fixa podem ser sobrescritas para não alocar
+    abstract static class Variadic extends NativeFunction {
+        @Override public int arity() { return -1; }
+
+        @Override public abstract Object call(LuaInterpreter interpreter, Object[] arguments);
+
+        @Override public Object call(LuaInterpreter interpreter, List<Object> arguments) {
+            return call(interpreter, arguments.toArray());
+        }
+    }
+}
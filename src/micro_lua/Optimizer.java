@@ -0,0 +1,36 @@
+package micro_lua;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Pipeline de otimizações sobre a AST já resolvida. Roda entre o Resolver e a
+// execução (interpretador de árvore ou compilador de bytecode); cada etapa
+// recebe a lista de statements e devolve a lista reescrita.
+public class Optimizer {
+    public interface Pass {
+        List<Stmt> apply(List<Stmt> statements);
+    }
+
+    private final List<Pass> passes = new ArrayList<>();
+
+    public Optimizer add(Pass pass) {
+        passes.add(pass);
+        return this;
+    }
+
+    // Dobra constantes, poda os ramos mortos que isso revela e por último
+    // troca os literais numéricos restantes pelos nós tipados
+    public static Optimizer standard() {
+        return new Optimizer()
+            .add(new ConstantFolder())
+            .add(new DeadCodeEliminator())
+            .add(new LiteralSpecializer());
+    }
+
+    public List<Stmt> optimize(List<Stmt> statements) {
+        for (Pass pass : passes) {
+            statements = pass.apply(statements);
+        }
+        return statements;
+    }
+}
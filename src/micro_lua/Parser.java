@@ -2,23 +2,46 @@ package micro_lua;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import static micro_lua.TokenType.*;
 
 public class Parser {
-    private final List<Token> tokens;
-    private int current = 0;
-
-    public Parser(List<Token> tokens) {
-        this.tokens = tokens;
+    // Os tokens vêm do Scanner sob demanda; o Parser só olha o anterior, o
+    // atual e, em checkNext, o seguinte
+    private final Scanner scanner;
+    private final ErrorReporter errors;
+    private Token previous;
+    private Token current;
+    private Token next;
+    // Literais são imutáveis: constantes iguais compartilham o mesmo nó
+    private final Map<Object, Expr.Literal> constants = new HashMap<>();
+    // Chaves e valores dos construtores de tabela em andamento, aos pares;
+    // cada construtor copia os seus para arrays do tamanho exato
+    private final List<Expr> fieldStack = new ArrayList<>();
+    // Constantes das tabelas de dados (Expr.PackedTable)
+    private final ConstantPool pool = new ConstantPool();
+
+    public Parser(Scanner scanner, ErrorReporter errors) {
+        this.scanner = scanner;
+        this.errors = errors;
+        this.current = scanner.nextToken();
     }
 
     public List<Stmt> parse() {
         List<Stmt> statements = new ArrayList<>();
-        while (!isAtEnd()) {
-            statements.add(declaration());
+        try {
+            while (!isAtEnd()) {
+                statements.add(declaration());
+            }
+        } catch (ParseError error) {
+            // Já relatado; o resto da entrada ainda passa pelo Scanner para
+            // que os seus erros também apareçam
+            while (!isAtEnd()) advance();
         }
+        pool.trim();
         return statements;
     }
 
@@ -159,14 +182,15 @@ public class Parser {
 
     private Stmt forStatement() {
         Token name = consume(IDENTIFIER, "Expect variable name.");
+        if (check(COMMA) || check(IN)) return forInStatement(name);
         consume(EQUAL, "Expect '=' after variable name.");
-        Expr initializer = expression();
+        Expr start = expression();
         consume(COMMA, "Expect ',' after initial value.");
-        Expr condition = expression();
+        Expr limit = expression();
         
-        Expr increment = null;
+        Expr step = null;
         if (match(COMMA)) {
-            increment = expression();
+            step = expression();
         }
         
         consume(DO, "Expect 'do' after for clauses.");
@@ -175,7 +199,29 @@ public class Parser {
             bodyStatements.add(declaration());
         }
         consume(END, "Expect 'end' after for body.");
-        return new Stmt.For(name, initializer, condition, increment, new Stmt.Block(bodyStatements));
+        return new Stmt.For(name, start, limit, step, bodyStatements);
+    }
+
+    private Stmt forInStatement(Token first) {
+        List<Token> names = new ArrayList<>();
+        names.add(first);
+        while (match(COMMA)) {
+            names.add(consume(IDENTIFIER, "Expect variable name."));
+        }
+        consume(IN, "Expect 'in' after variable names.");
+
+        List<Expr> iterators = new ArrayList<>();
+        do {
+            iterators.add(expression());
+        } while (match(COMMA));
+
+        consume(DO, "Expect 'do' after for clauses.");
+        List<Stmt> bodyStatements = new ArrayList<>();
+        while (!check(END) && !check(EOF)) {
+            bodyStatements.add(declaration());
+        }
+        consume(END, "Expect 'end' after for body.");
+        return new Stmt.ForIn(names, iterators, bodyStatements);
     }
 
     private Stmt returnStatement() {
@@ -228,6 +274,13 @@ public class Parser {
             if (expr instanceof Expr.Variable) {
                 Token name = ((Expr.Variable)expr).name;
                 return new Expr.Assign(name, value);
+            } else if (expr instanceof Expr.TableIndex) {
+                Expr.TableIndex index = (Expr.TableIndex)expr;
+                return new Expr.TableAssign(index.table, index.index, index.bracket, value);
+            } else if (expr instanceof Expr.TableField) {
+                Expr.TableField field = (Expr.TableField)expr;
+                return new Expr.TableAssign(field.table,
+                    literal(field.field.lexeme), field.field, value);
             }
 
             error(equals, "Invalid assignment target.");
@@ -289,6 +342,16 @@ public class Parser {
 
         while (match(PLUS, MINUS, DOT_DOT)) {
             Token operator = previous();
+            if (operator.type == DOT_DOT) {
+                List<Expr> parts = new ArrayList<>();
+                parts.add(expr);
+                parts.add(factor());
+                while (match(DOT_DOT)) {
+                    parts.add(factor());
+                }
+                expr = new Expr.Concat(parts, operator);
+                continue;
+            }
             Expr right = factor();
             expr = new Expr.Binary(expr, operator, right);
         }
@@ -357,10 +420,10 @@ public class Parser {
 
     private Expr primary() {
         // Literais básicos
-        if (match(FALSE)) return new Expr.Literal(false);
-        if (match(TRUE)) return new Expr.Literal(true);
-        if (match(NIL)) return new Expr.Literal(null);
-        if (match(NUMBER, STRING)) return new Expr.Literal(previous().literal);
+        if (match(FALSE)) return literal(false);
+        if (match(TRUE)) return literal(true);
+        if (match(NIL)) return literal(null);
+        if (match(NUMBER, STRING)) return literal(previous().literal);
 
         // Função anônima
         if (match(FUNCTION)) {
@@ -376,7 +439,7 @@ public class Parser {
             }
             consume(RIGHT_PAREN, "Expect ')' after parameters.");
             List<Stmt> body = block("function");
-            return new Expr.Literal(new Stmt.Function(
+            return new Expr.Function(new Stmt.Function(
                 new Token(TokenType.IDENTIFIER, "", null, previous().line),
                 params,
                 body
@@ -405,44 +468,73 @@ public class Parser {
         throw error(peek(), "Expect expression.");
     }
 
+    private Expr.Literal literal(Object value) {
+        Expr.Literal literal = constants.get(value);
+        if (literal == null) {
+            literal = new Expr.Literal(value);
+            constants.put(value, literal);
+        }
+        return literal;
+    }
+
     private Expr tableConstructor() {
         Token brace = previous();
-        List<Expr.Field> fields = new ArrayList<>();
+        int mark = fieldStack.size();
         
         if (!check(RIGHT_BRACE)) {
             do {
-                fields.add(tableField());
+                tableField();
             } while (match(COMMA, SEMICOLON));
         }
         
         consume(RIGHT_BRACE, "Expect '}' after table elements.");
-        return new Expr.Table(brace, fields);
+        // Tabelas só com constantes não chegam a virar arrays de nós
+        Expr.PackedTable packed = TablePacker.pack(brace, fieldStack, mark, pool);
+        if (packed != null) {
+            fieldStack.subList(mark, fieldStack.size()).clear();
+            return packed;
+        }
+        int count = (fieldStack.size() - mark) / 2;
+        Expr[] keys = new Expr[count];
+        Expr[] values = new Expr[count];
+        for (int i = 0; i < count; i++) {
+            keys[i] = fieldStack.get(mark + 2 * i);
+            values[i] = fieldStack.get(mark + 2 * i + 1);
+        }
+        fieldStack.subList(mark, fieldStack.size()).clear();
+        return new Expr.Table(brace, keys, values);
     }
 
-    private Expr.Field tableField() {
+    // Empilha a chave (null se implícita) e o valor do campo
+    private void tableField() {
         if (match(LEFT_BRACKET)) {
             Expr key = expression();
             consume(RIGHT_BRACKET, "Expect ']' after table key.");
             consume(EQUAL, "Expect '=' after table key.");
             Expr value = expression();
-            return new Expr.Field(key, value);
+            fieldStack.add(key);
+            fieldStack.add(value);
+            return;
         }
         
         if (check(IDENTIFIER) && checkNext(EQUAL)) {
             Token name = advance(); // Consome identificador
             advance(); // Consome '='
             Expr value = expression();
-            return new Expr.Field(new Expr.Literal(name.lexeme), value);
+            fieldStack.add(literal(name.lexeme));
+            fieldStack.add(value);
+            return;
         }
         
         Expr value = expression();
-        return new Expr.Field(null, value); // Chave implícita
+        fieldStack.add(null); // Chave implícita
+        fieldStack.add(value);
     }
     
     private boolean checkNext(TokenType type) {
         if (isAtEnd()) return false;
-        if (current + 1 >= tokens.size()) return false;
-        return tokens.get(current + 1).type == type;
+        if (next == null) next = scanner.nextToken();
+        return next.type == type;
     }
 
 	private boolean match(TokenType... types) {
@@ -466,7 +558,11 @@ public class Parser {
     }
 
     private Token advance() {
-        if (!isAtEnd()) current++;
+        if (!isAtEnd()) {
+            previous = current;
+            current = next != null ? next : scanner.nextToken();
+            next = null;
+        }
         return previous();
     }
 
@@ -475,15 +571,16 @@ public class Parser {
     }
 
     private Token peek() {
-        return tokens.get(current);
+        return current;
     }
 
     private Token previous() {
-        return tokens.get(current - 1);
+        return previous;
     }
 
     private ParseError error(Token token, String message) {
-        Lua.error(token, message);
+        // Depois de um erro do Scanner o que falta no texto não é relatado de novo
+        if (!scanner.hadError()) errors.error(token, message);
         return new ParseError();
     }
 
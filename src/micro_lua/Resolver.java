@@ -1,35 +1,97 @@
 package micro_lua;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.Stack;
 
 public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
-    private final LuaInterpreter interpreter;
-    private final Stack<Map<String, Boolean>> scopes = new Stack<>();
+    // Nomes nativos reservados no escopo global, compartilhados por todos os
+    // Resolvers em vez de registrados a cada um
+    private static final Set<String> NATIVE_NAMES =
+        new HashSet<>(Arrays.asList("print", "clock", "str", "num", "type"));
+
+    private final ErrorReporter errors;
+    private final Stack<Scope> scopes = new Stack<>();
     private FunctionType currentFunction = FunctionType.NONE;
+    // Função sendo resolvida (main no código de nível superior)
+    private FunctionScope function = null;
+    // Laços abertos na função atual, para validar break
+    private int loopDepth = 0;
 
     private enum FunctionType {
         NONE, FUNCTION
     }
 
-    public Resolver(LuaInterpreter interpreter) {
-        this.interpreter = interpreter;
+    // Escopo léxico em tempo de resolução. O escopo global não tem frame em
+    // tempo de execução: seus nomes continuam na tabela de globais. Os demais
+    // escopos ocupam slots consecutivos do frame da função, a partir de base;
+    // blocos irmãos reaproveitam os mesmos slots.
+    private static class Scope {
+        final Map<String, Local> locals = new HashMap<>();
+        final boolean global;
+        final FunctionScope function;
+        final int base;
+        int size = 0;
+
+        Scope(boolean global, FunctionScope function, int base) {
+            this.global = global;
+            this.function = function;
+            this.base = base;
+        }
+    }
+
+    private static class Local {
+        final int slot;
+        // Marca a declaração como capturada (LocalVar, parâmetro, nome de função...)
+        final Runnable onCapture;
+        boolean defined = false;
+        boolean captured = false;
+        // Acessos da própria função, que passam a ler a Cell se a local for capturada
+        final List<Expr> references = new ArrayList<>();
+
+        Local(int slot, Runnable onCapture) {
+            this.slot = slot;
+            this.onCapture = onCapture;
+        }
+    }
+
+    // Função em resolução: acumula suas variáveis livres como upvalues
+    private static class FunctionScope {
+        final FunctionScope enclosing;
+        final Map<Local, Integer> upvalues = new HashMap<>();
+        final List<Boolean> inFrame = new ArrayList<>();
+        final List<Integer> slots = new ArrayList<>();
+        // Maior número de slots ocupados ao mesmo tempo
+        int frameSize = 0;
+
+        FunctionScope(FunctionScope enclosing) {
+            this.enclosing = enclosing;
+        }
+    }
+
+    // O código de nível superior tem seu próprio frame, usado pelas locais
+    // de blocos e laços fora de funções
+    private final FunctionScope main;
+
+    public Resolver(ErrorReporter errors) {
+        this.errors = errors;
         initGlobalScope();
+        main = new FunctionScope(null);
+        function = main;
     }
 
-    private void initGlobalScope() {
-        beginScope();
-        defineNativeFunction("print");
-        defineNativeFunction("clock");
-        defineNativeFunction("str");
-        defineNativeFunction("num");
-        defineNativeFunction("type");
+    // Slots do frame do código de nível superior
+    public int frameSize() {
+        return main.frameSize;
     }
 
-    private void defineNativeFunction(String name) {
-        scopes.peek().put(name, true);
+    private void initGlobalScope() {
+        beginScope();
     }
 
     public void resolve(List<Stmt> statements) {
@@ -46,53 +108,156 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         expr.accept(this);
     }
 
-    private void resolveFunction(Stmt.Function function, FunctionType type) {
+    private void resolveFunction(Stmt.Function declaration, FunctionType type) {
         FunctionType enclosingFunction = currentFunction;
+        int enclosingLoopDepth = loopDepth;
         currentFunction = type;
+        loopDepth = 0;
+        function = new FunctionScope(function);
 
         beginScope();
-        for (Token param : function.params) {
-            declare(param);
-            define(param);
+        declaration.capturedParams = null;
+        for (int i = 0; i < declaration.params.size(); i++) {
+            int param = i;
+            declare(declaration.params.get(i), () -> {
+                if (declaration.capturedParams == null) {
+                    declaration.capturedParams = new boolean[declaration.params.size()];
+                }
+                declaration.capturedParams[param] = true;
+            });
+            define(declaration.params.get(i));
         }
-        resolve(function.body);
+        resolve(declaration.body);
         endScope();
+
+        declaration.frameSize = function.frameSize;
+        declaration.upvalueInFrame = new boolean[function.inFrame.size()];
+        for (int i = 0; i < declaration.upvalueInFrame.length; i++) {
+            declaration.upvalueInFrame[i] = function.inFrame.get(i);
+        }
+        declaration.upvalueSlots = toArray(function.slots);
+        function = function.enclosing;
         currentFunction = enclosingFunction;
+        loopDepth = enclosingLoopDepth;
+    }
+
+    private static int[] toArray(List<Integer> values) {
+        int[] array = new int[values.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = values.get(i);
+        }
+        return array;
     }
 
     private void beginScope() {
-        scopes.push(new HashMap<String, Boolean>());
+        if (scopes.isEmpty()) {
+            scopes.push(new Scope(true, null, 0));
+            return;
+        }
+        Scope enclosing = scopes.peek();
+        boolean first = enclosing.global || enclosing.function != function;
+        scopes.push(new Scope(false, function, first ? 0 : enclosing.base + enclosing.size));
     }
 
     private void endScope() {
         scopes.pop();
     }
 
-    private void declare(Token name) {
-        if (scopes.isEmpty()) return;
+    private int declare(Token name, Runnable onCapture) {
+        if (scopes.isEmpty()) return -1;
 
-        Map<String, Boolean> scope = scopes.peek();
-        if (scope.containsKey(name.lexeme)) {
-            Lua.error(name, "Already a variable with this name in this scope.");
+        Scope scope = scopes.peek();
+        if (scope.locals.containsKey(name.lexeme)
+                || (scope.global && NATIVE_NAMES.contains(name.lexeme))) {
+            errors.error(name, "Already a variable with this name in this scope.");
         }
 
-        scope.put(name.lexeme, false);
+        int slot = -1;
+        if (!scope.global) {
+            slot = scope.base + scope.size++;
+            scope.function.frameSize = Math.max(scope.function.frameSize, slot + 1);
+        }
+        scope.locals.put(name.lexeme, new Local(slot, onCapture));
+        return slot;
     }
 
     private void define(Token name) {
         if (scopes.isEmpty()) return;
-        scopes.peek().put(name.lexeme, true);
+        scopes.peek().locals.get(name.lexeme).defined = true;
     }
 
     private void resolveLocal(Expr expr, Token name) {
         for (int i = scopes.size() - 1; i >= 0; i--) {
-            if (scopes.get(i).containsKey(name.lexeme)) {
-                interpreter.resolve(expr, scopes.size() - 1 - i);
+            Local local = scopes.get(i).locals.get(name.lexeme);
+            if (local != null) {
+                if (local.slot >= 0) {
+                    bind(expr, scopes.size() - 1 - i, local.slot);
+                    if (scopes.get(i).function == function) {
+                        local.references.add(expr);
+                        if (local.captured) markCell(expr);
+                    } else {
+                        capture(local);
+                        bindUpvalue(expr, upvalue(function, i, local));
+                    }
+                }
                 return;
             }
         }
     }
 
+    // Índice do upvalue de fn que enxerga a local declarada no escopo
+    // scopeIndex, criando a cadeia nas funções intermediárias
+    private int upvalue(FunctionScope fn, int scopeIndex, Local local) {
+        Integer index = fn.upvalues.get(local);
+        if (index != null) return index;
+
+        if (scopes.get(scopeIndex).function == fn.enclosing) {
+            fn.inFrame.add(true);
+            fn.slots.add(local.slot);
+        } else {
+            fn.inFrame.add(false);
+            fn.slots.add(upvalue(fn.enclosing, scopeIndex, local));
+        }
+        index = fn.slots.size() - 1;
+        fn.upvalues.put(local, index);
+        return index;
+    }
+
+    private void capture(Local local) {
+        if (local.captured) return;
+        local.captured = true;
+        if (local.onCapture != null) local.onCapture.run();
+        for (Expr reference : local.references) {
+            markCell(reference);
+        }
+    }
+
+    private void bind(Expr expr, int depth, int slot) {
+        if (expr instanceof Expr.Variable) {
+            ((Expr.Variable) expr).depth = depth;
+            ((Expr.Variable) expr).slot = slot;
+        } else if (expr instanceof Expr.Assign) {
+            ((Expr.Assign) expr).depth = depth;
+            ((Expr.Assign) expr).slot = slot;
+        }
+    }
+
+    private void bindUpvalue(Expr expr, int upvalue) {
+        if (expr instanceof Expr.Variable) {
+            ((Expr.Variable) expr).upvalue = upvalue;
+        } else if (expr instanceof Expr.Assign) {
+            ((Expr.Assign) expr).upvalue = upvalue;
+        }
+    }
+
+    private void markCell(Expr expr) {
+        if (expr instanceof Expr.Variable) {
+            ((Expr.Variable) expr).cell = true;
+        } else if (expr instanceof Expr.Assign) {
+            ((Expr.Assign) expr).cell = true;
+        }
+    }
+
     @Override
     public Void visitBlockStmt(Stmt.Block stmt) {
         beginScope();
@@ -109,7 +274,8 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitFunctionStmt(Stmt.Function stmt) {
-        declare(stmt.name);
+        stmt.captured = false;
+        stmt.slot = declare(stmt.name, () -> stmt.captured = true);
         define(stmt.name);
         resolveFunction(stmt, FunctionType.FUNCTION);
         return null;
@@ -125,14 +291,20 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     
     @Override
     public Void visitTableExpr(Expr.Table expr) {
-        for (Expr.Field field : expr.fields) {
-            if (field.key != null) {
-                resolve(field.key);
+        for (int i = 0; i < expr.keys.length; i++) {
+            if (expr.keys[i] != null) {
+                resolve(expr.keys[i]);
             }
-            resolve(field.value);
+            resolve(expr.values[i]);
         }
         return null;
     }
+
+    @Override
+    public Void visitPackedTableExpr(Expr.PackedTable expr) {
+        // Só constantes: nada a resolver
+        return null;
+    }
     @Override
     public Void visitTableIndexExpr(Expr.TableIndex expr) {
         resolve(expr.table);
@@ -145,10 +317,18 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         resolve(expr.table);
         return null;
     }
+
+    @Override
+    public Void visitTableAssignExpr(Expr.TableAssign expr) {
+        resolve(expr.table);
+        resolve(expr.key);
+        resolve(expr.value);
+        return null;
+    }
     @Override
     public Void visitReturnStmt(Stmt.Return stmt) {
         if (currentFunction == FunctionType.NONE) {
-            Lua.error(stmt.keyword, "Can't return from top-level code.");
+            errors.error(stmt.keyword, "Can't return from top-level code.");
         }
 
         if (stmt.value != null) {
@@ -160,7 +340,8 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitLocalVarStmt(Stmt.LocalVar stmt) {
-        declare(stmt.name);
+        stmt.captured = false;
+        stmt.slot = declare(stmt.name, () -> stmt.captured = true);
         if (stmt.initializer != null) {
             resolve(stmt.initializer);
         }
@@ -171,32 +352,89 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     @Override
     public Void visitWhileStmt(Stmt.While stmt) {
         resolve(stmt.condition);
+        loopDepth++;
         resolve(stmt.body);
+        loopDepth--;
         return null;
     }
 
     @Override
     public Void visitRepeatStmt(Stmt.Repeat stmt) {
+        loopDepth++;
         resolve(stmt.body);
+        loopDepth--;
         resolve(stmt.condition);
         return null;
     }
 
     @Override
     public Void visitForStmt(Stmt.For stmt) {
+        // Os limites são avaliados fora do escopo da variável de controle
+        resolve(stmt.start);
+        resolve(stmt.limit);
+        if (stmt.step != null) resolve(stmt.step);
+
+        stmt.captured = false;
         beginScope();
-        declare(stmt.name);
+        stmt.slot = declare(stmt.name, () -> stmt.captured = true);
         define(stmt.name);
-        resolve(stmt.initializer);
-        resolve(stmt.condition);
-        if (stmt.increment != null) resolve(stmt.increment);
+        loopDepth++;
         resolve(stmt.body);
+        loopDepth--;
         endScope();
         return null;
     }
 
+    @Override
+    public Void visitForInStmt(Stmt.ForIn stmt) {
+        // A lista de expressões é avaliada fora do escopo das variáveis
+        for (Expr iterator : stmt.iterators) resolve(iterator);
+        // As funções devolvem um valor só: a segunda variável em diante só
+        // recebe algo dos iteradores nativos de tabela
+        if (stmt.names.size() > 1 && !tableIterator(stmt.iterators.get(0))) {
+            errors.error(stmt.names.get(1), TableIterator.MULTIPLE_VARIABLES);
+        }
+
+        stmt.captured = null;
+        beginScope();
+        for (int i = 0; i < stmt.names.size(); i++) {
+            int variable = i;
+            int slot = declare(stmt.names.get(i), () -> {
+                if (stmt.captured == null) stmt.captured = new boolean[stmt.names.size()];
+                stmt.captured[variable] = true;
+            });
+            if (i == 0) stmt.slot = slot;
+            define(stmt.names.get(i));
+        }
+        loopDepth++;
+        resolve(stmt.body);
+        loopDepth--;
+        Local key = scopes.peek().locals.get(stmt.names.get(0).lexeme);
+        stmt.keyIgnored = key.references.isEmpty() && !key.captured;
+        endScope();
+        return null;
+    }
+
+    // pairs(...), ipairs(...) ou next, com os nomes globais
+    private static boolean tableIterator(Expr iterator) {
+        if (iterator instanceof Expr.Call) {
+            Expr callee = ((Expr.Call) iterator).callee;
+            return isGlobal(callee, "pairs") || isGlobal(callee, "ipairs");
+        }
+        return isGlobal(iterator, "next");
+    }
+
+    private static boolean isGlobal(Expr expr, String name) {
+        if (!(expr instanceof Expr.Variable)) return false;
+        Expr.Variable variable = (Expr.Variable) expr;
+        return variable.depth == -1 && variable.upvalue == -1 && variable.name.lexeme.equals(name);
+    }
+
     @Override
     public Void visitBreakStmt(Stmt.Break stmt) {
+        if (loopDepth == 0) {
+            errors.error(stmt.keyword, "Can't break outside a loop.");
+        }
         return null;
     }
 
@@ -225,9 +463,22 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitLiteralExpr(Expr.Literal expr) {
-        if (expr.value instanceof Stmt.Function) {
-            resolveFunction((Stmt.Function) expr.value, FunctionType.FUNCTION);
-        }
+        return null;
+    }
+
+    @Override
+    public Void visitIntLiteralExpr(Expr.IntLiteral expr) {
+        return null;
+    }
+
+    @Override
+    public Void visitFloatLiteralExpr(Expr.FloatLiteral expr) {
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionExpr(Expr.Function expr) {
+        resolveFunction(expr.declaration, FunctionType.FUNCTION);
         return null;
     }
 
@@ -245,6 +496,14 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         return null;
     }
 
+    @Override
+    public Void visitConcatExpr(Expr.Concat expr) {
+        for (Expr part : expr.parts) {
+            resolve(part);
+        }
+        return null;
+    }
+
     @Override
     public Void visitUnaryExpr(Expr.Unary expr) {
         resolve(expr.right);
@@ -253,8 +512,9 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitVariableExpr(Expr.Variable expr) {
-        if (!scopes.isEmpty() && scopes.peek().get(expr.name.lexeme) == Boolean.FALSE) {
-            Lua.error(expr.name, "Can't read local variable in its own initializer.");
+        Local local = scopes.isEmpty() ? null : scopes.peek().locals.get(expr.name.lexeme);
+        if (local != null && !local.defined) {
+            errors.error(expr.name, "Can't read local variable in its own initializer.");
         }
 
         resolveLocal(expr, expr.name);
@@ -1,9 +0,0 @@
-package micro_lua;
-
-class Return extends RuntimeException {
-    final Object value;
-
-    Return(Object value) {
-        this.value = value;
-    }
-}
\ No newline at end of file
@@ -0,0 +1,95 @@
+package micro_lua;
+
+// String produzida por "..". Em vez de copiar os dois lados a cada
+// concatenação, as partes são anexadas a um StringBuilder compartilhado e a
+// Rope guarda só quantos caracteres dele lhe pertencem. Estender a Rope mais
+// recente de um buffer (o caso de s = s .. x num laço) é um append amortizado;
+// a String só é montada quando o valor é usado de outro jeito (print, chave
+// de tabela, ==...), e fica guardada.
+public final class Rope {
+    // Resultados menores que isso viram String comum: não compensa o buffer
+    static final int MIN_LENGTH = 64;
+
+    private final StringBuilder buffer;
+    private final int length;
+    private String flat;
+
+    private Rope(StringBuilder buffer, int length) {
+        this.buffer = buffer;
+        this.length = length;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    // Operandos que ".." junta sem metamétodo
+    static boolean isConcatenable(Object value) {
+        return value instanceof String || value instanceof Rope || LuaNumber.isNumber(value);
+    }
+
+    static boolean isString(Object value) {
+        return value instanceof String || value instanceof Rope;
+    }
+
+    static Object flatten(Object value) {
+        return value instanceof Rope ? value.toString() : value;
+    }
+
+    static Object concat(Object left, Object right) {
+        StringBuilder target = extensible(left);
+        if (target == null) {
+            target = new StringBuilder();
+            append(target, left);
+        }
+        append(target, right);
+        return result(target);
+    }
+
+    // values[start..end) já validados com isConcatenable, juntados num só buffer
+    static Object concat(Object[] values, int start, int end) {
+        StringBuilder target = extensible(values[start]);
+        if (target == null) {
+            target = new StringBuilder();
+            append(target, values[start]);
+        }
+        for (int i = start + 1; i < end; i++) {
+            append(target, values[i]);
+        }
+        return result(target);
+    }
+
+    // O buffer de uma Rope só pode crescer por quem termina no fim dele;
+    // as demais Ropes do mesmo buffer continuam vendo o seu prefixo
+    private static StringBuilder extensible(Object value) {
+        if (value instanceof Rope) {
+            Rope rope = (Rope) value;
+            if (rope.length == rope.buffer.length()) return rope.buffer;
+        }
+        return null;
+    }
+
+    private static void append(StringBuilder target, Object value) {
+        if (value instanceof String) {
+            target.append((String) value);
+        } else if (value instanceof Rope) {
+            Rope rope = (Rope) value;
+            target.append(rope.buffer, 0, rope.length);
+        } else if (value instanceof Long) {
+            target.append((long) (Long) value);
+        } else {
+            target.append(LuaNumber.formatFloat((Double) value));
+        }
+    }
+
+    private static Object result(StringBuilder target) {
+        if (target.length() < MIN_LENGTH) return target.toString();
+        return new Rope(target, target.length());
+    }
+
+    @Override
+    public String toString() {
+        if (flat == null) flat = buffer.substring(0, length);
+        return flat;
+    }
+}
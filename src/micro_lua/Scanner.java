@@ -1,200 +1,284 @@
 package micro_lua;
 
-import java.util.List;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 
+// Lê o código direto dos bytes UTF-8 (de um arquivo mapeado em memória ou de
+// uma String codificada) e entrega os tokens um a um ao Parser, sem montar a
+// lista inteira. Os lexemas são trechos do buffer: pontuação e palavras-chave
+// usam constantes, nomes e strings curtas passam por uma tabela indexada pelo
+// próprio trecho, e só viram String na primeira vez que aparecem.
 public class Scanner {
-    private final String source;
-    private final List<Token> tokens = new ArrayList<>();
+    private final ByteBuffer source;
+    private final ErrorReporter errors;
+    private final int length;
     private int start = 0;
     private int current = 0;
     private int line = 1;
+    private boolean hadError = false;
+    // Último token de lexema fixo de cada tipo: são imutáveis, então os de
+    // mesmo tipo na mesma linha são um objeto só
+    private final Token[] fixedTokens = new Token[TokenType.values().length];
 
-    private static final Map<String, TokenType> keywords = new HashMap<>();
+    // Nomes e strings curtas ASCII já vistos; endereçamento aberto pelo hash
+    // do trecho, que é o mesmo de String.hashCode para texto ASCII
+    private String[] names = new String[256];
+    private int nameCount = 0;
+
+    // Hash perfeito das palavras-chave: (primeiro * 3 + último * 13 + tamanho) & 63
+    private static final String[] keywords = new String[64];
+    private static final TokenType[] keywordTypes = new TokenType[64];
+    // Frações com até 22 casas: 10^n ainda é exato em double
+    private static final double[] POWERS_OF_TEN = new double[23];
+    // Mantissas com até 15 dígitos são exatas em double
+    private static final int MAX_EXACT_DIGITS = 15;
 
     static {
-        keywords.put("and", TokenType.AND);
-        keywords.put("break", TokenType.BREAK);
-        keywords.put("do", TokenType.DO);
-        keywords.put("else", TokenType.ELSE);
-        keywords.put("elseif", TokenType.ELSEIF);
-        keywords.put("end", TokenType.END);
-        keywords.put("false", TokenType.FALSE);
-        keywords.put("for", TokenType.FOR);
-        keywords.put("function", TokenType.FUNCTION);
-        keywords.put("if", TokenType.IF);
-        keywords.put("in", TokenType.IN);
-        keywords.put("local", TokenType.LOCAL);
-        keywords.put("nil", TokenType.NIL);
-        keywords.put("not", TokenType.NOT);
-        keywords.put("or", TokenType.OR);
-        keywords.put("repeat", TokenType.REPEAT);
-        keywords.put("return", TokenType.RETURN);
-        keywords.put("then", TokenType.THEN);
-        keywords.put("true", TokenType.TRUE);
-        keywords.put("until", TokenType.UNTIL);
-        keywords.put("while", TokenType.WHILE);
-    }
-
-    public Scanner(String source) {
+        keyword("and", TokenType.AND);
+        keyword("break", TokenType.BREAK);
+        keyword("do", TokenType.DO);
+        keyword("else", TokenType.ELSE);
+        keyword("elseif", TokenType.ELSEIF);
+        keyword("end", TokenType.END);
+        keyword("false", TokenType.FALSE);
+        keyword("for", TokenType.FOR);
+        keyword("function", TokenType.FUNCTION);
+        keyword("if", TokenType.IF);
+        keyword("in", TokenType.IN);
+        keyword("local", TokenType.LOCAL);
+        keyword("nil", TokenType.NIL);
+        keyword("not", TokenType.NOT);
+        keyword("or", TokenType.OR);
+        keyword("repeat", TokenType.REPEAT);
+        keyword("return", TokenType.RETURN);
+        keyword("then", TokenType.THEN);
+        keyword("true", TokenType.TRUE);
+        keyword("until", TokenType.UNTIL);
+        keyword("while", TokenType.WHILE);
+
+        double power = 1;
+        for (int i = 0; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = power;
+            power *= 10;
+        }
+    }
+
+    private static int keywordHash(int first, int last, int length) {
+        return (first * 3 + last * 13 + length) & 63;
+    }
+
+    private static void keyword(String text, TokenType type) {
+        int h = keywordHash(text.charAt(0), text.charAt(text.length() - 1), text.length());
+        if (keywords[h] != null) throw new IllegalStateException("Keyword hash collision: " + text);
+        keywords[h] = text;
+        keywordTypes[h] = type;
+    }
+
+    public Scanner(String source, ErrorReporter errors) {
+        this(ByteBuffer.wrap(source.getBytes(StandardCharsets.UTF_8)), errors);
+    }
+
+    public Scanner(ByteBuffer source, ErrorReporter errors) {
         this.source = source;
+        this.errors = errors;
+        this.length = source.limit();
     }
 
-    public List<Token> scanTokens() {
+    boolean hadError() {
+        return hadError;
+    }
+
+    // Próximo token; no fim da entrada devolve EOF (e continua devolvendo)
+    public Token nextToken() {
         while (!isAtEnd()) {
             start = current;
-            scanToken();
+            Token token = scanToken();
+            if (token != null) return token;
         }
-        tokens.add(new Token(TokenType.EOF, "", null, line));
-        return tokens;
+        return new Token(TokenType.EOF, "", null, line);
     }
 
     private boolean isAtEnd() {
-        return current >= source.length();
+        return current >= length;
     }
 
-    private void scanToken() {
+    // null para espaços, comentários e caracteres inválidos
+    private Token scanToken() {
         char c = advance();
         switch (c) {
-            case '(': addToken(TokenType.LEFT_PAREN); break;
-            case ')': addToken(TokenType.RIGHT_PAREN); break;
-            case '{': addToken(TokenType.LEFT_BRACE); break;
-            case '}': addToken(TokenType.RIGHT_BRACE); break;
-            case '[': addToken(TokenType.LEFT_BRACKET); break;
-            case ']': addToken(TokenType.RIGHT_BRACKET); break;
-            case ',': addToken(TokenType.COMMA); break;
-            case '.': 
-                if (match('.')) {
-                    addToken(TokenType.DOT_DOT);
-                } else {
-                    addToken(TokenType.DOT);
-                }
-                break;
-            case '-': 
+            case '(': return token(TokenType.LEFT_PAREN, "(");
+            case ')': return token(TokenType.RIGHT_PAREN, ")");
+            case '{': return token(TokenType.LEFT_BRACE, "{");
+            case '}': return token(TokenType.RIGHT_BRACE, "}");
+            case '[': return token(TokenType.LEFT_BRACKET, "[");
+            case ']': return token(TokenType.RIGHT_BRACKET, "]");
+            case ',': return token(TokenType.COMMA, ",");
+            case '.':
+                if (match('.')) return token(TokenType.DOT_DOT, "..");
+                return token(TokenType.DOT, ".");
+            case '-':
                 if (match('-')) {
                     while (peek() != '\n' && !isAtEnd()) advance();
-                } else {
-                    addToken(TokenType.MINUS);
-                }
-                break;
-            case '+': addToken(TokenType.PLUS); break;
-            case ';': addToken(TokenType.SEMICOLON); break;
-            case ':': addToken(TokenType.COLON); break;
-            case '*': addToken(TokenType.STAR); break;
-            case '%': addToken(TokenType.PERCENT); break;
-            case '^': addToken(TokenType.CARET); break;
-            case '!': addToken(TokenType.NOT); break;
-            case '=': 
-                if (match('=')) {
-                    addToken(TokenType.EQUAL_EQUAL);
-                } else {
-                    addToken(TokenType.EQUAL);
-                }
-                break;
-            case '<': 
-                if (match('=')) {
-                    addToken(TokenType.LESS_EQUAL);
-                } else {
-                    addToken(TokenType.LESS);
-                }
-                break;
-            case '>': 
-                if (match('=')) {
-                    addToken(TokenType.GREATER_EQUAL);
-                } else {
-                    addToken(TokenType.GREATER);
+                    return null;
                 }
-                break;
-            case '~': 
-                if (match('=')) {
-                    addToken(TokenType.TILDE_EQUAL);
-                }
-                break;
+                return token(TokenType.MINUS, "-");
+            case '+': return token(TokenType.PLUS, "+");
+            case ';': return token(TokenType.SEMICOLON, ";");
+            case ':': return token(TokenType.COLON, ":");
+            case '*': return token(TokenType.STAR, "*");
+            case '/': return token(TokenType.SLASH, "/");
+            case '%': return token(TokenType.PERCENT, "%");
+            case '^': return token(TokenType.CARET, "^");
+            case '!': return token(TokenType.NOT, "!");
+            case '=':
+                if (match('=')) return token(TokenType.EQUAL_EQUAL, "==");
+                return token(TokenType.EQUAL, "=");
+            case '<':
+                if (match('=')) return token(TokenType.LESS_EQUAL, "<=");
+                return token(TokenType.LESS, "<");
+            case '>':
+                if (match('=')) return token(TokenType.GREATER_EQUAL, ">=");
+                return token(TokenType.GREATER, ">");
+            case '~':
+                if (match('=')) return token(TokenType.TILDE_EQUAL, "~=");
+                return null;
             case ' ':
             case '\r':
             case '\t':
-                break;
+                return null;
             case '\n':
                 line++;
-                break;
-            case '"': string(); break;
-            case '\'': string(); break;
+                return null;
+            case '"':
+            case '\'':
+                return string();
             default:
-                if (isDigit(c)) {
-                    number();
-                } else if (isAlpha(c)) {
-                    identifier();
-                } else {
-                    Lua.error(line, "Unexpected character: '" + c + "'");
-                }
-                break;
+                if (isDigit(c)) return number();
+                if (isAlpha(c)) return identifier();
+                error("Unexpected character: '" + unexpected(c) + "'");
+                return null;
         }
     }
 
-    private char advance() {
-        current++;
-        return source.charAt(current - 1);
+    // Caractere inválido como texto; um não ASCII é consumido inteiro
+    private String unexpected(char c) {
+        if (c < 0x80) return String.valueOf(c);
+        int extra = c >= 0xF0 ? 3 : c >= 0xE0 ? 2 : c >= 0xC0 ? 1 : 0;
+        while (extra-- > 0 && !isAtEnd() && (peek() & 0xC0) == 0x80) advance();
+        return new String(bytes(start, current), StandardCharsets.UTF_8);
     }
 
-    private void addToken(TokenType type) {
-        addToken(type, null);
+    private void error(String message) {
+        hadError = true;
+        errors.error(line, message);
     }
 
-    private void addToken(TokenType type, Object literal) {
-        String text = source.substring(start, current);
-        tokens.add(new Token(type, text, literal, line));
+    // Bytes como char sem sinal: a sintaxe é toda ASCII
+    private char advance() {
+        return (char) (source.get(current++) & 0xFF);
+    }
+
+    private Token token(TokenType type, String lexeme) {
+        Token last = fixedTokens[type.ordinal()];
+        if (last != null && last.line == line && last.lexeme == lexeme) return last;
+        Token token = new Token(type, lexeme, null, line);
+        fixedTokens[type.ordinal()] = token;
+        return token;
     }
 
     private boolean match(char expected) {
         if (isAtEnd()) return false;
-        if (source.charAt(current) != expected) return false;
+        if ((source.get(current) & 0xFF) != expected) return false;
         current++;
         return true;
     }
 
     private char peek() {
         if (isAtEnd()) return '\0';
-        return source.charAt(current);
+        return (char) (source.get(current) & 0xFF);
     }
 
-    private void string() {
-        char quote = source.charAt(current - 1);
+    private Token string() {
+        char quote = (char) (source.get(current - 1) & 0xFF);
+        boolean ascii = true;
         while (peek() != quote && !isAtEnd()) {
-            if (peek() == '\n') line++;
-            advance();
+            char c = advance();
+            if (c == '\n') line++;
+            if (c >= 0x80) ascii = false;
         }
 
         if (isAtEnd()) {
-            Lua.error(line, "Unterminated string.");
-            return;
+            error("Unterminated string.");
+            return null;
         }
 
-        advance(); // Consume the closing quote
+        advance(); // Consome a aspa final
 
-        String value = source.substring(start + 1, current - 1);
-        addToken(TokenType.STRING, value);
+        int from = start + 1;
+        int to = current - 1;
+        String value;
+        if (ascii && to - from <= StringPool.MAX_SHORT) {
+            value = name(from, to);
+        } else if (ascii) {
+            value = new String(bytes(from, to), StandardCharsets.ISO_8859_1);
+        } else {
+            value = StringPool.intern(new String(bytes(from, to), StandardCharsets.UTF_8));
+        }
+        // O lexema de literais não é copiado; Token.text() o refaz se preciso
+        return new Token(TokenType.STRING, null, value, line);
     }
 
     private boolean isDigit(char c) {
         return c >= '0' && c <= '9';
     }
 
-    private void number() {
-        while (isDigit(peek())) advance();
+    // Inteiros de até 18 dígitos e floats com mantissa de até 15 dígitos são
+    // montados aqui mesmo; literais maiores caem no parse da biblioteca
+    private Token number() {
+        long mantissa = source.get(start) - '0';
+        int digits = mantissa == 0 ? 0 : 1;
+        int fraction = 0;
+        boolean isFloat = false;
+        while (isDigit(peek())) {
+            mantissa = mantissa * 10 + (advance() - '0');
+            if (mantissa != 0) digits++;
+        }
 
         if (peek() == '.' && isDigit(peekNext())) {
-            advance(); // Consume the .
-            while (isDigit(peek())) advance();
+            isFloat = true;
+            advance(); // Consome o .
+            while (isDigit(peek())) {
+                mantissa = mantissa * 10 + (advance() - '0');
+                if (mantissa != 0) digits++;
+                fraction++;
+            }
         }
 
-        addToken(TokenType.NUMBER, Double.parseDouble(source.substring(start, current)));
+        // Literais sem parte fracionária são inteiros; os que não cabem num long viram float
+        Object value;
+        if (!isFloat && digits <= 18) {
+            value = mantissa;
+        } else if (isFloat && digits <= MAX_EXACT_DIGITS && fraction < POWERS_OF_TEN.length) {
+            // Os dois operandos são exatos, então a divisão já sai bem arredondada
+            value = mantissa / POWERS_OF_TEN[fraction];
+        } else {
+            String text = new String(bytes(start, current), StandardCharsets.ISO_8859_1);
+            if (isFloat) {
+                value = Double.parseDouble(text);
+            } else {
+                try {
+                    value = Long.parseLong(text);
+                } catch (NumberFormatException e) {
+                    value = Double.parseDouble(text);
+                }
+            }
+        }
+        return new Token(TokenType.NUMBER, null, value, line);
     }
 
     private char peekNext() {
-        if (current + 1 >= source.length()) return '\0';
-        return source.charAt(current + 1);
+        if (current + 1 >= length) return '\0';
+        return (char) (source.get(current + 1) & 0xFF);
     }
 
     private boolean isAlpha(char c) {
@@ -205,12 +289,64 @@ public class Scanner {
         return isAlpha(c) || isDigit(c);
     }
 
-    private void identifier() {
+    private Token identifier() {
         while (isAlphaNumeric(peek())) advance();
 
-        String text = source.substring(start, current);
-        TokenType type = keywords.get(text);
-        if (type == null) type = TokenType.IDENTIFIER;
-        addToken(type);
+        int size = current - start;
+        int h = keywordHash(source.get(start), source.get(current - 1), size);
+        String keyword = keywords[h];
+        if (keyword != null && sameText(keyword, start, current)) {
+            return token(keywordTypes[h], keyword);
+        }
+        return new Token(TokenType.IDENTIFIER, name(start, current), null, line);
+    }
+
+    // String canônica do trecho ASCII [from, to): procurada pelo hash do
+    // próprio trecho, só é criada (e internada) na primeira ocorrência
+    private String name(int from, int to) {
+        int h = 0;
+        for (int i = from; i < to; i++) {
+            h = 31 * h + source.get(i);
+        }
+        int mask = names.length - 1;
+        for (int i = (h ^ (h >>> 16)) & mask; ; i = (i + 1) & mask) {
+            String name = names[i];
+            if (name == null) {
+                name = StringPool.intern(new String(bytes(from, to), StandardCharsets.ISO_8859_1));
+                names[i] = name;
+                if (++nameCount * 2 > names.length) growNames();
+                return name;
+            }
+            if (name.hashCode() == h && sameText(name, from, to)) return name;
+        }
+    }
+
+    private void growNames() {
+        String[] old = names;
+        names = new String[old.length * 2];
+        int mask = names.length - 1;
+        for (String name : old) {
+            if (name == null) continue;
+            int h = name.hashCode();
+            int i = (h ^ (h >>> 16)) & mask;
+            while (names[i] != null) i = (i + 1) & mask;
+            names[i] = name;
+        }
+    }
+
+    private boolean sameText(String text, int from, int to) {
+        if (text.length() != to - from) return false;
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) != source.get(from + i)) return false;
+        }
+        return true;
+    }
+
+    private byte[] bytes(int from, int to) {
+        byte[] result = new byte[to - from];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = source.get(from + i);
+        }
+        return result;
     }
-}
\ No newline at end of file
+}
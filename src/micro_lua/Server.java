@@ -0,0 +1,340 @@
+package micro_lua;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+// Modo servidor (--serve): lê pedidos da entrada padrão, um por linha, e
+// responde na saída padrão. Cada pedido roda num LuaState novo, isolado dos
+// demais, numa thread virtual (em JDKs sem threads virtuais, numa thread
+// comum); os chunks compilados ficam em cache entre os pedidos.
+//
+//   run <id> <arquivo>   executa o script; o chunk é refeito se o arquivo mudar
+//   eval <id> <código>   executa o código da linha (\n e \\ escapados)
+//   stats                vazão e percentis de latência até agora
+//   quit                 espera os pedidos em andamento e termina (como o EOF)
+//
+// As respostas saem na ordem em que os pedidos terminam, marcadas pelo id:
+//
+//   <id> ok <saída>  |  <id> error <mensagens>  |  <id> timeout <saída>
+//
+// com a saída (e as mensagens de erro) escapadas do mesmo jeito. No máximo
+// "workers" pedidos rodam ao mesmo tempo; a leitura da entrada espera uma
+// vaga. Um pedido que passa de "timeout" ms é interrompido.
+public final class Server {
+    // Chunks de eval guardados, pelo texto do código
+    private static final int MAX_EVAL_CHUNKS = 256;
+
+    private final boolean useVm;
+    private final int maxStack;
+    private final long timeoutMillis;
+    private final Semaphore slots;
+    private final ExecutorService executor = newExecutor();
+    private final ScheduledThreadPoolExecutor timer = newTimer();
+    private final PrintStream out;
+
+    private final Map<Path, FileChunk> files = new ConcurrentHashMap<>();
+    private final Map<String, CompiledChunk> evals = new LinkedHashMap<String, CompiledChunk>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CompiledChunk> eldest) {
+            return size() > MAX_EVAL_CHUNKS;
+        }
+    };
+
+    private final Stats stats = new Stats();
+
+    public Server(PrintStream out, int workers, long timeoutMillis, boolean useVm, int maxStack) {
+        this.out = out;
+        this.slots = new Semaphore(workers);
+        this.timeoutMillis = timeoutMillis;
+        this.useVm = useVm;
+        this.maxStack = maxStack;
+    }
+
+    // Um timeout cancelado sai logo da fila, para não segurar o estado do
+    // pedido até o prazo que ele teria
+    private static ScheduledThreadPoolExecutor newTimer() {
+        ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "mlua-timeout");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer.setRemoveOnCancelPolicy(true);
+        return timer;
+    }
+
+    // Threads virtuais quando o JDK as tem (21+); o projeto ainda compila
+    // e roda no 11, então o método é procurado em tempo de execução
+    private static ExecutorService newExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    public void serve(InputStream input) throws IOException, InterruptedException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            line = line.trim();
+            if (line.isEmpty()) continue;
+            if (line.equals("quit")) break;
+            if (line.equals("stats")) {
+                respond("stats " + stats.summary());
+                continue;
+            }
+
+            String[] parts = line.split(" ", 3);
+            if (parts.length < 3 || !(parts[0].equals("run") || parts[0].equals("eval"))) {
+                respond("? error " + escape("Unknown request: " + line));
+                continue;
+            }
+            boolean isFile = parts[0].equals("run");
+            String id = parts[1];
+            String argument = parts[2];
+            slots.acquire();
+            // A latência conta a partir da vaga obtida: a espera por ela
+            // (com todos os workers ocupados) fica de fora
+            long started = System.nanoTime();
+            try {
+                executor.execute(() -> {
+                    try {
+                        handle(id, isFile, argument, started);
+                    } finally {
+                        slots.release();
+                    }
+                });
+            } catch (RuntimeException e) {
+                slots.release();
+                throw e;
+            }
+        }
+
+        executor.shutdown();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        timer.shutdownNow();
+        System.err.println("stats " + stats.summary());
+    }
+
+    private void handle(String id, boolean isFile, String argument, long started) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ByteArrayOutputStream messages = new ByteArrayOutputStream();
+        LuaState state = new LuaState(new PrintStream(output, true), new PrintStream(messages, true), maxStack);
+
+        String status;
+        Throwable failure = null;
+        try {
+            CompiledChunk chunk = isFile ? fileChunk(state, Paths.get(argument)) : evalChunk(state, unescape(argument));
+            if (chunk == null) {
+                status = "error";
+            } else {
+                ScheduledFuture<?> timeout = timer.schedule(state::interrupt, timeoutMillis, TimeUnit.MILLISECONDS);
+                boolean ok;
+                try {
+                    ok = useVm ? state.execute(chunk.prototype()) : state.execute(chunk);
+                } finally {
+                    timeout.cancel(false);
+                }
+                status = ok ? "ok" : timeout.isDone() && !timeout.isCancelled() ? "timeout" : "error";
+            }
+        } catch (NoSuchFileException e) {
+            state.errors().error("script '" + argument + "' not found.");
+            status = "error";
+        } catch (IOException e) {
+            state.errors().error("could not read '" + argument + "': " + e.getMessage());
+            status = "error";
+        } catch (RuntimeException | Error e) {
+            // Falha do próprio interpretador (ou falta de memória) num pedido:
+            // ele ainda recebe a sua resposta, e os demais seguem
+            failure = e;
+            status = "error";
+        }
+
+        String body;
+        if (failure != null) {
+            // O estado pode estar segurando a memória que faltou: é largado
+            // antes de montar a mensagem
+            state = null;
+            output = null;
+            body = "Error: internal error: " + failure;
+        } else {
+            body = status.equals("error") ? messages.toString() : output.toString();
+        }
+        stats.record(status, System.nanoTime() - started);
+        respond(id + " " + status + " " + escape(body));
+    }
+
+    // O chunk de um arquivo vale enquanto o tamanho e a data de modificação
+    // não mudarem; dois pedidos simultâneos podem compilar o mesmo arquivo,
+    // e fica o último
+    private CompiledChunk fileChunk(LuaState state, Path path) throws IOException {
+        Path key = path.toAbsolutePath().normalize();
+        long modified = Files.getLastModifiedTime(key).toMillis();
+        long size = Files.size(key);
+        FileChunk cached = files.get(key);
+        if (cached != null && cached.modified == modified && cached.size == size) return cached.chunk;
+
+        CompiledChunk chunk = state.load(ByteBuffer.wrap(Files.readAllBytes(key)));
+        if (chunk != null) files.put(key, new FileChunk(chunk, modified, size));
+        return chunk;
+    }
+
+    private CompiledChunk evalChunk(LuaState state, String source) {
+        CompiledChunk chunk;
+        synchronized (evals) {
+            chunk = evals.get(source);
+        }
+        if (chunk != null) return chunk;
+
+        chunk = state.load(ByteBuffer.wrap(source.getBytes(StandardCharsets.UTF_8)));
+        if (chunk != null) {
+            synchronized (evals) {
+                evals.put(source, chunk);
+            }
+        }
+        return chunk;
+    }
+
+    private void respond(String line) {
+        synchronized (out) {
+            out.println(line);
+            out.flush();
+        }
+    }
+
+    // Uma resposta é sempre uma linha: quebras e barras invertidas escapadas,
+    // e a quebra final do último print omitida
+    static String escape(String text) {
+        if (text.endsWith("\n")) text = text.substring(0, text.length() - 1);
+        StringBuilder sb = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\\') {
+                sb.append("\\\\");
+            } else if (c == '\n') {
+                sb.append("\\n");
+            } else if (c != '\r') {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    static String unescape(String text) {
+        StringBuilder sb = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\\' && i + 1 < text.length()) {
+                char next = text.charAt(++i);
+                sb.append(next == 'n' ? '\n' : next);
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static final class FileChunk {
+        final CompiledChunk chunk;
+        final long modified;
+        final long size;
+
+        FileChunk(CompiledChunk chunk, long modified, long size) {
+            this.chunk = chunk;
+            this.modified = modified;
+            this.size = size;
+        }
+    }
+
+    // Latências em nanossegundos, da vaga obtida até a resposta pronta, num
+    // histograma de baldes logarítmicos: 16 por potência de 2, então um
+    // percentil sai com até 1/16 de erro (o max é exato). A memória é fixa e
+    // o resumo percorre os baldes sem ordenar nada, por mais que o servidor
+    // tenha atendido
+    private static final class Stats {
+        private static final int SUB_BITS = 4;
+
+        private final long started = System.nanoTime();
+        private final long[] buckets = new long[64 << SUB_BITS];
+        private long count = 0;
+        private long max = 0;
+        private long ok = 0;
+        private long errors = 0;
+        private long timeouts = 0;
+
+        synchronized void record(String status, long latency) {
+            buckets[bucket(latency)]++;
+            count++;
+            max = Math.max(max, latency);
+            if (status.equals("ok")) {
+                ok++;
+            } else if (status.equals("timeout")) {
+                timeouts++;
+            } else {
+                errors++;
+            }
+        }
+
+        // Percorre só os baldes, em número fixo: o lock fica curto mesmo com
+        // milhões de pedidos atendidos
+        synchronized String summary() {
+            double seconds = (System.nanoTime() - started) / 1e9;
+            return String.format(Locale.ROOT, "requests=%d ok=%d error=%d timeout=%d throughput=%.1f/s"
+                    + " p50=%.3fms p90=%.3fms p99=%.3fms max=%.3fms",
+                count, ok, errors, timeouts, count / seconds,
+                percentile(50), percentile(90), percentile(99), max / 1e6);
+        }
+
+        // Valores abaixo de 16 têm balde próprio; acima, o expoente escolhe o
+        // grupo e os 4 bits seguintes ao mais alto, o balde dentro dele
+        private static int bucket(long v) {
+            if (v < (1 << SUB_BITS)) return (int) Math.max(v, 0);
+            int exponent = 63 - Long.numberOfLeadingZeros(v);
+            int sub = (int) (v >>> (exponent - SUB_BITS)) & ((1 << SUB_BITS) - 1);
+            return ((exponent - SUB_BITS + 1) << SUB_BITS) | sub;
+        }
+
+        // Maior valor que cai no balde i
+        private static long upperBound(int i) {
+            if (i < (1 << SUB_BITS)) return i;
+            int shift = (i >> SUB_BITS) - 1;
+            long lower = (long) ((1 << SUB_BITS) | (i & ((1 << SUB_BITS) - 1))) << shift;
+            return lower + (1L << shift) - 1;
+        }
+
+        // Nearest-rank, em milissegundos: o limite do balde em que cai o
+        // pedido de posição p% (nunca acima do max)
+        private double percentile(int p) {
+            if (count == 0) return 0;
+            long rank = Math.max((long) Math.ceil(p / 100.0 * count), 1);
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= rank) return Math.min(upperBound(i), max) / 1e6;
+            }
+            return max / 1e6;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package micro_lua;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Layout compartilhado das chaves string de uma tabela. Tabelas que recebem
+// as mesmas chaves na mesma ordem apontam para o mesmo Shape, e o valor de
+// cada chave fica no slot de mesmo índice em LuaTable.slots.
+final class Shape {
+    static final Shape ROOT = new Shape(new String[0]);
+    // Acima disso a busca usa um índice em vez de varrer as chaves
+    private static final int INDEX_THRESHOLD = 8;
+
+    final String[] keys;
+    private final Map<String, Integer> index;
+    // Shape resultante de acrescentar cada chave a este. O ROOT e os seus
+    // descendentes são compartilhados por todos os estados, inclusive em
+    // threads diferentes, daí o mapa concorrente
+    private volatile Map<String, Shape> transitions;
+
+    private Shape(String[] keys) {
+        this.keys = keys;
+        if (keys.length > INDEX_THRESHOLD) {
+            index = new HashMap<>();
+            for (int i = 0; i < keys.length; i++) {
+                index.put(keys[i], i);
+            }
+        } else {
+            index = null;
+        }
+    }
+
+    int size() {
+        return keys.length;
+    }
+
+    int indexOf(String key) {
+        if (index != null) {
+            Integer slot = index.get(key);
+            return slot == null ? -1 : slot;
+        }
+        // As chaves do Shape são internadas: com uma chave vinda de um literal
+        // ou de outra tabela a primeira passada, só de ponteiros, já acha
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] == key) return i;
+        }
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i].equals(key)) return i;
+        }
+        return -1;
+    }
+
+    Shape withKey(String key) {
+        Map<String, Shape> map = transitions;
+        if (map == null) {
+            synchronized (this) {
+                map = transitions;
+                if (map == null) transitions = map = new ConcurrentHashMap<>();
+            }
+        }
+        Shape next = map.get(key);
+        if (next == null) {
+            key = StringPool.intern(key);
+            String[] nextKeys = Arrays.copyOf(keys, keys.length + 1);
+            nextKeys[keys.length] = key;
+            next = new Shape(nextKeys);
+            // Duas threads podem criar a mesma transição: fica a primeira
+            Shape raced = map.putIfAbsent(key, next);
+            if (raced != null) next = raced;
+        }
+        return next;
+    }
+}
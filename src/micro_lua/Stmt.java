@@ -14,6 +14,7 @@ public abstract class Stmt {
         R visitRepeatStmt(Repeat stmt);
         R visitForStmt(For stmt);
         R visitBreakStmt(Break stmt);
+        R visitForInStmt(ForIn stmt);
     }
 
     public abstract <R> R accept(Visitor<R> visitor);
@@ -52,6 +53,18 @@ public abstract class Stmt {
         public final List<Token> params;
         public final List<Stmt> body;
         public final boolean isLocal;
+        // Slot do nome no frame que declara a função (-1 = global) e
+        // tamanho do frame: parâmetros + locais de todos os blocos do corpo
+        public int slot = -1;
+        int frameSize;
+        // Variáveis livres (calculadas pelo Resolver): o upvalue i é a Cell do
+        // slot upvalueSlots[i] do frame da função envolvente, ou, se
+        // upvalueInFrame[i] é falso, o upvalue upvalueSlots[i] dela
+        boolean[] upvalueInFrame = new boolean[0];
+        int[] upvalueSlots = new int[0];
+        // Se o nome e quais parâmetros são capturados por closures internas
+        boolean captured;
+        boolean[] capturedParams;
 
         public Function(Token name, List<Token> params, List<Stmt> body) {
             this(name, params, body, false);
@@ -92,10 +105,14 @@ public abstract class Stmt {
     public static class Return extends Stmt {
         public final Token keyword;
         public final Expr value;
+        // return f(args): a chamada substitui o frame atual (chamada de cauda).
+        // Entre parênteses não é de cauda, como no Lua
+        public final boolean tailCall;
 
         public Return(Token keyword, Expr value) {
             this.keyword = keyword;
             this.value = value;
+            this.tailCall = value instanceof Expr.Call;
         }
 
         @Override
@@ -108,6 +125,10 @@ public abstract class Stmt {
     public static class LocalVar extends Stmt {
         public final Token name;
         public final Expr initializer;
+        // Slot no frame do escopo atual (-1 = escopo global)
+        public int slot = -1;
+        // Capturada por alguma closure: o slot guarda uma Cell
+        boolean captured;
 
         public LocalVar(Token name, Expr initializer) {
             this.name = name;
@@ -152,19 +173,23 @@ public abstract class Stmt {
         }
     }
 
-    // 9. Loop for
+    // 9. Loop for numérico: for name = start, limit [, step] do body end
     public static class For extends Stmt {
         public final Token name;
-        public final Expr initializer;
-        public final Expr condition;
-        public final Expr increment;
-        public final Stmt body;
+        public final Expr start;
+        public final Expr limit;
+        public final Expr step;
+        public final List<Stmt> body;
+        // Slot da variável de controle no frame da função
+        public int slot;
+        // Variável de controle capturada: cada iteração ganha uma Cell nova
+        boolean captured;
 
-        public For(Token name, Expr initializer, Expr condition, Expr increment, Stmt body) {
+        public For(Token name, Expr start, Expr limit, Expr step, List<Stmt> body) {
             this.name = name;
-            this.initializer = initializer;
-            this.condition = condition;
-            this.increment = increment;
+            this.start = start;
+            this.limit = limit;
+            this.step = step;
             this.body = body;
         }
 
@@ -187,4 +212,31 @@ public abstract class Stmt {
             return visitor.visitBreakStmt(this);
         }
     }
-}
\ No newline at end of file
+
+    // 11. Loop for genérico: for names in explist do body end. A lista dá
+    // o iterador, o estado e o valor inicial de controle (f, s, ctl)
+    public static class ForIn extends Stmt {
+        public final List<Token> names;
+        public final List<Expr> iterators;
+        public final List<Stmt> body;
+        // Slot da primeira variável; as demais vêm em seguida
+        public int slot;
+        // Quais variáveis são capturadas (null se nenhuma): cada iteração
+        // dá a elas uma Cell nova
+        boolean[] captured;
+        // A primeira variável não é lida no corpo (for _, v in ...): a VM
+        // não precisa materializar a chave
+        public boolean keyIgnored;
+
+        public ForIn(List<Token> names, List<Expr> iterators, List<Stmt> body) {
+            this.names = names;
+            this.iterators = iterators;
+            this.body = body;
+        }
+
+        @Override
+        public <R> R accept(Visitor<R> visitor) {
+            return visitor.visitForInStmt(this);
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package micro_lua;
+
+// Strings curtas canônicas, como as short strings do Lua: nomes, literais e
+// as chaves dos Shapes com o mesmo texto passam a ser a mesma instância, então
+// as buscas de chave resolvem por identidade e chaves repetidas em milhões de
+// tabelas ocupam memória uma vez só. Só se interna na compilação (Scanner,
+// chunks lidos) e ao criar uma transição de Shape: strings montadas em tempo
+// de execução não passam por aqui, e a parte hash das tabelas as compara por
+// equals. As Strings do Java já guardam o hash e, quando o texto é Latin-1,
+// um byte por caractere.
+public final class StringPool {
+    // LUAI_MAXSHORTLEN do Lua: strings maiores não são internadas
+    public static final int MAX_SHORT = 40;
+
+    private StringPool() {}
+
+    // Usa a tabela de strings da JVM: é segura entre threads e não impede a
+    // coleta das strings que ninguém mais referencia
+    public static String intern(String s) {
+        return s.length() <= MAX_SHORT ? s.intern() : s;
+    }
+}
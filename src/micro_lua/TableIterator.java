@@ -0,0 +1,144 @@
+package micro_lua;
+
+// Percurso de tabelas: next, pairs e ipairs. pairs e ipairs devolvem um
+// cursor sobre a tabela (LuaTable.nextPosition) que o for genérico reconhece
+// e anda direto, gravando chave e valor nas variáveis do laço sem chamar
+// função nem alocar por passo. Fora de um for o cursor é uma função comum,
+// um iterador com estado que devolve a próxima chave a cada chamada.
+//
+// As funções devolvem um único valor, então pairs e ipairs não devolvem o
+// trio (next, t, nil) do Lua; o for com next, t[, k] explícitos também anda
+// pelo cursor. Só no for genérico o valor chega junto com a chave.
+public final class TableIterator extends NativeFunction.Variadic {
+    public static final String MULTIPLE_VARIABLES =
+        "Only next, pairs and ipairs fill more than one variable of a generic for.";
+
+    static final LuaCallable NEXT = new NativeFunction.Variadic() {
+        @Override public Object call1(LuaInterpreter interpreter, Object t) {
+            return call2(interpreter, t, null);
+        }
+
+        @Override public Object call2(LuaInterpreter interpreter, Object t, Object key) {
+            LuaTable table = table(t, "next");
+            int position = table.nextPosition(table.positionAfter(key));
+            return position < 0 ? null : table.keyAt(position);
+        }
+
+        @Override public Object call(LuaInterpreter interpreter, Object[] arguments) {
+            if (arguments.length == 1) return call2(interpreter, arguments[0], null);
+            if (arguments.length == 2) return call2(interpreter, arguments[0], arguments[1]);
+            throw new RuntimeError(null, "Expected 1 or 2 arguments to 'next' but got " + arguments.length + ".");
+        }
+    };
+
+    static final LuaCallable PAIRS = new NativeFunction.Arity1() {
+        @Override public Object call1(LuaInterpreter interpreter, Object t) {
+            return new TableIterator(table(t, "pairs"), false, 0);
+        }
+    };
+
+    static final LuaCallable IPAIRS = new NativeFunction.Arity1() {
+        @Override public Object call1(LuaInterpreter interpreter, Object t) {
+            return new TableIterator(table(t, "ipairs"), true, 0);
+        }
+    };
+
+    private static final int END = Integer.MAX_VALUE;
+
+    private final LuaTable table;
+    private final boolean sequence;
+    // pairs: próxima posição a examinar, e a da entrada atual
+    private int position;
+    private int current;
+    // ipairs: índice e valor da entrada atual
+    private long index;
+    private Object value;
+
+    private TableIterator(LuaTable table, boolean sequence, int position) {
+        this.table = table;
+        this.sequence = sequence;
+        this.position = position;
+    }
+
+    private static LuaTable table(Object t, String name) {
+        if (!(t instanceof LuaTable)) {
+            throw new RuntimeError(null, "bad argument #1 to '" + name + "' (table expected)");
+        }
+        return (LuaTable) t;
+    }
+
+    // Iterador que o for genérico vai usar para f, s, ctl: o trio de next
+    // vira um cursor posicionado depois de ctl; qualquer outro fica como está
+    public static Object forLoop(Object f, Object s, Object control) {
+        if (f == NEXT && s instanceof LuaTable) {
+            LuaTable table = (LuaTable) s;
+            return new TableIterator(table, false, table.positionAfter(control));
+        }
+        return f;
+    }
+
+    // Avança para a próxima entrada; false no fim. ipairs para no primeiro
+    // nil e, numa tabela com metatabela, lê pelo __index como o Lua 5.3
+    public boolean advance(LuaInterpreter interpreter) {
+        if (sequence) {
+            if (index < 0) return false;
+            long next = index + 1;
+            Object v = table.metatable == null ? table.rawgetInt(next) : table.get(interpreter, next);
+            if (v == null) {
+                index = -1;
+                value = null;
+                return false;
+            }
+            index = next;
+            value = v;
+            return true;
+        }
+        int next = table.nextPosition(position);
+        if (next < 0) {
+            position = END;
+            return false;
+        }
+        current = next;
+        position = next + 1;
+        return true;
+    }
+
+    // Entrada atual (depois de um advance que devolveu true); quando a chave
+    // é inteira, intKey a lê sem boxing
+    public boolean hasIntKey() {
+        return sequence || table.isIntKeyAt(current);
+    }
+
+    public long intKey() {
+        return sequence ? index : table.intKeyAt(current);
+    }
+
+    public Object key() {
+        return sequence ? (Object) index : table.keyAt(current);
+    }
+
+    public Object value() {
+        return sequence ? value : table.valueAt(current);
+    }
+
+    @Override public Object call0(LuaInterpreter interpreter) {
+        return advance(interpreter) ? key() : null;
+    }
+
+    @Override public Object call1(LuaInterpreter interpreter, Object a) {
+        return call0(interpreter);
+    }
+
+    @Override public Object call2(LuaInterpreter interpreter, Object a, Object b) {
+        return call0(interpreter);
+    }
+
+    @Override public Object call(LuaInterpreter interpreter, Object[] arguments) {
+        return call0(interpreter);
+    }
+
+    @Override
+    public String toString() {
+        return sequence ? "<fn ipairs>" : "<fn pairs>";
+    }
+}
@@ -0,0 +1,194 @@
+package micro_lua;
+
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+
+// Codificação compacta dos construtores de tabela só com constantes. Uma
+// tabela vira [campos sem chave, campos com chave] seguido de um par
+// (chave, valor) por campo: a chave é o índice da constante no pool ou
+// NO_KEY; o valor é o índice da constante ou ~n, e nesse caso os n ints da
+// tabela aninhada vêm logo em seguida. As linhas das chaves abertas das aninhadas,
+// na mesma pré-ordem, ficam num byte[] de deltas (varint, quase sempre 0 ou 1
+// byte por tabela) a partir da linha da tabela externa.
+final class TablePacker {
+    private static final int NO_KEY = -1;
+    private static final byte[] NO_LINES = {};
+    private static final Object NOT_CONSTANT = new Object();
+
+    private TablePacker() {}
+
+    // Codifica os campos fields[from..] (chave e valor alternados, chave
+    // null se implícita) se todos forem constantes; senão devolve null
+    static Expr.PackedTable pack(Token brace, List<Expr> fields, int from, ConstantPool pool) {
+        int size = 2;
+        for (int i = from; i < fields.size(); i += 2) {
+            Expr key = fields.get(i);
+            Expr value = fields.get(i + 1);
+            // Chaves nil e NaN ficam no Table, que dá o erro na execução
+            if (key != null) {
+                Object k = constant(key);
+                if (k == NOT_CONSTANT || k == null || (k instanceof Double && Double.isNaN((Double) k))) {
+                    return null;
+                }
+            }
+            if (value instanceof Expr.PackedTable) {
+                size += ((Expr.PackedTable) value).code.length;
+            } else if (constant(value) == NOT_CONSTANT) {
+                return null;
+            }
+            size += 2;
+        }
+        if (size == 2) return null;
+
+        int[] code = new int[size];
+        int pc = 2;
+        ByteArrayOutputStream lines = null;
+        int line = brace.line;
+        for (int i = from; i < fields.size(); i += 2) {
+            Expr key = fields.get(i);
+            Expr value = fields.get(i + 1);
+            if (key == null) {
+                code[0]++;
+                code[pc++] = NO_KEY;
+            } else {
+                code[1]++;
+                code[pc++] = pool.add(constant(key));
+            }
+            if (value instanceof Expr.PackedTable) {
+                Expr.PackedTable nested = (Expr.PackedTable) value;
+                code[pc++] = ~nested.code.length;
+                System.arraycopy(nested.code, 0, code, pc, nested.code.length);
+                pc += nested.code.length;
+                if (lines == null) lines = new ByteArrayOutputStream();
+                writeDelta(lines, Math.max(0, nested.brace.line - line));
+                lines.write(nested.lines, 0, nested.lines.length);
+                line = lastLine(nested);
+            } else {
+                code[pc++] = pool.add(constant(value));
+            }
+        }
+        return new Expr.PackedTable(brace, code, pool, lines == null ? NO_LINES : lines.toByteArray());
+    }
+
+    // Valor de um literal ou de um número negado; NOT_CONSTANT nos demais
+    private static Object constant(Expr expr) {
+        if (expr instanceof Expr.Literal) return ((Expr.Literal) expr).value;
+        if (expr instanceof Expr.Unary && ((Expr.Unary) expr).operator.type == TokenType.MINUS
+                && ((Expr.Unary) expr).right instanceof Expr.Literal) {
+            Object value = ((Expr.Literal) ((Expr.Unary) expr).right).value;
+            if (value instanceof Long) return -(Long) value;
+            if (value instanceof Double) return -(Double) value;
+        }
+        return NOT_CONSTANT;
+    }
+
+    private static void writeDelta(ByteArrayOutputStream out, int delta) {
+        while (delta >= 0x80) {
+            out.write((delta & 0x7F) | 0x80);
+            delta >>>= 7;
+        }
+        out.write(delta);
+    }
+
+    private static int lastLine(Expr.PackedTable table) {
+        int line = table.brace.line;
+        int delta = 0;
+        int shift = 0;
+        for (byte b : table.lines) {
+            delta |= (b & 0x7F) << shift;
+            shift += 7;
+            if (b >= 0) {
+                line += delta;
+                delta = 0;
+                shift = 0;
+            }
+        }
+        return line;
+    }
+
+    // Monta a tabela como o Table faria: mesmo pré-dimensionamento e mesma
+    // ordem de gravação
+    static LuaTable build(Expr.PackedTable table) {
+        return build(table.code, 0, table.pool);
+    }
+
+    private static LuaTable build(int[] code, int pc, ConstantPool pool) {
+        LuaTable table = new LuaTable(code[pc], code[pc + 1]);
+        int end = pc + 2 + 2 * (code[pc] + code[pc + 1]);
+        long position = 0;
+        for (pc += 2; pc < end; pc += 2) {
+            int key = code[pc];
+            int value = code[pc + 1];
+            Object v;
+            if (value >= 0) {
+                v = pool.get(value);
+            } else {
+                v = build(code, pc + 2, pool);
+                // Pula a aninhada
+                pc += ~value;
+                end += ~value;
+            }
+            if (key == NO_KEY) {
+                table.rawsetInt(++position, v);
+            } else {
+                table.rawset(pool.get(key), v);
+            }
+        }
+        return table;
+    }
+
+    static Expr.Table view(Expr.PackedTable table) {
+        return new Reader(table).view(table.brace);
+    }
+
+    // Percorre a codificação em ordem, junto com as linhas
+    private static final class Reader {
+        private final int[] code;
+        private final ConstantPool pool;
+        private final byte[] lines;
+        private int pc = 0;
+        private int linePos = 0;
+        private int line;
+
+        Reader(Expr.PackedTable table) {
+            this.code = table.code;
+            this.pool = table.pool;
+            this.lines = table.lines;
+            this.line = table.brace.line;
+        }
+
+        // Os literais saem na forma que o LiteralSpecializer deixaria
+        Expr.Table view(Token brace) {
+            int count = code[pc] + code[pc + 1];
+            pc += 2;
+            Expr[] keys = new Expr[count];
+            Expr[] values = new Expr[count];
+            for (int i = 0; i < count; i++) {
+                int key = code[pc++];
+                int value = code[pc++];
+                if (key != NO_KEY) keys[i] = literal(pool.get(key));
+                values[i] = value < 0 ? view(nextBrace()) : literal(pool.get(value));
+            }
+            return new Expr.Table(brace, keys, values);
+        }
+
+        private Token nextBrace() {
+            int delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = lines[linePos++];
+                delta |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            line += delta;
+            return new Token(TokenType.LEFT_BRACE, "{", null, line);
+        }
+
+        private static Expr literal(Object value) {
+            if (value instanceof Long) return new Expr.IntLiteral((Long) value);
+            if (value instanceof Double) return new Expr.FloatLiteral((Double) value);
+            return new Expr.Literal(value);
+        }
+    }
+}
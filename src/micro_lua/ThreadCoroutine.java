@@ -0,0 +1,220 @@
+package micro_lua;
+
+import java.lang.ref.Cleaner;
+import java.lang.reflect.Method;
+import java.util.concurrent.locks.LockSupport;
+
+// Corrotina de uma função do interpretador de árvore (ou de uma nativa). O
+// interpretador usa a pilha Java, então a corrotina roda numa thread própria
+// (virtual no JDK 21+), com um LuaInterpreter próprio que só tem de seu a
+// pilha de valores. resume e yield passam a vez de uma thread para a outra;
+// quem espera gira um pouco antes de estacionar, então um gerador que logo
+// pede o próximo valor não paga uma troca de contexto do sistema.
+//
+// A thread nasce em coroutine.create, esperando o primeiro resume: sem
+// threads virtuais (antes do JDK 21) o sistema limita quantas existem, e
+// passar do limite é um erro claro já na criação. Cada troca custa alguns
+// microssegundos; as corrotinas da VM (--vm) são só memória e trocam em
+// bem menos que isso.
+//
+// A thread só alcança o Runner, nunca a corrotina: quando uma corrotina
+// suspensa deixa de ser alcançável, o Cleaner acorda a thread, que desfaz
+// os seus frames (só toca o próprio interpretador) e termina.
+final class ThreadCoroutine extends Coroutine {
+    // Voltas de espera ativa antes de estacionar; numa CPU só, nenhuma
+    private static final int SPINS = Runtime.getRuntime().availableProcessors() > 1 ? 1 << 10 : 0;
+    private static final Cleaner CLEANER = Cleaner.create(runnable -> {
+        Thread thread = new Thread(runnable, "mlua-coroutine-cleaner");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // Thread.startVirtualThread quando o JDK tem (21+); o projeto ainda
+    // compila e roda no 11, então o método é procurado em tempo de execução
+    private static final Method START_VIRTUAL = startVirtualMethod();
+
+    private final Runner runner;
+    private final Cleaner.Cleanable cleanable;
+
+    ThreadCoroutine(LuaInterpreter interpreter, LuaCallable body) {
+        Runner runner = new Runner(new LuaInterpreter(interpreter), body);
+        try {
+            runner.thread = Runner.newThread(runner);
+        } catch (OutOfMemoryError e) {
+            throw new RuntimeError(null, "too many coroutines: the system limit on threads was reached"
+                + " (use --vm, or JDK 21+ for virtual threads).");
+        }
+        this.runner = runner;
+        this.cleanable = CLEANER.register(this, runner::kill);
+    }
+
+    private static Method startVirtualMethod() {
+        try {
+            return Thread.class.getMethod("startVirtualThread", Runnable.class);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    @Override
+    protected Object transfer(LuaInterpreter interpreter, int argc, Object value) {
+        Runner runner = this.runner;
+        Object result = runner.resume(argc, value);
+        if (runner.done) {
+            status = DEAD;
+            cleanable.clean();
+            Throwable failure = runner.failure;
+            if (failure instanceof RuntimeException) throw (RuntimeException) failure;
+            if (failure instanceof Error) throw (Error) failure;
+        }
+        return result;
+    }
+
+    @Override
+    protected Fiber fiber() {
+        return runner;
+    }
+
+    // Estado compartilhado pelas duas threads. Os campos comuns são escritos
+    // antes de trocar "inside" (volátil) e lidos depois, por quem recebe a vez
+    private static final class Runner implements Runnable, Fiber {
+        private static final Killed KILLED = new Killed();
+
+        private final LuaInterpreter interpreter;
+        private final LuaCallable body;
+        private int argc;
+        Thread thread;
+        private Thread resumer;
+        // Valor entregue na troca de vez: argumento do corpo, de resume para
+        // yield, de yield (ou do retorno do corpo) para resume
+        private Object value;
+        Throwable failure;
+        boolean done;
+        private boolean killed;
+
+        // De quem é a vez: true enquanto a corrotina roda
+        private volatile boolean inside;
+        // Cada lado liga o seu antes de estacionar; quem passa a vez só
+        // chama unpark se o outro estiver (ou estiver para ficar) parado
+        private volatile boolean resumerParked;
+        private volatile boolean coroutineParked;
+
+        Runner(LuaInterpreter interpreter, LuaCallable body) {
+            this.interpreter = interpreter;
+            this.body = body;
+            interpreter.fiber = this;
+        }
+
+        // Lado de quem chama resume
+
+        // argc só conta no primeiro resume, que passa o argumento do corpo
+        Object resume(int argc, Object value) {
+            this.argc = argc;
+            this.value = value;
+            resumer = Thread.currentThread();
+            inside = true;
+            if (coroutineParked) LockSupport.unpark(thread);
+            return awaitCoroutine();
+        }
+
+        private Object awaitCoroutine() {
+            int spins = SPINS;
+            while (inside) {
+                if (spins > 0) {
+                    spins--;
+                    Thread.onSpinWait();
+                    continue;
+                }
+                resumerParked = true;
+                if (inside) LockSupport.park(this);
+                resumerParked = false;
+            }
+            Object result = value;
+            value = null;
+            return result;
+        }
+
+        // Chamado pelo Cleaner quando a corrotina suspensa foi abandonada
+        void kill() {
+            killed = true;
+            inside = true;
+            if (coroutineParked) LockSupport.unpark(thread);
+        }
+
+        // Lado da corrotina
+
+        @Override
+        public void run() {
+            try {
+                awaitTurn();
+                Object argument = value;
+                value = null;
+                LuaCallable function = interpreter.callable(null, body, argc);
+                value = argc == 0 ? function.call0(interpreter) : function.call1(interpreter, argument);
+            } catch (Killed e) {
+                return;
+            } catch (StackOverflowError e) {
+                failure = new RuntimeError(null, "stack overflow.");
+            } catch (RuntimeException | Error e) {
+                failure = e;
+            }
+            done = true;
+            handBack();
+        }
+
+        @Override
+        public Object yield(LuaInterpreter interpreter, Object value) {
+            this.value = value;
+            handBack();
+            awaitTurn();
+            Object result = this.value;
+            this.value = null;
+            return result;
+        }
+
+        private void awaitTurn() {
+            int spins = SPINS;
+            while (!inside) {
+                if (spins > 0) {
+                    spins--;
+                    Thread.onSpinWait();
+                    continue;
+                }
+                coroutineParked = true;
+                if (!inside) LockSupport.park(this);
+                coroutineParked = false;
+            }
+            if (killed) throw KILLED;
+        }
+
+        private void handBack() {
+            Thread waiting = resumer;
+            resumer = null;
+            inside = false;
+            if (resumerParked) LockSupport.unpark(waiting);
+        }
+
+        static Thread newThread(Runnable task) {
+            if (START_VIRTUAL != null) {
+                try {
+                    return (Thread) START_VIRTUAL.invoke(null, task);
+                } catch (ReflectiveOperationException e) {
+                    // Cai para uma thread comum
+                }
+            }
+            Thread thread = new Thread(task, "mlua-coroutine");
+            thread.setDaemon(true);
+            thread.start();
+            return thread;
+        }
+    }
+
+    // Desfaz os frames de uma corrotina abandonada; não é um RuntimeError,
+    // então nada no interpretador o captura
+    private static final class Killed extends Error {
+        private static final long serialVersionUID = 1L;
+
+        Killed() {
+            super(null, null, false, false);
+        }
+    }
+}
@@ -2,6 +2,7 @@ package micro_lua;
 
 public class Token {
     public final TokenType type;
+    // null em números e strings: o Scanner não copia o texto dos literais
     public final String lexeme;
     public final Object literal;
     public final int line;
@@ -13,10 +14,19 @@ public class Token {
         this.line = line;
     }
 
+    // Texto do token para mensagens; o dos literais é refeito a partir do valor
+    public String text() {
+        if (lexeme != null) return lexeme;
+        if (literal instanceof String) return "\"" + literal + "\"";
+        if (literal instanceof Double) return LuaNumber.formatFloat((Double) literal);
+        return String.valueOf(literal);
+    }
+
     @Override
     public String toString() {
+        String text = text();
         return type + 
-               (lexeme.isEmpty() ? "" : " '" + lexeme + "'") +
+               (text.isEmpty() ? "" : " '" + text + "'") +
                (literal == null ? "" : " " + literal);
     }
 }
\ No newline at end of file
@@ -0,0 +1,9 @@
+package micro_lua;
+
+// Marcadores de número sem boxing. Uma expressão que devolve INT ou FLOAT
+// deixou o valor nos registradores primitivos do interpretador; num frame,
+// o marcador no slot indica que o valor está no array primitivo paralelo.
+enum Unboxed {
+    INT,
+    FLOAT
+}
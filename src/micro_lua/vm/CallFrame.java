@@ -0,0 +1,14 @@
+package micro_lua.vm;
+
+// Registro de ativação de uma função em execução na VM. A pilha de chamadas
+// é um array desses registros, reaproveitados entre chamadas: uma chamada Lua
+// não aloca nem aprofunda a pilha Java.
+final class CallFrame {
+    LuaClosure closure;
+    // Primeiro registrador da função na pilha de valores
+    int base;
+    // Próxima instrução, salva enquanto a função espera uma chamada
+    int pc;
+    // Topo da pilha de valores a restaurar no retorno
+    int savedTop;
+}
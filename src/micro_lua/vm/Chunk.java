@@ -0,0 +1,428 @@
+package micro_lua.vm;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import micro_lua.FieldCache;
+import micro_lua.StringPool;
+import micro_lua.Token;
+import micro_lua.TokenType;
+
+// Formato .mluac: o Prototype principal já compilado, precedido do hash
+// SHA-256 do código fonte que o gerou. Carregar um chunk dispensa Scanner,
+// Parser, Resolver, otimizador e Compiler; os caches inline são recriados
+// vazios. Tokens repetidos entre instruções são gravados uma vez só.
+//
+//   magic (4) | versão (int) | hash do fonte (32) | protótipo principal
+public final class Chunk {
+    // ESC "MLC", como o "\x1bLua" dos chunks do Lua: nunca começa um fonte
+    private static final byte[] MAGIC = { 0x1B, 'M', 'L', 'C' };
+    // Mudou o bytecode, os opcodes ou este formato: troque a versão
+    private static final int VERSION = 1;
+    public static final int HASH_LENGTH = 32;
+    // Funções aninhadas aceitas num chunk lido (a leitura é recursiva)
+    private static final int MAX_NESTING = 200;
+
+    private static final int NIL = 0;
+    private static final int INTEGER = 1;
+    private static final int FLOAT = 2;
+    private static final int STRING = 3;
+
+    private Chunk() {}
+
+    public static boolean isChunk(ByteBuffer source) {
+        if (source.limit() < MAGIC.length) return false;
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (source.get(i) != MAGIC[i]) return false;
+        }
+        return true;
+    }
+
+    public static byte[] hash(ByteBuffer source) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(source.duplicate());
+            return digest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static String hex(byte[] hash) {
+        StringBuilder sb = new StringBuilder(hash.length * 2);
+        for (byte b : hash) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    // Grava num arquivo temporário e renomeia: quem lê o cache ao mesmo
+    // tempo nunca vê um chunk pela metade
+    public static void store(Path path, Prototype main, byte[] sourceHash) throws IOException {
+        Path dir = path.toAbsolutePath().getParent();
+        Files.createDirectories(dir);
+        Path temp = dir.resolve("." + path.getFileName() + "." + UUID.randomUUID() + ".tmp");
+        try {
+            try (OutputStream out = Files.newOutputStream(temp, StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.WRITE)) {
+                write(out, main, sourceHash);
+            }
+            try {
+                Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    // null se o arquivo não existe, é de outra versão ou não corresponde ao
+    // fonte (sourceHash null aceita qualquer fonte); IOException se não é um
+    // chunk ou está truncado ou corrompido
+    public static Prototype load(Path path, byte[] sourceHash) throws IOException {
+        try (InputStream in = Files.newInputStream(path)) {
+            return read(in, sourceHash);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    public static void write(OutputStream output, Prototype main, byte[] sourceHash) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(output));
+        out.write(MAGIC);
+        out.writeInt(VERSION);
+        out.write(sourceHash);
+        new Writer(out).prototype(main);
+        out.flush();
+    }
+
+    // O chunk é lido inteiro para a memória: assim cada tamanho gravado pode
+    // ser conferido com os bytes que restam, e um arquivo truncado ou
+    // corrompido vira IOException em vez de um array gigante. O protótipo
+    // lido passa por verify antes de chegar à VM
+    public static Prototype read(InputStream input, byte[] sourceHash) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(input.readAllBytes()));
+        byte[] magic = new byte[MAGIC.length];
+        in.readFully(magic);
+        if (!Arrays.equals(magic, MAGIC)) throw new IOException("Not a compiled chunk.");
+        if (in.readInt() != VERSION) return null;
+        byte[] hash = new byte[HASH_LENGTH];
+        in.readFully(hash);
+        if (sourceHash != null && !Arrays.equals(hash, sourceHash)) return null;
+        Prototype main;
+        try {
+            main = new Reader(in).prototype();
+        } catch (RuntimeException | StackOverflowError e) {
+            throw new IOException("Corrupt chunk: " + e, e);
+        }
+        if (in.available() != 0) throw new IOException("Corrupt chunk: trailing bytes.");
+        verify(main, 0, null);
+        return main;
+    }
+
+    // Confere o que a VM supõe sem checar: opcodes conhecidos, registradores
+    // dentro do frame, índices de constantes, caches, upvalues e protótipos
+    // válidos, saltos dentro do código e um RETURN no fim. parent é o
+    // protótipo que cria este (null no principal, que não tem upvalues)
+    private static void verify(Prototype p, int depth, Prototype parent) throws IOException {
+        if (depth > MAX_NESTING) throw corrupt(p, "functions nested too deeply");
+        if (p.maxStack > OpCode.MAX_A + 1 || p.numParams > p.maxStack) throw corrupt(p, "bad frame size");
+        int upvalues = p.upvalueIndex.length;
+        if (parent == null && upvalues != 0) throw corrupt(p, "upvalues in the main function");
+        for (int j = 0; j < upvalues; j++) {
+            int limit = parent == null ? 0 : p.upvalueInStack[j] ? parent.maxStack : parent.upvalueIndex.length;
+            if (p.upvalueIndex[j] < 0 || p.upvalueIndex[j] >= limit) throw corrupt(p, "bad upvalue");
+        }
+        int[] code = p.code;
+        if (code.length == 0 || OpCode.op(code[code.length - 1]) != OpCode.RETURN) {
+            throw corrupt(p, "missing final RETURN");
+        }
+        for (int pc = 0; pc < code.length; pc++) {
+            int i = code[pc];
+            int op = OpCode.op(i);
+            int a = OpCode.a(i);
+            int b = OpCode.b(i);
+            int c = OpCode.c(i);
+            boolean ok;
+            switch (op) {
+                case OpCode.MOVE: case OpCode.UNM: case OpCode.NOT:
+                    ok = register(p, a) && register(p, b);
+                    break;
+                case OpCode.LOADK: case OpCode.GETGLOBAL: case OpCode.SETGLOBAL:
+                    ok = register(p, a) && OpCode.bx(i) < p.constants.length;
+                    break;
+                case OpCode.LOADBOOL: case OpCode.TEST:
+                    ok = register(p, a) && pc + 1 < code.length;
+                    break;
+                case OpCode.LOADNIL: case OpCode.NEWTABLE:
+                    ok = register(p, a);
+                    break;
+                case OpCode.GETUPVAL: case OpCode.SETUPVAL:
+                    ok = register(p, a) && b < upvalues;
+                    break;
+                case OpCode.GETTABLE:
+                    ok = register(p, a) && register(p, b) && rk(p, c);
+                    break;
+                case OpCode.GETFIELD:
+                    ok = register(p, a) && register(p, b) && c < p.fieldCaches.length;
+                    break;
+                case OpCode.SETTABLE:
+                    ok = register(p, a) && rk(p, b) && rk(p, c);
+                    break;
+                case OpCode.SETLIST:
+                    ok = register(p, a) && register(p, b);
+                    break;
+                case OpCode.ADD: case OpCode.SUB: case OpCode.MUL: case OpCode.DIV:
+                case OpCode.MOD: case OpCode.POW: case OpCode.EQ: case OpCode.NE:
+                case OpCode.LT: case OpCode.LE: case OpCode.GT: case OpCode.GE:
+                    ok = register(p, a) && rk(p, b) && rk(p, c);
+                    break;
+                case OpCode.CONCAT:
+                    ok = register(p, a) && b <= c && register(p, c);
+                    break;
+                case OpCode.JMP:
+                    ok = target(code, pc, OpCode.sbx(i));
+                    break;
+                case OpCode.IFEQ: case OpCode.IFNE: case OpCode.IFLT:
+                case OpCode.IFLE: case OpCode.IFGT: case OpCode.IFGE:
+                    ok = rk(p, b) && rk(p, c) && pc + 1 < code.length;
+                    break;
+                case OpCode.CALL: case OpCode.TAILCALL:
+                    ok = b >= 1 && register(p, a + b - 1);
+                    break;
+                case OpCode.RETURN:
+                    ok = b == 1 || (b == 2 && register(p, a));
+                    break;
+                case OpCode.CLOSURE:
+                    ok = register(p, a) && OpCode.bx(i) < p.protos.length;
+                    break;
+                case OpCode.CLOSE:
+                    ok = a <= p.maxStack;
+                    break;
+                case OpCode.FORPREP: case OpCode.FORLOOP:
+                    ok = register(p, a + 3) && target(code, pc, OpCode.sbx(i));
+                    break;
+                case OpCode.TFORPREP:
+                    ok = register(p, a + 2) && target(code, pc, OpCode.sbx(i));
+                    break;
+                case OpCode.TFORCALL:
+                    ok = c >= 1 && register(p, a + 2 + c);
+                    break;
+                case OpCode.TFORLOOP:
+                    ok = register(p, a + 3) && target(code, pc, OpCode.sbx(i));
+                    break;
+                default:
+                    ok = false;
+                    break;
+            }
+            if (!ok) throw corrupt(p, "bad instruction at " + pc);
+        }
+        for (Prototype child : p.protos) {
+            verify(child, depth + 1, p);
+        }
+    }
+
+    private static boolean register(Prototype p, int r) {
+        return r < p.maxStack;
+    }
+
+    private static boolean rk(Prototype p, int operand) {
+        return (operand & OpCode.BITRK) != 0 ? (operand & ~OpCode.BITRK) < p.constants.length : register(p, operand);
+    }
+
+    private static boolean target(int[] code, int pc, int offset) {
+        int destination = pc + 1 + offset;
+        return destination >= 0 && destination < code.length;
+    }
+
+    private static IOException corrupt(Prototype p, String problem) {
+        return new IOException("Corrupt chunk: " + problem + " in function <" + p.name + ">.");
+    }
+
+    private static final class Writer {
+        private final DataOutputStream out;
+        private final Map<Token, Integer> tokenIds = new IdentityHashMap<>();
+
+        Writer(DataOutputStream out) {
+            this.out = out;
+        }
+
+        void prototype(Prototype p) throws IOException {
+            string(p.name);
+            out.writeInt(p.numParams);
+            out.writeInt(p.maxStack);
+            out.writeInt(p.code.length);
+            for (int i = 0; i < p.code.length; i++) {
+                out.writeInt(p.code[i]);
+                token(p.tokens[i]);
+            }
+            out.writeInt(p.constants.length);
+            for (Object constant : p.constants) {
+                constant(constant);
+            }
+            out.writeInt(p.upvalueIndex.length);
+            for (int i = 0; i < p.upvalueIndex.length; i++) {
+                out.writeBoolean(p.upvalueInStack[i]);
+                out.writeInt(p.upvalueIndex[i]);
+            }
+            out.writeInt(p.fieldCaches.length);
+            for (FieldCache cache : p.fieldCaches) {
+                string(cache.key);
+            }
+            out.writeInt(p.protos.length);
+            for (Prototype child : p.protos) {
+                prototype(child);
+            }
+        }
+
+        // -1: sem token; -2: token novo, gravado em seguida; >= 0: já gravado
+        private void token(Token token) throws IOException {
+            if (token == null) {
+                out.writeInt(-1);
+                return;
+            }
+            Integer id = tokenIds.get(token);
+            if (id != null) {
+                out.writeInt(id);
+                return;
+            }
+            tokenIds.put(token, tokenIds.size());
+            out.writeInt(-2);
+            out.writeByte(token.type.ordinal());
+            out.writeBoolean(token.lexeme != null);
+            if (token.lexeme != null) string(token.lexeme);
+            constant(token.literal);
+            out.writeInt(token.line);
+        }
+
+        private void constant(Object value) throws IOException {
+            if (value == null) {
+                out.writeByte(NIL);
+            } else if (value instanceof Long) {
+                out.writeByte(INTEGER);
+                out.writeLong((Long) value);
+            } else if (value instanceof Double) {
+                out.writeByte(FLOAT);
+                out.writeDouble((Double) value);
+            } else if (value instanceof String) {
+                out.writeByte(STRING);
+                string((String) value);
+            } else {
+                throw new IOException("Can't serialize constant of type " + value.getClass().getSimpleName() + ".");
+            }
+        }
+
+        // writeUTF limita a 64 KB; aqui o tamanho é um int
+        private void string(String s) throws IOException {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static final class Reader {
+        private static final TokenType[] TYPES = TokenType.values();
+
+        private final DataInputStream in;
+        private final List<Token> tokens = new ArrayList<>();
+
+        Reader(DataInputStream in) {
+            this.in = in;
+        }
+
+        Prototype prototype() throws IOException {
+            String name = string();
+            int numParams = in.readInt();
+            int maxStack = in.readInt();
+            int[] code = new int[length()];
+            Token[] codeTokens = new Token[code.length];
+            for (int i = 0; i < code.length; i++) {
+                code[i] = in.readInt();
+                codeTokens[i] = token();
+            }
+            Object[] constants = new Object[length()];
+            for (int i = 0; i < constants.length; i++) {
+                constants[i] = constant();
+            }
+            boolean[] upvalueInStack = new boolean[length()];
+            int[] upvalueIndex = new int[upvalueInStack.length];
+            for (int i = 0; i < upvalueInStack.length; i++) {
+                upvalueInStack[i] = in.readBoolean();
+                upvalueIndex[i] = in.readInt();
+            }
+            FieldCache[] fieldCaches = new FieldCache[length()];
+            for (int i = 0; i < fieldCaches.length; i++) {
+                fieldCaches[i] = new FieldCache(string());
+            }
+            Prototype[] protos = new Prototype[length()];
+            for (int i = 0; i < protos.length; i++) {
+                protos[i] = prototype();
+            }
+            return new Prototype(name, numParams, maxStack, code, constants, protos,
+                upvalueInStack, upvalueIndex, codeTokens, fieldCaches);
+        }
+
+        private Token token() throws IOException {
+            int id = in.readInt();
+            if (id == -1) return null;
+            if (id >= 0) {
+                if (id >= tokens.size()) throw new IOException("Corrupt chunk: bad token " + id + ".");
+                return tokens.get(id);
+            }
+            int type = in.readUnsignedByte();
+            if (type >= TYPES.length) throw new IOException("Corrupt chunk: bad token type " + type + ".");
+            String lexeme = in.readBoolean() ? string() : null;
+            Object literal = constant();
+            Token token = new Token(TYPES[type], lexeme, literal, in.readInt());
+            tokens.add(token);
+            return token;
+        }
+
+        private Object constant() throws IOException {
+            int tag = in.readUnsignedByte();
+            switch (tag) {
+                case NIL: return null;
+                case INTEGER: return in.readLong();
+                case FLOAT: return in.readDouble();
+                case STRING: return string();
+                default: throw new IOException("Corrupt chunk: constant tag " + tag + ".");
+            }
+        }
+
+        // Tamanho de uma lista gravada: cada elemento ocupa ao menos um byte
+        private int length() throws IOException {
+            int n = in.readInt();
+            if (n < 0 || n > in.available()) throw new IOException("Corrupt chunk: bad length " + n + ".");
+            return n;
+        }
+
+        // Strings curtas voltam internadas, como as que vêm do Scanner
+        private String string() throws IOException {
+            byte[] bytes = new byte[length()];
+            in.readFully(bytes);
+            return StringPool.intern(new String(bytes, StandardCharsets.UTF_8));
+        }
+    }
+}
@@ -0,0 +1,836 @@
+package micro_lua.vm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import micro_lua.Expr;
+import micro_lua.FieldCache;
+import micro_lua.ErrorReporter;
+import micro_lua.Stmt;
+import micro_lua.Token;
+import micro_lua.TokenType;
+
+import static micro_lua.vm.OpCode.*;
+
+// Compila a AST já resolvida para bytecode de registradores. Os escopos do
+// compilador espelham os do Resolver (exceto o global), então o par
+// (depth, slot) de cada variável identifica diretamente o registrador ou o
+// upvalue correspondente.
+public class Compiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    private static final int NO_REG = -1;
+
+    // Estado de compilação de uma função
+    private static class FuncState {
+        final FuncState enclosing;
+        final String name;
+        final int numParams;
+        int[] code = new int[32];
+        Token[] tokens = new Token[32];
+        int pc = 0;
+        final List<Object> constants = new ArrayList<>();
+        final Map<Object, Integer> constantIndex = new HashMap<>();
+        final List<Prototype> protos = new ArrayList<>();
+        final List<FieldCache> fieldCaches = new ArrayList<>();
+        final List<Boolean> upvalueInStack = new ArrayList<>();
+        final List<Integer> upvalueIndex = new ArrayList<>();
+        // Registradores [0, active) guardam locais vivas; acima disso, temporários
+        int active = 0;
+        int freeReg = 0;
+        int maxStack = 0;
+        Loop loop = null;
+
+        FuncState(FuncState enclosing, String name, int numParams) {
+            this.enclosing = enclosing;
+            this.name = name;
+            this.numParams = numParams;
+        }
+
+        Prototype build() {
+            boolean[] inStack = new boolean[upvalueInStack.size()];
+            int[] index = new int[upvalueIndex.size()];
+            for (int i = 0; i < inStack.length; i++) {
+                inStack[i] = upvalueInStack.get(i);
+                index[i] = upvalueIndex.get(i);
+            }
+            return new Prototype(name, numParams, Math.max(maxStack, 1),
+                Arrays.copyOf(code, pc), constants.toArray(),
+                protos.toArray(new Prototype[0]), inStack, index, Arrays.copyOf(tokens, pc),
+                fieldCaches.toArray(new FieldCache[0]));
+        }
+    }
+
+    // Escopo léxico: mapeia os slots atribuídos pelo Resolver para registradores
+    private static class Scope {
+        final FuncState fs;
+        final int firstReg;
+        int[] registers = new int[4];
+        boolean captured = false;
+
+        Scope(FuncState fs, int firstReg) {
+            this.fs = fs;
+            this.firstReg = firstReg;
+        }
+
+        void bind(int slot, int register) {
+            if (slot >= registers.length) {
+                registers = Arrays.copyOf(registers, Math.max(slot + 1, registers.length * 2));
+            }
+            registers[slot] = register;
+        }
+    }
+
+    private static class Loop {
+        final Loop enclosing;
+        // Índice, na pilha de escopos, do primeiro escopo aberto dentro do laço
+        final int scopeLevel;
+        final List<Integer> breaks = new ArrayList<>();
+
+        Loop(Loop enclosing, int scopeLevel) {
+            this.enclosing = enclosing;
+            this.scopeLevel = scopeLevel;
+        }
+    }
+
+    private final ErrorReporter errors;
+    private final List<Scope> scopes = new ArrayList<>();
+    private FuncState fs;
+    // Registrador de destino da expressão sendo compilada
+    private int target = NO_REG;
+
+    public Compiler(ErrorReporter errors) {
+        this.errors = errors;
+    }
+
+    public Prototype compile(List<Stmt> statements) {
+        fs = new FuncState(null, "main", 0);
+        compileAll(statements);
+        emitABC(RETURN, 0, 1, 0, null);
+        return fs.build();
+    }
+
+    private void compile(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    private void compileAll(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            compile(statement);
+        }
+    }
+
+    // Compila a expressão deixando o resultado no registrador dst
+    private void exprTo(Expr expr, int dst) {
+        int saved = target;
+        target = dst;
+        expr.accept(this);
+        target = saved;
+    }
+
+    // Compila a expressão e devolve o registrador que contém o valor; locais
+    // são usadas diretamente, sem cópia
+    private int exprAny(Expr expr) {
+        while (expr instanceof Expr.Grouping) {
+            expr = ((Expr.Grouping) expr).expression;
+        }
+        if (expr instanceof Expr.Variable) {
+            Expr.Variable variable = (Expr.Variable) expr;
+            if (variable.depth >= 0) {
+                Scope scope = scopeAt(variable.depth);
+                if (scope.fs == fs) return scope.registers[variable.slot];
+            }
+        }
+        int reg = reserve();
+        exprTo(expr, reg);
+        return reg;
+    }
+
+    // Como exprAny, mas constantes pequenas viram operandos RK
+    private int exprRK(Expr expr) {
+        while (expr instanceof Expr.Grouping) {
+            expr = ((Expr.Grouping) expr).expression;
+        }
+        Object value = null;
+        if (expr instanceof Expr.Literal) {
+            value = ((Expr.Literal) expr).value;
+        } else if (expr instanceof Expr.IntLiteral) {
+            value = ((Expr.IntLiteral) expr).value;
+        } else if (expr instanceof Expr.FloatLiteral) {
+            value = ((Expr.FloatLiteral) expr).value;
+        }
+        if (value instanceof Long || value instanceof Double || value instanceof String) {
+            int index = constant(value);
+            if (index < BITRK) return index | BITRK;
+        }
+        return exprAny(expr);
+    }
+
+    private int reserve() {
+        int reg = fs.freeReg++;
+        if (fs.freeReg > MAX_A + 1) {
+            throw new IllegalStateException("Function or expression too complex.");
+        }
+        if (fs.freeReg > fs.maxStack) fs.maxStack = fs.freeReg;
+        return reg;
+    }
+
+    private void free(int reg) {
+        if ((reg & BITRK) == 0 && reg >= fs.active) {
+            fs.freeReg--;
+        }
+    }
+
+    private int constant(Object value) {
+        Integer index = fs.constantIndex.get(value);
+        if (index == null) {
+            index = fs.constants.size();
+            fs.constants.add(value);
+            fs.constantIndex.put(value, index);
+        }
+        return index;
+    }
+
+    private int emit(int instruction, Token token) {
+        if (fs.pc == fs.code.length) {
+            fs.code = Arrays.copyOf(fs.code, fs.pc * 2);
+            fs.tokens = Arrays.copyOf(fs.tokens, fs.pc * 2);
+        }
+        fs.code[fs.pc] = instruction;
+        fs.tokens[fs.pc] = token;
+        return fs.pc++;
+    }
+
+    private int emitABC(int op, int a, int b, int c, Token token) {
+        return emit(encodeABC(op, a, b, c), token);
+    }
+
+    private int emitABx(int op, int a, int bx, Token token) {
+        return emit(encodeABx(op, a, bx), token);
+    }
+
+    private int emitJump() {
+        return emit(encodeAsBx(JMP, 0, 0), null);
+    }
+
+    private void patch(int jump, int destination) {
+        fs.code[jump] = encodeAsBx(JMP, 0, destination - (jump + 1));
+    }
+
+    private void patch(List<Integer> jumps, int destination) {
+        for (int jump : jumps) {
+            patch(jump, destination);
+        }
+    }
+
+    private void emitLoop(int start) {
+        emit(encodeAsBx(JMP, 0, start - (fs.pc + 1)), null);
+    }
+
+    private Scope beginScope() {
+        Scope scope = new Scope(fs, fs.active);
+        scopes.add(scope);
+        return scope;
+    }
+
+    private void endScope() {
+        Scope scope = scopes.remove(scopes.size() - 1);
+        if (scope.captured) {
+            emitABC(CLOSE, scope.firstReg, 0, 0, null);
+        }
+        fs.active = scope.firstReg;
+        fs.freeReg = fs.active;
+    }
+
+    private Scope scopeAt(int depth) {
+        return scopes.get(scopes.size() - 1 - depth);
+    }
+
+    // Aloca o registrador de uma nova variável local do escopo atual
+    private int declareLocal(int slot) {
+        int reg = reserve();
+        scopes.get(scopes.size() - 1).bind(slot, reg);
+        return reg;
+    }
+
+    private void activate(int reg) {
+        fs.active = reg + 1;
+    }
+
+    // Índice do upvalue de f que enxerga o slot do escopo alvo, criando a
+    // cadeia de upvalues nas funções intermediárias quando necessário
+    private int upvalue(FuncState f, Scope scope, int slot) {
+        boolean inStack;
+        int index;
+        if (scope.fs == f.enclosing) {
+            inStack = true;
+            index = scope.registers[slot];
+            scope.captured = true;
+        } else {
+            inStack = false;
+            index = upvalue(f.enclosing, scope, slot);
+        }
+        for (int i = 0; i < f.upvalueIndex.size(); i++) {
+            if (f.upvalueInStack.get(i) == inStack && f.upvalueIndex.get(i) == index) return i;
+        }
+        f.upvalueInStack.add(inStack);
+        f.upvalueIndex.add(index);
+        return f.upvalueIndex.size() - 1;
+    }
+
+    private int compileFunction(Stmt.Function function) {
+        FuncState child = new FuncState(fs, function.name.lexeme, function.params.size());
+        fs = child;
+        beginScope();
+        for (int i = 0; i < function.params.size(); i++) {
+            activate(declareLocal(i));
+        }
+        compileAll(function.body);
+        emitABC(RETURN, 0, 1, 0, null);
+        // O RETURN já fecha os upvalues do frame, então o escopo dos
+        // parâmetros não precisa de CLOSE
+        scopes.remove(scopes.size() - 1);
+        fs = child.enclosing;
+        fs.protos.add(child.build());
+        return fs.protos.size() - 1;
+    }
+
+    // Emite os saltos tomados quando a veracidade da condição é igual a
+    // jumpWhen e devolve a lista para ser corrigida pelo chamador
+    private List<Integer> condJump(Expr condition, boolean jumpWhen) {
+        if (condition instanceof Expr.Grouping) {
+            return condJump(((Expr.Grouping) condition).expression, jumpWhen);
+        }
+        if (condition instanceof Expr.Unary && ((Expr.Unary) condition).operator.type == TokenType.NOT) {
+            return condJump(((Expr.Unary) condition).right, !jumpWhen);
+        }
+        if (condition instanceof Expr.Logical) {
+            Expr.Logical logical = (Expr.Logical) condition;
+            boolean isOr = logical.operator.type == TokenType.OR;
+            if (isOr == jumpWhen) {
+                List<Integer> jumps = condJump(logical.left, jumpWhen);
+                jumps.addAll(condJump(logical.right, jumpWhen));
+                return jumps;
+            }
+            List<Integer> skip = condJump(logical.left, !jumpWhen);
+            List<Integer> jumps = condJump(logical.right, jumpWhen);
+            patch(skip, fs.pc);
+            return jumps;
+        }
+        List<Integer> jumps = new ArrayList<>();
+        if (condition instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary) condition;
+            int op = compareJumpOp(binary.operator.type);
+            if (op >= 0) {
+                int b = exprRK(binary.left);
+                int c = exprRK(binary.right);
+                emitABC(op, jumpWhen ? 1 : 0, b, c, binary.operator);
+                free(c);
+                free(b);
+                jumps.add(emitJump());
+                return jumps;
+            }
+        }
+        int reg = exprAny(condition);
+        emitABC(TEST, reg, 0, jumpWhen ? 1 : 0, null);
+        free(reg);
+        jumps.add(emitJump());
+        return jumps;
+    }
+
+    private static int compareJumpOp(TokenType type) {
+        switch (type) {
+            case EQUAL_EQUAL: return IFEQ;
+            case BANG_EQUAL:
+            case TILDE_EQUAL: return IFNE;
+            case LESS: return IFLT;
+            case LESS_EQUAL: return IFLE;
+            case GREATER: return IFGT;
+            case GREATER_EQUAL: return IFGE;
+            default: return -1;
+        }
+    }
+
+    private static int binaryOp(TokenType type) {
+        switch (type) {
+            case PLUS: return ADD;
+            case MINUS: return SUB;
+            case STAR: return MUL;
+            case SLASH: return DIV;
+            case PERCENT: return MOD;
+            case CARET: return POW;
+            case EQUAL_EQUAL: return EQ;
+            case BANG_EQUAL:
+            case TILDE_EQUAL: return NE;
+            case LESS: return LT;
+            case LESS_EQUAL: return LE;
+            case GREATER: return GT;
+            case GREATER_EQUAL: return GE;
+            default: return -1;
+        }
+    }
+
+    private void enterLoop() {
+        fs.loop = new Loop(fs.loop, scopes.size());
+    }
+
+    private void exitLoop(int exit) {
+        patch(fs.loop.breaks, exit);
+        fs.loop = fs.loop.enclosing;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        beginScope();
+        compileAll(stmt.statements);
+        endScope();
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        if (stmt.expression instanceof Expr.Assign) {
+            exprTo(stmt.expression, NO_REG);
+            return null;
+        }
+        int reg = reserve();
+        exprTo(stmt.expression, reg);
+        free(reg);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        if (stmt.slot >= 0) {
+            // Fica visível antes do corpo para permitir recursão
+            int reg = declareLocal(stmt.slot);
+            activate(reg);
+            emitABx(CLOSURE, reg, compileFunction(stmt), stmt.name);
+        } else {
+            int reg = reserve();
+            emitABx(CLOSURE, reg, compileFunction(stmt), stmt.name);
+            emitABx(SETGLOBAL, reg, constant(stmt.name.lexeme), stmt.name);
+            free(reg);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        List<Integer> falseJumps = condJump(stmt.condition, false);
+        compile(stmt.thenBranch);
+        if (stmt.elseBranch != null) {
+            int exit = emitJump();
+            patch(falseJumps, fs.pc);
+            compile(stmt.elseBranch);
+            patch(exit, fs.pc);
+        } else {
+            patch(falseJumps, fs.pc);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value == null) {
+            emitABC(RETURN, 0, 1, 0, stmt.keyword);
+            return null;
+        }
+        if (stmt.tailCall) {
+            Expr.Call call = (Expr.Call) stmt.value;
+            int base = reserve();
+            exprTo(call.callee, base);
+            for (Expr argument : call.arguments) {
+                exprTo(argument, reserve());
+            }
+            emitABC(TAILCALL, base, call.arguments.size() + 1, 0, call.paren);
+            fs.freeReg = base;
+            return null;
+        }
+        int reg = exprAny(stmt.value);
+        emitABC(RETURN, reg, 2, 0, stmt.keyword);
+        free(reg);
+        return null;
+    }
+
+    @Override
+    public Void visitLocalVarStmt(Stmt.LocalVar stmt) {
+        if (stmt.slot < 0) {
+            int reg = reserve();
+            if (stmt.initializer != null) {
+                exprTo(stmt.initializer, reg);
+            } else {
+                emitABC(LOADNIL, reg, 0, 0, null);
+            }
+            emitABx(SETGLOBAL, reg, constant(stmt.name.lexeme), stmt.name);
+            free(reg);
+            return null;
+        }
+        int reg = declareLocal(stmt.slot);
+        if (stmt.initializer != null) {
+            exprTo(stmt.initializer, reg);
+        } else {
+            emitABC(LOADNIL, reg, 0, 0, null);
+        }
+        activate(reg);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        int start = fs.pc;
+        List<Integer> exitJumps = condJump(stmt.condition, false);
+        enterLoop();
+        compile(stmt.body);
+        emitLoop(start);
+        patch(exitJumps, fs.pc);
+        exitLoop(fs.pc);
+        return null;
+    }
+
+    @Override
+    public Void visitRepeatStmt(Stmt.Repeat stmt) {
+        int start = fs.pc;
+        enterLoop();
+        compile(stmt.body);
+        patch(condJump(stmt.condition, false), start);
+        exitLoop(fs.pc);
+        return null;
+    }
+
+    @Override
+    public Void visitForStmt(Stmt.For stmt) {
+        // Índice, limite e passo ocupam três registradores internos, avaliados
+        // uma vez; a variável de controle é o quarto, já no escopo do corpo
+        int base = reserve();
+        exprTo(stmt.start, base);
+        exprTo(stmt.limit, reserve());
+        int step = reserve();
+        if (stmt.step != null) {
+            exprTo(stmt.step, step);
+        } else {
+            emitABx(LOADK, step, constant(1L), null);
+        }
+        activate(step);
+
+        int prep = emit(encodeAsBx(FORPREP, base, 0), stmt.name);
+        enterLoop();
+        beginScope();
+        activate(declareLocal(stmt.slot));
+        int bodyStart = fs.pc;
+        compileAll(stmt.body);
+        endScope();
+        emit(encodeAsBx(FORLOOP, base, bodyStart - (fs.pc + 1)), stmt.name);
+        fs.code[prep] = encodeAsBx(FORPREP, base, fs.pc - (prep + 1));
+        exitLoop(fs.pc);
+
+        fs.active = base;
+        fs.freeReg = base;
+        return null;
+    }
+
+    @Override
+    public Void visitForInStmt(Stmt.ForIn stmt) {
+        // Iterador, estado e controle ocupam três registradores internos; as
+        // variáveis vêm em seguida, no escopo do corpo
+        List<Expr> iterators = stmt.iterators;
+        int base = reserve();
+        for (int i = 0; i < 3; i++) {
+            int reg = i == 0 ? base : reserve();
+            if (i < iterators.size()) {
+                exprTo(iterators.get(i), reg);
+            } else {
+                emitABC(LOADNIL, reg, 0, 0, null);
+            }
+        }
+        for (int i = 3; i < iterators.size(); i++) {
+            int reg = reserve();
+            exprTo(iterators.get(i), reg);
+            free(reg);
+        }
+        activate(base + 2);
+
+        Token name = stmt.names.get(0);
+        int prep = emit(encodeAsBx(TFORPREP, base, 0), name);
+        enterLoop();
+        beginScope();
+        for (int i = 0; i < stmt.names.size(); i++) {
+            activate(declareLocal(stmt.slot + i));
+        }
+        int bodyStart = fs.pc;
+        compileAll(stmt.body);
+        endScope();
+        fs.code[prep] = encodeAsBx(TFORPREP, base, fs.pc - (prep + 1));
+        int flags = Math.min(iterators.size() - 1, 2) | (stmt.keyIgnored ? TFOR_NO_KEY : 0);
+        emitABC(TFORCALL, base, flags, stmt.names.size(), name);
+        emit(encodeAsBx(TFORLOOP, base, bodyStart - (fs.pc + 1)), name);
+        exitLoop(fs.pc);
+
+        fs.active = base;
+        fs.freeReg = base;
+        return null;
+    }
+
+    @Override
+    public Void visitBreakStmt(Stmt.Break stmt) {
+        Loop loop = fs.loop;
+        if (loop == null) {
+            errors.error(stmt.keyword, "Break outside loop.");
+            return null;
+        }
+        for (int i = loop.scopeLevel; i < scopes.size(); i++) {
+            if (scopes.get(i).captured) {
+                emitABC(CLOSE, scopes.get(loop.scopeLevel).firstReg, 0, 0, null);
+                break;
+            }
+        }
+        loop.breaks.add(emitJump());
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        int dst = target;
+        Scope scope = expr.depth >= 0 ? scopeAt(expr.depth) : null;
+        if (scope != null && scope.fs == fs) {
+            int reg = scope.registers[expr.slot];
+            exprTo(expr.value, reg);
+            if (dst != NO_REG && dst != reg) emitABC(MOVE, dst, reg, 0, null);
+            return null;
+        }
+        int reg = dst != NO_REG ? dst : reserve();
+        exprTo(expr.value, reg);
+        if (scope != null) {
+            emitABC(SETUPVAL, reg, upvalue(fs, scope, expr.slot), 0, expr.name);
+        } else {
+            emitABx(SETGLOBAL, reg, constant(expr.name.lexeme), expr.name);
+        }
+        if (dst == NO_REG) free(reg);
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        int dst = target;
+        int op = binaryOp(expr.operator.type);
+        int b = exprRK(expr.left);
+        int c = exprRK(expr.right);
+        if (op < 0) {
+            throw new IllegalStateException("Unknown binary operator " + expr.operator.type);
+        }
+        emitABC(op, dst, b, c, expr.operator);
+        free(c);
+        free(b);
+        return null;
+    }
+
+    @Override
+    public Void visitConcatExpr(Expr.Concat expr) {
+        int dst = target;
+        // As partes ocupam registradores consecutivos no topo dos temporários
+        int first = fs.freeReg;
+        for (Expr part : expr.parts) {
+            exprTo(part, reserve());
+        }
+        emitABC(CONCAT, dst, first, first + expr.parts.size() - 1, expr.operator);
+        fs.freeReg = first;
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        int dst = target;
+        // Chamada no topo dos temporários: função e argumentos ficam contíguos
+        int base = (dst == fs.freeReg - 1 && dst >= fs.active) ? dst : reserve();
+        exprTo(expr.callee, base);
+        for (Expr argument : expr.arguments) {
+            exprTo(argument, reserve());
+        }
+        emitABC(CALL, base, expr.arguments.size() + 1, 0, expr.paren);
+        fs.freeReg -= expr.arguments.size();
+        if (base != dst) {
+            emitABC(MOVE, dst, base, 0, null);
+            free(base);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        int dst = target;
+        Object value = expr.value;
+        if (value == null) {
+            emitABC(LOADNIL, dst, 0, 0, null);
+        } else if (value instanceof Boolean) {
+            emitABC(LOADBOOL, dst, (Boolean) value ? 1 : 0, 0, null);
+        } else {
+            emitABx(LOADK, dst, constant(value), null);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitIntLiteralExpr(Expr.IntLiteral expr) {
+        emitABx(LOADK, target, constant(expr.value), null);
+        return null;
+    }
+
+    @Override
+    public Void visitFloatLiteralExpr(Expr.FloatLiteral expr) {
+        emitABx(LOADK, target, constant(expr.value), null);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionExpr(Expr.Function expr) {
+        emitABx(CLOSURE, target, compileFunction(expr.declaration), null);
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        exprTo(expr.expression, target);
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        int dst = target;
+        // O operando da direita pode ler a local de destino: usa temporário
+        if (dst < fs.active) {
+            int temp = reserve();
+            exprTo(expr, temp);
+            emitABC(MOVE, dst, temp, 0, null);
+            free(temp);
+            return null;
+        }
+        exprTo(expr.left, dst);
+        emitABC(TEST, dst, 0, expr.operator.type == TokenType.OR ? 1 : 0, null);
+        int exit = emitJump();
+        exprTo(expr.right, dst);
+        patch(exit, fs.pc);
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        int dst = target;
+        int reg = exprAny(expr.right);
+        if (expr.operator.type == TokenType.NOT) {
+            emitABC(NOT, dst, reg, 0, expr.operator);
+        } else if (expr.operator.type == TokenType.MINUS) {
+            emitABC(UNM, dst, reg, 0, expr.operator);
+        } else {
+            emitABC(LOADNIL, dst, 0, 0, null);
+        }
+        free(reg);
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        int dst = target;
+        if (expr.depth < 0) {
+            emitABx(GETGLOBAL, dst, constant(expr.name.lexeme), expr.name);
+            return null;
+        }
+        Scope scope = scopeAt(expr.depth);
+        if (scope.fs == fs) {
+            int reg = scope.registers[expr.slot];
+            if (reg != dst) emitABC(MOVE, dst, reg, 0, null);
+        } else {
+            emitABC(GETUPVAL, dst, upvalue(fs, scope, expr.slot), 0, expr.name);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitTableExpr(Expr.Table expr) {
+        int dst = target;
+        // Os campos podem ler a local de destino: monta num temporário
+        if (dst < fs.active) {
+            int temp = reserve();
+            exprTo(expr, temp);
+            emitABC(MOVE, dst, temp, 0, null);
+            free(temp);
+            return null;
+        }
+        emitABC(NEWTABLE, dst, Math.min(expr.arrayCount, MAX_BC), Math.min(expr.keyedCount, MAX_BC), expr.brace);
+        int position = 0;
+        for (int i = 0; i < expr.keys.length; i++) {
+            if (expr.keys[i] != null) {
+                int key = exprRK(expr.keys[i]);
+                int value = exprRK(expr.values[i]);
+                emitABC(SETTABLE, dst, key, value, expr.brace);
+                free(value);
+                free(key);
+            } else if (++position <= MAX_BC) {
+                int value = exprAny(expr.values[i]);
+                emitABC(SETLIST, dst, value, position, expr.brace);
+                free(value);
+            } else {
+                int key = exprRK(new Expr.Literal((long) position));
+                int value = exprRK(expr.values[i]);
+                emitABC(SETTABLE, dst, key, value, expr.brace);
+                free(value);
+                free(key);
+            }
+        }
+        return null;
+    }
+
+    // A tabela de dados é compilada pelos nós remontados
+    @Override
+    public Void visitPackedTableExpr(Expr.PackedTable expr) {
+        return visitTableExpr(expr.view());
+    }
+
+    @Override
+    public Void visitTableAssignExpr(Expr.TableAssign expr) {
+        int dst = target;
+        int table = exprAny(expr.table);
+        int key = exprRK(expr.key);
+        int value = exprRK(expr.value);
+        emitABC(SETTABLE, table, key, value, expr.token);
+        if (dst != NO_REG) {
+            if ((value & BITRK) != 0) {
+                emitABx(LOADK, dst, value & ~BITRK, null);
+            } else if (dst != value) {
+                emitABC(MOVE, dst, value, 0, null);
+            }
+        }
+        free(value);
+        free(key);
+        free(table);
+        return null;
+    }
+
+    @Override
+    public Void visitTableIndexExpr(Expr.TableIndex expr) {
+        int dst = target;
+        int table = exprAny(expr.table);
+        int index = exprRK(expr.index);
+        emitABC(GETTABLE, dst, table, index, expr.bracket);
+        free(index);
+        free(table);
+        return null;
+    }
+
+    @Override
+    public Void visitTableFieldExpr(Expr.TableField expr) {
+        int dst = target;
+        int table = exprAny(expr.table);
+        // O cache inline do nó da AST é reaproveitado pela instrução
+        if (fs.fieldCaches.size() <= MAX_BC) {
+            emitABC(GETFIELD, dst, table, fs.fieldCaches.size(), expr.field);
+            fs.fieldCaches.add(expr.cache);
+        } else {
+            int key = exprRK(new Expr.Literal(expr.field.lexeme));
+            emitABC(GETTABLE, dst, table, key, expr.field);
+            free(key);
+        }
+        free(table);
+        return null;
+    }
+}
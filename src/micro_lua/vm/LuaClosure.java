@@ -0,0 +1,65 @@
+package micro_lua.vm;
+
+import java.util.List;
+
+import micro_lua.Coroutine;
+import micro_lua.LuaCallable;
+import micro_lua.LuaInterpreter;
+
+// Função Lua compilada para bytecode, junto com os upvalues capturados.
+public final class LuaClosure implements LuaCallable {
+    final Prototype proto;
+    final Upvalue[] upvalues;
+    final VM vm;
+
+    LuaClosure(Prototype proto, Upvalue[] upvalues, VM vm) {
+        this.proto = proto;
+        this.upvalues = upvalues;
+        this.vm = vm;
+    }
+
+    @Override
+    public int arity() {
+        return proto.numParams;
+    }
+
+    @Override
+    public Object call(LuaInterpreter interpreter, List<Object> arguments) {
+        return vm.call(this, arguments.toArray());
+    }
+
+    @Override
+    public Object call(LuaInterpreter interpreter, Object[] arguments) {
+        return vm.call(this, arguments);
+    }
+
+    @Override
+    public Object call0(LuaInterpreter interpreter) {
+        return vm.call(this, 0, null, null, null);
+    }
+
+    @Override
+    public Object call1(LuaInterpreter interpreter, Object a) {
+        return vm.call(this, 1, a, null, null);
+    }
+
+    @Override
+    public Object call2(LuaInterpreter interpreter, Object a, Object b) {
+        return vm.call(this, 2, a, b, null);
+    }
+
+    @Override
+    public Object call3(LuaInterpreter interpreter, Object a, Object b, Object c) {
+        return vm.call(this, 3, a, b, c);
+    }
+
+    // coroutine.create: a corrotina roda na pilha explícita de uma VM própria
+    public Coroutine newCoroutine() {
+        return new VMCoroutine(this);
+    }
+
+    @Override
+    public String toString() {
+        return "<fn " + proto.name + ">";
+    }
+}
@@ -0,0 +1,121 @@
+package micro_lua.vm;
+
+// Formato das instruções (32 bits, no estilo do Lua 5.1):
+//
+//   | B (9) | C (9) | A (8) | op (6) |       iABC
+//   |     Bx (18)   | A (8) | op (6) |       iABx / iAsBx
+//
+// Operandos B e C marcados como RK podem apontar para um registrador
+// (valor < 256) ou para uma constante (valor - 256).
+public final class OpCode {
+    public static final int MOVE = 0;       // R[A] = R[B]
+    public static final int LOADK = 1;      // R[A] = K[Bx]
+    public static final int LOADBOOL = 2;   // R[A] = (B != 0); if (C) pc++
+    public static final int LOADNIL = 3;    // R[A] = nil
+    public static final int GETUPVAL = 4;   // R[A] = Up[B]
+    public static final int SETUPVAL = 5;   // Up[B] = R[A]
+    public static final int GETGLOBAL = 6;  // R[A] = G[K[Bx]]
+    public static final int SETGLOBAL = 7;  // G[K[Bx]] = R[A]
+    public static final int GETTABLE = 8;   // R[A] = R[B][RK(C)]
+    public static final int GETFIELD = 9;   // R[A] = R[B][F[C].key], com o cache inline F[C]
+    public static final int SETTABLE = 10;  // R[A][RK(B)] = RK(C)
+    public static final int SETLIST = 11;   // R[A][C] = R[B] (campo posicional do construtor)
+    public static final int NEWTABLE = 12;  // R[A] = {} com B posições no array e C na hash
+    public static final int ADD = 13;       // R[A] = RK(B) + RK(C)
+    public static final int SUB = 14;
+    public static final int MUL = 15;
+    public static final int DIV = 16;
+    public static final int MOD = 17;
+    public static final int POW = 18;
+    public static final int CONCAT = 19;    // R[A] = R[B] .. ... .. R[C]
+    public static final int EQ = 20;        // R[A] = RK(B) == RK(C)
+    public static final int NE = 21;
+    public static final int LT = 22;
+    public static final int LE = 23;
+    public static final int GT = 24;
+    public static final int GE = 25;
+    public static final int UNM = 26;       // R[A] = -R[B]
+    public static final int NOT = 27;       // R[A] = not R[B]
+    public static final int JMP = 28;       // pc += sBx
+    public static final int TEST = 29;      // if (truthy(R[A]) != C) pc++
+    public static final int IFEQ = 30;      // if ((RK(B) == RK(C)) != A) pc++
+    public static final int IFNE = 31;
+    public static final int IFLT = 32;
+    public static final int IFLE = 33;
+    public static final int IFGT = 34;
+    public static final int IFGE = 35;
+    public static final int CALL = 36;      // R[A] = R[A](R[A+1], ..., R[A+B-1])
+    public static final int RETURN = 37;    // return R[A] (B == 2) ou nil (B == 1)
+    public static final int CLOSURE = 38;   // R[A] = closure(P[Bx])
+    public static final int CLOSE = 39;     // fecha upvalues >= R[A]
+    // for numérico: R[A] índice, R[A+1] limite, R[A+2] passo, R[A+3] variável
+    public static final int FORPREP = 40;   // valida e prepara; se o laço não roda, pc += sBx
+    public static final int FORLOOP = 41;   // R[A] += R[A+2]; se não passou do limite, R[A+3] = R[A] e pc += sBx
+    public static final int TAILCALL = 42;  // return R[A](R[A+1], ..., R[A+B-1]), reaproveitando o frame
+    public static final int TFORPREP = 43;  // R[A] = iterador do trio R[A], R[A+1], R[A+2]; pc += sBx
+    public static final int TFORCALL = 44;  // R[A+3], ..., R[A+2+C] = próxima entrada de R[A](R[A+1], R[A+2]); B: valores dados (+ TFOR_NO_KEY)
+    public static final int TFORLOOP = 45;  // se R[A+3] ~= nil, R[A+2] = R[A+3] e pc += sBx
+
+    static final String[] NAMES = {
+        "MOVE", "LOADK", "LOADBOOL", "LOADNIL", "GETUPVAL", "SETUPVAL",
+        "GETGLOBAL", "SETGLOBAL", "GETTABLE", "GETFIELD", "SETTABLE", "SETLIST",
+        "NEWTABLE", "ADD", "SUB", "MUL", "DIV", "MOD", "POW", "CONCAT",
+        "EQ", "NE", "LT", "LE", "GT", "GE", "UNM", "NOT", "JMP", "TEST",
+        "IFEQ", "IFNE", "IFLT", "IFLE", "IFGT", "IFGE", "CALL", "RETURN",
+        "CLOSURE", "CLOSE", "FORPREP", "FORLOOP", "TAILCALL",
+        "TFORPREP", "TFORCALL", "TFORLOOP"
+    };
+
+    static final int MAX_A = 0xFF;
+    static final int MAX_BC = 0x1FF;
+    static final int MAX_BX = 0x3FFFF;
+    static final int MAX_SBX = MAX_BX >> 1;
+    // Bit que marca um operando RK como constante
+    static final int BITRK = 1 << 8;
+    // Bit do B do TFORCALL: o corpo não lê a primeira variável
+    static final int TFOR_NO_KEY = 1 << 2;
+
+    private OpCode() {}
+
+    // Registrador (relativo ao frame) que recebe o resultado da chamada
+    // feita pela instrução i: R[A], ou a variável R[A+3] num TFORCALL
+    static int resultRegister(int i) {
+        return op(i) == TFORCALL ? a(i) + 3 : a(i);
+    }
+
+    static int encodeABC(int op, int a, int b, int c) {
+        return op | (a << 6) | (c << 14) | (b << 23);
+    }
+
+    static int encodeABx(int op, int a, int bx) {
+        return op | (a << 6) | (bx << 14);
+    }
+
+    static int encodeAsBx(int op, int a, int sbx) {
+        return encodeABx(op, a, sbx + MAX_SBX);
+    }
+
+    static int op(int i) {
+        return i & 0x3F;
+    }
+
+    static int a(int i) {
+        return (i >>> 6) & 0xFF;
+    }
+
+    static int b(int i) {
+        return i >>> 23;
+    }
+
+    static int c(int i) {
+        return (i >>> 14) & 0x1FF;
+    }
+
+    static int bx(int i) {
+        return i >>> 14;
+    }
+
+    static int sbx(int i) {
+        return (i >>> 14) - MAX_SBX;
+    }
+}
@@ -0,0 +1,84 @@
+package micro_lua.vm;
+
+import micro_lua.FieldCache;
+import micro_lua.Token;
+
+// Função compilada: bytecode, pool de constantes e protótipos aninhados.
+public final class Prototype {
+    final String name;
+    final int numParams;
+    final int maxStack;
+    final int[] code;
+    final Object[] constants;
+    final Prototype[] protos;
+    // Descritores de upvalue: capturado de um registrador da função
+    // envolvente (inStack) ou de um upvalue dela
+    final boolean[] upvalueInStack;
+    final int[] upvalueIndex;
+    // Token de origem de cada instrução, usado nas mensagens de erro
+    final Token[] tokens;
+    // Caches inline dos acessos t.nome, indexados pelo operando C de GETFIELD
+    final FieldCache[] fieldCaches;
+
+    Prototype(String name, int numParams, int maxStack, int[] code, Object[] constants,
+              Prototype[] protos, boolean[] upvalueInStack, int[] upvalueIndex, Token[] tokens,
+              FieldCache[] fieldCaches) {
+        this.name = name;
+        this.numParams = numParams;
+        this.maxStack = maxStack;
+        this.code = code;
+        this.constants = constants;
+        this.protos = protos;
+        this.upvalueInStack = upvalueInStack;
+        this.upvalueIndex = upvalueIndex;
+        this.tokens = tokens;
+        this.fieldCaches = fieldCaches;
+    }
+
+    public String disassemble() {
+        StringBuilder sb = new StringBuilder();
+        disassemble(sb);
+        return sb.toString();
+    }
+
+    private void disassemble(StringBuilder sb) {
+        sb.append("function <").append(name.isEmpty() ? "anonymous" : name).append("> ")
+          .append(numParams).append(" params, ").append(maxStack).append(" registers, ")
+          .append(constants.length).append(" constants, ")
+          .append(upvalueIndex.length).append(" upvalues\n");
+        for (int pc = 0; pc < code.length; pc++) {
+            int i = code[pc];
+            int op = OpCode.op(i);
+            sb.append(String.format("  %4d  %-10s %3d", pc, OpCode.NAMES[op], OpCode.a(i)));
+            switch (op) {
+                case OpCode.LOADK:
+                case OpCode.GETGLOBAL:
+                case OpCode.SETGLOBAL:
+                    sb.append(String.format(" %5d    ; %s", OpCode.bx(i), constants[OpCode.bx(i)]));
+                    break;
+                case OpCode.CLOSURE:
+                    sb.append(String.format(" %5d", OpCode.bx(i)));
+                    break;
+                case OpCode.GETFIELD:
+                    sb.append(String.format(" %5d %5d    ; %s", OpCode.b(i), OpCode.c(i),
+                        fieldCaches[OpCode.c(i)].key));
+                    break;
+                case OpCode.JMP:
+                case OpCode.FORPREP:
+                case OpCode.FORLOOP:
+                case OpCode.TFORPREP:
+                case OpCode.TFORLOOP:
+                    sb.append(String.format(" %5d    ; to %d", OpCode.sbx(i), pc + 1 + OpCode.sbx(i)));
+                    break;
+                default:
+                    sb.append(String.format(" %5d %5d", OpCode.b(i), OpCode.c(i)));
+                    break;
+            }
+            sb.append('\n');
+        }
+        for (Prototype p : protos) {
+            sb.append('\n');
+            p.disassemble(sb);
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package micro_lua.vm;
+
+// Upvalue no estilo do Lua: enquanto a variável capturada está viva na pilha
+// da VM o upvalue está "aberto" e aponta para o registrador; ao sair do escopo
+// ele é "fechado" e passa a guardar o próprio valor.
+final class Upvalue {
+    private final VM vm;
+    final int index;
+    private Object value;
+    private boolean open = true;
+    Upvalue next;
+
+    Upvalue(VM vm, int index, Upvalue next) {
+        this.vm = vm;
+        this.index = index;
+        this.next = next;
+    }
+
+    Object get() {
+        return open ? vm.stack[index] : value;
+    }
+
+    void set(Object newValue) {
+        if (open) {
+            vm.stack[index] = newValue;
+        } else {
+            value = newValue;
+        }
+    }
+
+    void close() {
+        value = vm.stack[index];
+        open = false;
+    }
+}
@@ -0,0 +1,722 @@
+package micro_lua.vm;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import micro_lua.Coroutine;
+import micro_lua.LuaCallable;
+import micro_lua.LuaInterpreter;
+import micro_lua.LuaNumber;
+import micro_lua.LuaTable;
+import micro_lua.RuntimeError;
+import micro_lua.TableIterator;
+import micro_lua.Token;
+
+// Executa bytecode de registradores. As funções nativas, a tabela de globais
+// e a semântica dos operadores com metamétodos vêm do interpretador
+// hospedeiro, então os dois motores produzem a mesma saída.
+// Chamadas entre funções Lua não usam recursão Java: cada uma empilha um
+// CallFrame e o laço de despacho continua na função chamada. A profundidade
+// de recursão é limitada só pelo orçamento de registradores (maxStack).
+//
+// Cada corrotina tem uma VM própria, ligada à do estado (main): closures de
+// uma rodam direto no laço da outra. Um yield no corpo da corrotina só salva
+// o pc e sai do laço; o resume seguinte volta a ele (ver VMCoroutine).
+public class VM {
+    // Registradores por VM se nada for configurado (o LUAI_MAXSTACK do Lua)
+    public static final int DEFAULT_MAX_STACK = 1_000_000;
+    // Pilhas iniciais de uma corrotina: pequenas, para caberem muitas
+    private static final int COROUTINE_STACK = 16;
+    private static final int COROUTINE_FRAMES = 4;
+
+    final LuaInterpreter host;
+    private final Map<String, Object> globals;
+    private final int maxStack;
+    // VM do estado; a própria VM, fora das corrotinas
+    final VM main;
+    // Pilha de registradores compartilhada por todos os frames
+    Object[] stack;
+    private int top = 0;
+    // Pilha de chamadas: frames[depth - 1] é a função em execução
+    private CallFrame[] frames;
+    int depth = 0;
+    // Numa corrotina, se o corpo está rodando a partir de resume: só então
+    // um yield no frame de entrada pode suspender
+    private boolean resuming = false;
+    // Upvalues abertos, ordenados pelo índice na pilha (decrescente)
+    private Upvalue openUpvalues = null;
+
+    public VM(LuaInterpreter host) {
+        this(host, DEFAULT_MAX_STACK);
+    }
+
+    public VM(LuaInterpreter host, int maxStack) {
+        this.host = host;
+        this.globals = host.getGlobals();
+        this.maxStack = maxStack;
+        this.main = this;
+        this.stack = new Object[256];
+        this.frames = new CallFrame[16];
+    }
+
+    // VM de uma corrotina criada a partir de parent
+    VM(VM parent) {
+        this.host = parent.host;
+        this.globals = parent.globals;
+        this.maxStack = parent.maxStack;
+        this.main = parent.main;
+        this.stack = new Object[COROUTINE_STACK];
+        this.frames = new CallFrame[COROUTINE_FRAMES];
+    }
+
+    public void interpret(Prototype main) {
+        try {
+            execute(new LuaClosure(main, new Upvalue[0], this), top);
+        } catch (RuntimeError error) {
+            host.errors().runtimeError(error);
+        } catch (StackOverflowError error) {
+            // Só a recursão através de nativas e metamétodos usa a pilha Java
+            host.errors().runtimeError(new RuntimeError(null, "stack overflow."));
+        }
+    }
+
+    // Chamadas vindas de fora do laço de despacho (metamétodos, nativas).
+    // Parâmetros sem argumento começam como nil
+    Object call(LuaClosure closure, Object[] arguments) {
+        int base = top;
+        int params = closure.proto.numParams;
+        ensureStack(base + Math.max(params, arguments.length));
+        System.arraycopy(arguments, 0, stack, base, arguments.length);
+        for (int i = arguments.length; i < params; i++) {
+            stack[base + i] = null;
+        }
+        return execute(closure, base);
+    }
+
+    Object call(LuaClosure closure, int argc, Object a, Object b, Object c) {
+        int base = top;
+        int params = closure.proto.numParams;
+        ensureStack(base + Math.max(params, 3));
+        stack[base] = a;
+        stack[base + 1] = b;
+        stack[base + 2] = c;
+        for (int i = 3; i < params; i++) {
+            stack[base + i] = null;
+        }
+        return execute(closure, base);
+    }
+
+    // Corrotinas: a primeira retomada empilha o corpo na base da pilha; as
+    // seguintes entregam o valor ao yield em que o frame do topo parou. Volta
+    // no próximo yield (com depth > 0) ou quando o corpo retorna (depth == 0)
+    Object resume(LuaClosure body, int argc, Object value) {
+        try {
+            if (depth == 0) {
+                if (body.proto.numParams != argc) {
+                    throw new RuntimeError(null,
+                        "Expected " + body.proto.numParams + " arguments but got " + argc + ".");
+                }
+                ensureStack(1);
+                stack[0] = value;
+                push(body, 0, null);
+            } else {
+                CallFrame frame = frames[depth - 1];
+                int i = frame.closure.proto.code[frame.pc - 1];
+                if (OpCode.op(i) == OpCode.TAILCALL) {
+                    // return coroutine.yield(...): o frame termina com o valor recebido
+                    pop();
+                    if (depth == 0) return value;
+                    frame = frames[depth - 1];
+                    i = frame.closure.proto.code[frame.pc - 1];
+                }
+                stack[frame.base + OpCode.resultRegister(i)] = value;
+            }
+            resuming = true;
+            return run(0);
+        } catch (RuntimeException | Error e) {
+            // Um erro mata a corrotina: os frames dela são desfeitos
+            while (depth > 0) {
+                pop();
+            }
+            throw e;
+        } finally {
+            resuming = false;
+        }
+    }
+
+    private void ensureStack(int size) {
+        if (size > stack.length) {
+            stack = Arrays.copyOf(stack, Math.max(size, stack.length * 2));
+        }
+    }
+
+    private Upvalue findUpvalue(int index) {
+        Upvalue previous = null;
+        Upvalue upvalue = openUpvalues;
+        while (upvalue != null && upvalue.index > index) {
+            previous = upvalue;
+            upvalue = upvalue.next;
+        }
+        if (upvalue != null && upvalue.index == index) return upvalue;
+
+        Upvalue created = new Upvalue(this, index, upvalue);
+        if (previous == null) {
+            openUpvalues = created;
+        } else {
+            previous.next = created;
+        }
+        return created;
+    }
+
+    private void closeUpvalues(int level) {
+        while (openUpvalues != null && openUpvalues.index >= level) {
+            openUpvalues.close();
+            openUpvalues = openUpvalues.next;
+        }
+    }
+
+    // Chamada a algo que não é uma closure desta VM: nativas, funções do
+    // interpretador de árvore, closures de outra VM
+    private Object callHost(Token token, Object function, int a, int argc) {
+        Object[] r = stack;
+        LuaCallable callee = host.callable(token, function, argc);
+        switch (argc) {
+            case 0: return callee.call0(host);
+            case 1: return callee.call1(host, r[a + 1]);
+            case 2: return callee.call2(host, r[a + 1], r[a + 2]);
+            case 3: return callee.call3(host, r[a + 1], r[a + 2], r[a + 3]);
+            default: return callee.call(host, Arrays.copyOfRange(r, a + 1, a + 1 + argc));
+        }
+    }
+
+    // Entrada vinda de Java: roda a closure até ela retornar. Se um erro
+    // interrompe a execução, os frames abertos desde a entrada são desfeitos
+    private Object execute(LuaClosure closure, int base) {
+        int entry = depth;
+        push(closure, base, null);
+        try {
+            return run(entry);
+        } finally {
+            while (depth > entry) {
+                pop();
+            }
+        }
+    }
+
+    private CallFrame push(LuaClosure closure, int base, Token call) {
+        int size = base + closure.proto.maxStack;
+        if (size > maxStack) {
+            throw new RuntimeError(call, "stack overflow.");
+        }
+        if (depth == frames.length) {
+            frames = Arrays.copyOf(frames, depth * 2);
+        }
+        CallFrame frame = frames[depth];
+        if (frame == null) {
+            frame = frames[depth] = new CallFrame();
+        }
+        depth++;
+        frame.closure = closure;
+        frame.base = base;
+        frame.pc = 0;
+        frame.savedTop = top;
+        ensureStack(size);
+        top = Math.max(top, size);
+        return frame;
+    }
+
+    private void pop() {
+        CallFrame frame = frames[--depth];
+        top = frame.savedTop;
+        if (openUpvalues != null && openUpvalues.index >= frame.base) {
+            closeUpvalues(frame.base);
+        }
+        frame.closure = null;
+    }
+
+    // Laço de despacho. Roda o frame do topo e os que ele chamar, até que o
+    // frame de índice entry retorne
+    private Object run(int entry) {
+        CallFrame frame = frames[depth - 1];
+        LuaClosure closure = frame.closure;
+        int base = frame.base;
+        Prototype proto = closure.proto;
+        int[] code = proto.code;
+        Object[] k = proto.constants;
+        Object[] r = stack;
+        int pc = frame.pc;
+
+        while (true) {
+            int i = code[pc++];
+            int a = base + OpCode.a(i);
+            switch (OpCode.op(i)) {
+                case OpCode.MOVE:
+                    r[a] = r[base + OpCode.b(i)];
+                    break;
+                case OpCode.LOADK:
+                    r[a] = k[OpCode.bx(i)];
+                    break;
+                case OpCode.LOADBOOL:
+                    r[a] = OpCode.b(i) != 0;
+                    if (OpCode.c(i) != 0) pc++;
+                    break;
+                case OpCode.LOADNIL:
+                    r[a] = null;
+                    break;
+                case OpCode.GETUPVAL:
+                    r[a] = closure.upvalues[OpCode.b(i)].get();
+                    break;
+                case OpCode.SETUPVAL:
+                    closure.upvalues[OpCode.b(i)].set(r[a]);
+                    break;
+                case OpCode.GETGLOBAL: {
+                    String name = (String) k[OpCode.bx(i)];
+                    Object value = globals.get(name);
+                    if (value == null && !globals.containsKey(name)) {
+                        throw new RuntimeError(proto.tokens[pc - 1], "Undefined variable '" + name + "'.");
+                    }
+                    r[a] = value;
+                    break;
+                }
+                case OpCode.SETGLOBAL:
+                    globals.put((String) k[OpCode.bx(i)], r[a]);
+                    break;
+                case OpCode.GETTABLE: {
+                    Object table = r[base + OpCode.b(i)];
+                    Object key = rk(r, base, k, OpCode.c(i));
+                    if (!(table instanceof LuaTable)) {
+                        throw new RuntimeError(proto.tokens[pc - 1],
+                            "Attempt to index a non-table value (" + host.stringify(table) + ")");
+                    }
+                    Object value = ((LuaTable) table).get(host, key);
+                    r = stack;
+                    r[a] = value;
+                    break;
+                }
+                case OpCode.GETFIELD: {
+                    Object table = r[base + OpCode.b(i)];
+                    if (!(table instanceof LuaTable)) {
+                        throw new RuntimeError(proto.tokens[pc - 1], "Attempt to index a non-table value");
+                    }
+                    Object value = proto.fieldCaches[OpCode.c(i)].get(host, (LuaTable) table);
+                    r = stack;
+                    r[a] = value;
+                    break;
+                }
+                case OpCode.SETTABLE: {
+                    Object table = r[a];
+                    Object key = rk(r, base, k, OpCode.b(i));
+                    if (!(table instanceof LuaTable)) {
+                        throw new RuntimeError(proto.tokens[pc - 1],
+                            "Attempt to index a non-table value (" + host.stringify(table) + ")");
+                    }
+                    if (key == null) {
+                        throw new RuntimeError(proto.tokens[pc - 1], "Table index is nil.");
+                    }
+                    if (key instanceof Double && Double.isNaN((Double) key)) {
+                        throw new RuntimeError(proto.tokens[pc - 1], "Table index is NaN.");
+                    }
+                    ((LuaTable) table).set(host, key, rk(r, base, k, OpCode.c(i)));
+                    r = stack;
+                    break;
+                }
+                case OpCode.SETLIST:
+                    ((LuaTable) r[a]).rawsetInt(OpCode.c(i), r[base + OpCode.b(i)]);
+                    break;
+                case OpCode.NEWTABLE:
+                    r[a] = new LuaTable(OpCode.b(i), OpCode.c(i));
+                    break;
+                case OpCode.ADD: {
+                    Object lhs = rk(r, base, k, OpCode.b(i));
+                    Object rhs = rk(r, base, k, OpCode.c(i));
+                    if (lhs instanceof Long && rhs instanceof Long) {
+                        r[a] = (Long) lhs + (Long) rhs;
+                    } else if (lhs instanceof Double && rhs instanceof Double) {
+                        r[a] = (Double) lhs + (Double) rhs;
+                    } else {
+                        Object value = host.binaryOp(proto.tokens[pc - 1], lhs, rhs);
+                        r = stack;
+                        r[a] = value;
+                    }
+                    break;
+                }
+                case OpCode.SUB: {
+                    Object lhs = rk(r, base, k, OpCode.b(i));
+                    Object rhs = rk(r, base, k, OpCode.c(i));
+                    if (lhs instanceof Long && rhs instanceof Long) {
+                        r[a] = (Long) lhs - (Long) rhs;
+                    } else if (lhs instanceof Double && rhs instanceof Double) {
+                        r[a] = (Double) lhs - (Double) rhs;
+                    } else {
+                        Object value = host.binaryOp(proto.tokens[pc - 1], lhs, rhs);
+                        r = stack;
+                        r[a] = value;
+                    }
+                    break;
+                }
+                case OpCode.MUL: {
+                    Object lhs = rk(r, base, k, OpCode.b(i));
+                    Object rhs = rk(r, base, k, OpCode.c(i));
+                    if (lhs instanceof Long && rhs instanceof Long) {
+                        r[a] = (Long) lhs * (Long) rhs;
+                    } else if (lhs instanceof Double && rhs instanceof Double) {
+                        r[a] = (Double) lhs * (Double) rhs;
+                    } else {
+                        Object value = host.binaryOp(proto.tokens[pc - 1], lhs, rhs);
+                        r = stack;
+                        r[a] = value;
+                    }
+                    break;
+                }
+                case OpCode.DIV:
+                case OpCode.MOD:
+                case OpCode.POW:
+                case OpCode.EQ:
+                case OpCode.NE:
+                case OpCode.LE:
+                case OpCode.GT:
+                case OpCode.GE: {
+                    Object value = host.binaryOp(proto.tokens[pc - 1],
+                        rk(r, base, k, OpCode.b(i)), rk(r, base, k, OpCode.c(i)));
+                    r = stack;
+                    r[a] = value;
+                    break;
+                }
+                case OpCode.LT: {
+                    Object lhs = rk(r, base, k, OpCode.b(i));
+                    Object rhs = rk(r, base, k, OpCode.c(i));
+                    if (lhs instanceof Long && rhs instanceof Long) {
+                        r[a] = (Long) lhs < (Long) rhs;
+                    } else if (lhs instanceof Double && rhs instanceof Double) {
+                        r[a] = (Double) lhs < (Double) rhs;
+                    } else {
+                        Object value = host.binaryOp(proto.tokens[pc - 1], lhs, rhs);
+                        r = stack;
+                        r[a] = value;
+                    }
+                    break;
+                }
+                case OpCode.UNM: {
+                    Object operand = r[base + OpCode.b(i)];
+                    if (operand instanceof Long) {
+                        r[a] = -(Long) operand;
+                    } else if (operand instanceof Double) {
+                        r[a] = -(Double) operand;
+                    } else {
+                        Object value = host.unaryOp(proto.tokens[pc - 1], operand);
+                        r = stack;
+                        r[a] = value;
+                    }
+                    break;
+                }
+                case OpCode.NOT:
+                    r[a] = !LuaInterpreter.isTruthy(r[base + OpCode.b(i)]);
+                    break;
+                case OpCode.JMP:
+                    // Só os saltos para trás fecham laços
+                    if (OpCode.sbx(i) < 0) host.checkInterrupt();
+                    pc += OpCode.sbx(i);
+                    break;
+                case OpCode.TEST:
+                    if (LuaInterpreter.isTruthy(r[a]) != (OpCode.c(i) != 0)) pc++;
+                    break;
+                case OpCode.IFEQ:
+                case OpCode.IFNE: {
+                    boolean equal = LuaInterpreter.isEqual(rk(r, base, k, OpCode.b(i)), rk(r, base, k, OpCode.c(i)));
+                    if ((equal == (OpCode.op(i) == OpCode.IFEQ)) != (OpCode.a(i) != 0)) pc++;
+                    break;
+                }
+                case OpCode.IFLT:
+                case OpCode.IFLE:
+                case OpCode.IFGT:
+                case OpCode.IFGE: {
+                    Object lhs = rk(r, base, k, OpCode.b(i));
+                    Object rhs = rk(r, base, k, OpCode.c(i));
+                    boolean result;
+                    if (lhs instanceof Long && rhs instanceof Long) {
+                        long x = (Long) lhs;
+                        long y = (Long) rhs;
+                        switch (OpCode.op(i)) {
+                            case OpCode.IFLT: result = x < y; break;
+                            case OpCode.IFLE: result = x <= y; break;
+                            case OpCode.IFGT: result = x > y; break;
+                            default: result = x >= y; break;
+                        }
+                    } else if (lhs instanceof Double && rhs instanceof Double) {
+                        double x = (Double) lhs;
+                        double y = (Double) rhs;
+                        switch (OpCode.op(i)) {
+                            case OpCode.IFLT: result = x < y; break;
+                            case OpCode.IFLE: result = x <= y; break;
+                            case OpCode.IFGT: result = x > y; break;
+                            default: result = x >= y; break;
+                        }
+                    } else {
+                        result = LuaInterpreter.isTruthy(host.binaryOp(proto.tokens[pc - 1], lhs, rhs));
+                        r = stack;
+                    }
+                    if (result != (OpCode.a(i) != 0)) pc++;
+                    break;
+                }
+                case OpCode.CONCAT: {
+                    Object value = host.concat(proto.tokens[pc - 1], r,
+                        base + OpCode.b(i), base + OpCode.c(i) + 1);
+                    r = stack;
+                    r[a] = value;
+                    break;
+                }
+                case OpCode.CALL: {
+                    Object function = r[a];
+                    int argc = OpCode.b(i) - 1;
+                    if (function instanceof LuaClosure && ((LuaClosure) function).vm.main == main) {
+                        LuaClosure callee = (LuaClosure) function;
+                        if (callee.proto.numParams != argc) {
+                            throw new RuntimeError(proto.tokens[pc - 1],
+                                "Expected " + callee.proto.numParams + " arguments but got " + argc + ".");
+                        }
+                        host.checkInterrupt();
+                        // Os argumentos já estão nos registradores iniciais do
+                        // novo frame; o RETURN dele grava o resultado em R[A]
+                        frame.pc = pc;
+                        frame = push(callee, a + 1, proto.tokens[pc - 1]);
+                        closure = callee;
+                        base = frame.base;
+                        proto = callee.proto;
+                        code = proto.code;
+                        k = proto.constants;
+                        r = stack;
+                        pc = 0;
+                        break;
+                    }
+                    if (function == Coroutine.YIELD && entry == 0 && resuming) {
+                        // Suspende: o resume seguinte grava o valor em R[A]
+                        frame.pc = pc;
+                        return yielded(proto.tokens[pc - 1], r, a, argc);
+                    }
+                    Object value = callHost(proto.tokens[pc - 1], function, a, argc);
+                    r = stack;
+                    r[a] = value;
+                    break;
+                }
+                case OpCode.TAILCALL: {
+                    Object function = r[a];
+                    int argc = OpCode.b(i) - 1;
+                    if (function == Coroutine.YIELD && entry == 0 && resuming) {
+                        // Suspende; no resume seguinte este frame retorna o valor recebido
+                        frame.pc = pc;
+                        return yielded(proto.tokens[pc - 1], r, a, argc);
+                    }
+                    if (!(function instanceof LuaClosure) || ((LuaClosure) function).vm.main != main) {
+                        Object value = callHost(proto.tokens[pc - 1], function, a, argc);
+                        pop();
+                        if (depth == entry) return value;
+                        frame = frames[depth - 1];
+                        closure = frame.closure;
+                        base = frame.base;
+                        proto = closure.proto;
+                        code = proto.code;
+                        k = proto.constants;
+                        r = stack;
+                        pc = frame.pc;
+                        r[base + OpCode.resultRegister(code[pc - 1])] = value;
+                        break;
+                    }
+                    LuaClosure callee = (LuaClosure) function;
+                    if (callee.proto.numParams != argc) {
+                        throw new RuntimeError(proto.tokens[pc - 1],
+                            "Expected " + callee.proto.numParams + " arguments but got " + argc + ".");
+                    }
+                    host.checkInterrupt();
+                    // O frame atual acabou: fecha seus upvalues, desce os
+                    // argumentos para a base e recomeça com a nova função
+                    if (openUpvalues != null && openUpvalues.index >= base) {
+                        closeUpvalues(base);
+                    }
+                    int size = base + callee.proto.maxStack;
+                    if (size > maxStack) {
+                        throw new RuntimeError(proto.tokens[pc - 1], "stack overflow.");
+                    }
+                    System.arraycopy(r, a + 1, r, base, argc);
+                    frame.closure = closure = callee;
+                    proto = callee.proto;
+                    code = proto.code;
+                    k = proto.constants;
+                    ensureStack(size);
+                    top = Math.max(top, size);
+                    r = stack;
+                    pc = 0;
+                    break;
+                }
+                case OpCode.RETURN: {
+                    Object value = OpCode.b(i) == 2 ? r[a] : null;
+                    pop();
+                    if (depth == entry) return value;
+                    // Volta ao chamador, logo depois do seu CALL
+                    frame = frames[depth - 1];
+                    closure = frame.closure;
+                    base = frame.base;
+                    proto = closure.proto;
+                    code = proto.code;
+                    k = proto.constants;
+                    r = stack;
+                    pc = frame.pc;
+                    r[base + OpCode.resultRegister(code[pc - 1])] = value;
+                    break;
+                }
+                case OpCode.CLOSURE: {
+                    Prototype child = proto.protos[OpCode.bx(i)];
+                    Upvalue[] upvalues = new Upvalue[child.upvalueIndex.length];
+                    for (int j = 0; j < upvalues.length; j++) {
+                        upvalues[j] = child.upvalueInStack[j]
+                            ? findUpvalue(base + child.upvalueIndex[j])
+                            : closure.upvalues[child.upvalueIndex[j]];
+                    }
+                    r[a] = new LuaClosure(child, upvalues, this);
+                    break;
+                }
+                case OpCode.CLOSE:
+                    closeUpvalues(a);
+                    break;
+                case OpCode.FORPREP: {
+                    Token name = proto.tokens[pc - 1];
+                    Object start = r[a];
+                    Object limit = r[a + 1];
+                    Object step = r[a + 2];
+                    LuaNumber.checkForOperand(name, start, "initial value");
+                    LuaNumber.checkForOperand(name, limit, "limit");
+                    LuaNumber.checkForOperand(name, step, "step");
+                    if (start instanceof Long && step instanceof Long) {
+                        long s = (Long) step;
+                        if (s == 0) throw new RuntimeError(name, "'for' step is zero.");
+                        if (LuaNumber.forSkips((Long) start, limit, s)) {
+                            pc += OpCode.sbx(i);
+                            break;
+                        }
+                        // O limite fica inteiro e já saturado; o FORLOOP só compara
+                        r[a + 1] = LuaNumber.forLimit(limit, s);
+                    } else {
+                        double x = LuaNumber.toDouble(start);
+                        double last = LuaNumber.toDouble(limit);
+                        double s = LuaNumber.toDouble(step);
+                        if (s == 0) throw new RuntimeError(name, "'for' step is zero.");
+                        if (!(s > 0 ? x <= last : x >= last)) {
+                            pc += OpCode.sbx(i);
+                            break;
+                        }
+                        r[a] = x;
+                        r[a + 1] = last;
+                        r[a + 2] = s;
+                    }
+                    r[a + 3] = r[a];
+                    break;
+                }
+                case OpCode.FORLOOP: {
+                    Object index = r[a];
+                    if (index instanceof Long) {
+                        long x = (Long) index;
+                        long s = (Long) r[a + 2];
+                        if (LuaNumber.forContinues(x, (Long) r[a + 1], s)) {
+                            host.checkInterrupt();
+                            Object next = x + s;
+                            r[a] = next;
+                            r[a + 3] = next;
+                            pc += OpCode.sbx(i);
+                        }
+                    } else {
+                        double s = (Double) r[a + 2];
+                        double x = (Double) index + s;
+                        if (s > 0 ? x <= (Double) r[a + 1] : x >= (Double) r[a + 1]) {
+                            host.checkInterrupt();
+                            Object next = x;
+                            r[a] = next;
+                            r[a + 3] = next;
+                            pc += OpCode.sbx(i);
+                        }
+                    }
+                    break;
+                }
+                case OpCode.TFORPREP: {
+                    r[a] = TableIterator.forLoop(r[a], r[a + 1], r[a + 2]);
+                    pc += OpCode.sbx(i);
+                    break;
+                }
+                case OpCode.TFORCALL: {
+                    // pairs/ipairs/next andam o cursor da tabela sem chamar
+                    // função; os demais iteradores dão só a variável R[A+3]
+                    Object f = r[a];
+                    int flags = OpCode.b(i);
+                    if (f instanceof TableIterator) {
+                        TableIterator iterator = (TableIterator) f;
+                        boolean more = iterator.advance(host);
+                        r = stack;
+                        if (!more) {
+                            r[a + 3] = null;
+                            break;
+                        }
+                        // Chave que o corpo não lê: basta um marcador não-nil
+                        // para o TFORLOOP, sem boxing
+                        r[a + 3] = (flags & OpCode.TFOR_NO_KEY) != 0 ? Boolean.TRUE : iterator.key();
+                        int count = OpCode.c(i);
+                        if (count > 1) r[a + 4] = iterator.value();
+                        for (int j = 2; j < count; j++) r[a + 3 + j] = null;
+                        break;
+                    }
+                    if (OpCode.c(i) > 1) {
+                        throw new RuntimeError(proto.tokens[pc - 1], TableIterator.MULTIPLE_VARIABLES);
+                    }
+                    if (f instanceof LuaClosure && ((LuaClosure) f).vm.main == main) {
+                        // Como no CALL, o iterador ganha um frame neste laço:
+                        // recebe s, ctl e nil nos demais parâmetros, a partir
+                        // de R[A+3] (livre entre as iterações), e o RETURN
+                        // dele grava o resultado em R[A+3]
+                        LuaClosure callee = (LuaClosure) f;
+                        Object s = r[a + 1];
+                        Object control = r[a + 2];
+                        host.checkInterrupt();
+                        frame.pc = pc;
+                        frame = push(callee, a + 3, proto.tokens[pc - 1]);
+                        closure = callee;
+                        base = frame.base;
+                        proto = callee.proto;
+                        code = proto.code;
+                        k = proto.constants;
+                        r = stack;
+                        pc = 0;
+                        int argc = proto.numParams;
+                        if (argc > 0) r[base] = s;
+                        if (argc > 1) r[base + 1] = control;
+                        for (int j = 2; j < argc; j++) r[base + j] = null;
+                        break;
+                    }
+                    Object key = host.callIterator(proto.tokens[pc - 1], f, flags & ~OpCode.TFOR_NO_KEY,
+                        r[a + 1], r[a + 2]);
+                    r = stack;
+                    r[a + 3] = key;
+                    break;
+                }
+                case OpCode.TFORLOOP: {
+                    Object key = r[a + 3];
+                    if (key != null) {
+                        host.checkInterrupt();
+                        r[a + 2] = key;
+                        pc += OpCode.sbx(i);
+                    }
+                    break;
+                }
+                default:
+                    throw new IllegalStateException("Unknown opcode " + OpCode.op(i));
+            }
+        }
+    }
+
+    private static Object yielded(Token token, Object[] r, int a, int argc) {
+        if (argc > 1) {
+            throw new RuntimeError(token, "Expected at most 1 argument to 'yield' but got " + argc + ".");
+        }
+        return argc == 1 ? r[a + 1] : null;
+    }
+
+    private static Object rk(Object[] r, int base, Object[] k, int operand) {
+        return (operand & OpCode.BITRK) != 0 ? k[operand & ~OpCode.BITRK] : r[base + operand];
+    }
+}
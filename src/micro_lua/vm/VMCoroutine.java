@@ -0,0 +1,44 @@
+package micro_lua.vm;
+
+import micro_lua.Coroutine;
+import micro_lua.LuaInterpreter;
+import micro_lua.RuntimeError;
+
+// Corrotina de uma closure da VM. Os frames dela ficam na pilha de chamadas
+// explícita de uma VM própria: um yield no laço de despacho salva o pc e
+// volta a quem chamou resume, sem deixar nada na pilha Java, e o resume
+// seguinte continua do mesmo ponto. Uma corrotina suspensa é só memória
+// (a VM, os registradores e os frames), sem thread.
+final class VMCoroutine extends Coroutine implements Coroutine.Fiber {
+    private final LuaClosure body;
+    private final VM vm;
+
+    VMCoroutine(LuaClosure body) {
+        this.body = body;
+        this.vm = new VM(body.vm);
+    }
+
+    @Override
+    protected Object transfer(LuaInterpreter interpreter, int argc, Object value) {
+        Fiber previous = switchFiber(vm.host, this);
+        try {
+            Object result = vm.resume(body, argc, value);
+            if (vm.depth == 0) status = DEAD;
+            return result;
+        } finally {
+            switchFiber(vm.host, previous);
+        }
+    }
+
+    @Override
+    protected Fiber fiber() {
+        return this;
+    }
+
+    // Só os yields do laço de despacho da corrotina a suspendem; este é um
+    // chamado através de Java (de um metamétodo ou de uma nativa)
+    @Override
+    public Object yield(LuaInterpreter interpreter, Object value) {
+        throw new RuntimeError(null, "attempt to yield across a C-call boundary");
+    }
+}